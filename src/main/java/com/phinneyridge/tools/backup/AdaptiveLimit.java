@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AdaptiveLimit is a concurrency limit whose value is adjusted while it's being used.  It works like a
+ * semaphore whose number of permits is tuned AIMD-style (additive increase, multiplicative decrease)
+ * from the throughput and latency observed by the operations that release it:
+ * <ul>
+ *     <li>when the limit was the bottleneck during a measurement window and throughput didn't drop,
+ *     the limit is increased by one</li>
+ *     <li>when throughput drops by more than 10%, or latency grows well beyond the best seen while
+ *     throughput stalls, the limit is cut by a quarter</li>
+ * </ul>
+ * Throughput is measured as bytes per second plus a fixed cost per operation, so a device busy with many
+ * small files isn't mistaken for an idle one.
+ */
+public class AdaptiveLimit {
+    private static final long windowNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long operationCost = 4096;    // bytes an operation is worth, whatever its size
+
+    private final String name;
+    private final int initialLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int limit;
+    private int inFlight = 0;
+    private int maxReached;
+    private int increases = 0;
+    private int decreases = 0;
+
+    // the current measurement window
+    private long windowStart = System.nanoTime();
+    private long windowBytes = 0;
+    private long windowOperations = 0;
+    private long windowLatency = 0;
+    private boolean windowSaturated = false;   // an acquire had to wait during the window
+    private double previousThroughput = 0;
+    private double bestLatency = 0;
+
+    /**
+     * create a limit
+     * @param name the name used when reporting the limit
+     * @param initialLimit the limit to start with
+     * @param maxLimit the limit is never raised above this value
+     */
+    public AdaptiveLimit(String name, int initialLimit, int maxLimit) {
+        this.name = name;
+        this.initialLimit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.maxReached = initialLimit;
+    }
+
+    /**
+     * acquire a permit, waiting until the number of operations in flight is below the limit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= limit) {
+                windowSaturated = true;
+                available.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * release a permit and record the operation that held it
+     * @param bytes the number of bytes the operation transferred
+     * @param latencyNanos how long the operation held the permit
+     */
+    public void release(long bytes, long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            windowBytes += bytes;
+            windowOperations++;
+            windowLatency += latencyNanos;
+            long now = System.nanoTime();
+            if (now - windowStart >= windowNanos && windowOperations >= Math.min(limit, 4)) {
+                adjust(now);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(long now) {
+        double elapsed = (now - windowStart) / 1e9;
+        double throughput = (windowBytes + windowOperations * operationCost) / elapsed;
+        double latency = (double) windowLatency / windowOperations;
+        if (bestLatency == 0 || latency < bestLatency) bestLatency = latency;
+        boolean throughputDropped = previousThroughput > 0 && throughput < previousThroughput * 0.9;
+        boolean latencyGrew = latency > bestLatency * 4 && throughput <= previousThroughput;
+        if ((throughputDropped || latencyGrew) && limit > 1) {
+            limit = Math.max(1, Math.min(limit - 1, limit * 3 / 4));
+            decreases++;
+        } else if (windowSaturated && !throughputDropped && limit < maxLimit) {
+            limit++;
+            increases++;
+            maxReached = Math.max(maxReached, limit);
+        }
+        previousThroughput = throughput;
+        windowStart = now;
+        windowBytes = 0;
+        windowOperations = 0;
+        windowLatency = 0;
+        windowSaturated = false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return a one line description of the limit and how it was adjusted
+     */
+    public String getSummary() {
+        lock.lock();
+        try {
+            return name + ": concurrency started at " + initialLimit + ", ended at " + limit +
+                    " (highest " + maxReached + ", max " + maxLimit + ", " + increases + " increases, " +
+                    decreases + " decreases)";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,2285 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * The BackupEngine performs the backup and restore operations for a Job.  The engine doesn't use any
+ * of the gui classes; everything it needs comes from the Job, and everything it has to say goes to its
+ * EngineListener.  That lets the same engine be driven by the ExecuteNode page or be run unattended from
+ * the command line (see Batch).
+ * Any interactive input, like the destination directory, the encryption password or the date path to
+ * restore from, must be resolved by the caller before the engine is run.
+ */
+public class BackupEngine {
+    public enum Result {
+        indeterminate,              // not executed
+        success,                    // successfully executed
+        successWithMissingPaths,    // successful, but some paths did not exist
+        fail,                       // some file failed when being backed up
+        requireDestination,         // execution was terminated because a destination wasn't supplied
+        requireEncryptionPassword,  // execution was terminated because an encryption password wasn't supplied
+        nonExistentDestination,     // the destination directory cannot be created or not accessible
+        unsupportedMode,            // the job's mode is not supported by the engine
+        invalidPassword,            // the password doesn't match the key header at the destination
+        noDatePath,                 // there is no date path to restore or verify
+        cancelled                   // execution was cancelled before it completed
+    };
+    public enum ExecutionMode {
+        platform,   // each copy runs on a platform thread
+        virtual     // each copy runs on its own virtual thread (requires Java 21)
+    }
+    static final String encryptionFileExtension = ".iv16enc";
+    static final String archiveFileName = "backup.zip";
+    private static final int maxVirtualCopies = 20000;   // copies in flight when running on virtual threads
+
+    private final Job job;
+    private String destination;                 // the job's destination, unless this run has its own
+    private EngineListener listener = msg -> {};
+    private boolean fileLogging = true;
+    private ExecutionMode executionMode = ExecutionMode.platform;
+    private int verifySample = 100;             // the percentage of the files a verify reads back
+    private boolean verifyAgainstSource = false;
+    private ThroughputLimit verifyLimit = new ThroughputLimit(0, 0);
+    private boolean deferPruning = false;
+    private boolean resumeRestore = false;      // continue the restore of encrypted files that was interrupted
+    private volatile DatePathPruner pruner;     // the pruner of the last backup, while it empties the trash
+    private Thread pruneThread;
+    private Semaphore virtualCopies;
+    private volatile boolean cancelled = false;
+    private ExecutorService executorService;
+    private DeviceScheduler scheduler;
+    private CompletionTracker tracker;
+    private BackupManifest manifest;
+    private BackupManifest previousSnapshot;    // store mode: hashes of unchanged files are taken from here;
+                                                // copy mode with the link option: unchanged files are linked
+    private ChecksumManifest checksums;         // copy mode with the checksum option
+    private ChecksumManifest previousChecksums; // the checksums of the previous date path, for linked files
+    private ContentStore contentStore;
+    private Closeable storeLock;                // store mode: held from the start of a backup until it's finished
+    private ZipArchiveWriter archive;
+    private ZipArchiveReader archiveReader;
+    private GitObjectStore gitStore;
+    private BackupReport report;
+    public DataEncryption dataEncryption = new DataEncryption();
+
+    public BackupEngine(Job job) {
+        this.job = job;
+        this.destination = job.getDestination();
+    }
+
+    /**
+     * set the destination of this run.  A job without a destination is given one each time it's run, this
+     * doesn't change the job.
+     * @param destination the destination directory, in place of the job's own destination
+     */
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public void setListener(EngineListener listener) {
+        this.listener = (listener == null) ? msg -> {} : listener;
+    }
+
+    /**
+     * enable or disable the message that is produced for each file that gets copied.  Job level messages
+     * are always produced.
+     * @param fileLogging true to produce a message for each file copied
+     */
+    public void setFileLogging(boolean fileLogging) {
+        this.fileLogging = fileLogging;
+    }
+
+    /**
+     * set how the copies are executed.  In virtual mode every file copy gets its own virtual thread, and the
+     * copies wait for their device permits on that thread instead of holding up the walk.  That lets tens of
+     * thousands of small file copies be in flight against a slow network share; the DeviceScheduler still
+     * bounds how many of them actually perform I/O at the same time.  Virtual mode falls back to platform
+     * mode when the runtime doesn't support virtual threads.
+     * @param executionMode the execution mode
+     */
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * set how much of the backup a verify reads back
+     * @param percent the percentage of the files that are verified, picked at random; 100 verifies every file
+     */
+    public void setVerifySample(int percent) {
+        this.verifySample = Math.max(1, Math.min(100, percent));
+    }
+
+    /**
+     * choose what a verify compares the backed up files with
+     * @param againstSource true to compare them with the source files that didn't change since the backup,
+     * false to compare them with the checksums the backup recorded.  Files without a recorded checksum are
+     * compared with their source either way.
+     */
+    public void setVerifyAgainstSource(boolean againstSource) {
+        this.verifyAgainstSource = againstSource;
+    }
+
+    /**
+     * limit the load a verify puts on the devices, so it can run while they're in use
+     * @param limit the bytes per second and the number of files read at the same time
+     */
+    public void setVerifyLimit(ThroughputLimit limit) {
+        this.verifyLimit = (limit == null) ? new ThroughputLimit(0, 0) : limit;
+    }
+
+    /**
+     * choose when the date paths that are no longer retained are deleted.  Deferred, a backup only renames
+     * them into the trash and reports its completion; the trash is emptied on a thread of its own, which
+     * awaitPruning waits for.
+     * @param deferPruning true to empty the trash after the backup, false to delete the date paths before
+     * the backup completes
+     */
+    public void setDeferPruning(boolean deferPruning) {
+        this.deferPruning = deferPruning;
+    }
+
+    /**
+     * continue a restore that was interrupted.  An encrypted file of a copy mode backup that is already at its
+     * origin, and doesn't have the backup's last modified time, is taken for a file the interrupted restore
+     * was writing: its complete segments are kept and only the rest is decrypted (see
+     * DataEncryption.cipherResumeDecrypt).  Files the interrupted restore completed are skipped.  Only set
+     * this to continue a restore; a file that was changed at its origin since would keep its changes.
+     * @param resumeRestore true to continue an interrupted restore
+     */
+    public void setResumeRestore(boolean resumeRestore) {
+        this.resumeRestore = resumeRestore;
+    }
+
+    /**
+     * wait until the trash of the last backup has been emptied
+     */
+    public void awaitPruning() {
+        Thread thread = pruneThread;
+        if (thread == null) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public Job getJob() {
+        return job;
+    }
+
+    /**
+     * @return the report for the current or last run, or null if the engine hasn't been run
+     */
+    public BackupReport getReport() {
+        return report;
+    }
+
+    /**
+     * cancel the current run. Copies that are in progress are interrupted and no new copies are started.
+     */
+    public void cancel() {
+        cancelled = true;
+        ExecutorService service = executorService;
+        if (service != null) service.shutdownNow();
+        DatePathPruner datePathPruner = pruner;
+        if (datePathPruner != null) datePathPruner.cancel();
+    }
+
+    /**
+     * get the date paths that are available for a restore.
+     * @return the date paths found at the jobs destination; the list is empty if the job doesn't
+     * have the dateDir option set or no date paths exist yet.
+     */
+    public List<String> getAvailableDatePaths() {
+        if (!job.appendDate() || destination == null) return new LinkedList<>();
+        if (isVcsMode()) {
+            // every commit is tagged with its date path
+            List<String> datePaths = new LinkedList<>();
+            for (String tag : new GitObjectStore(new File(job.getJobDestination(destination))).getTags()) {
+                if (DatePaths.isDatePath(tag)) datePaths.add(tag);
+            }
+            return datePaths;
+        }
+        return DatePaths.getAvailableDatePaths(new File(job.getJobDestination(destination)));
+    }
+
+    /**
+     * backup the job's nodes to the job's runtime destination
+     * @param date the date of the backup; used for the date path when the job has the dateDir option set
+     * @return the report of the backup
+     */
+    public BackupReport backup(Date date) {
+        report = new BackupReport(job, true, System.currentTimeMillis());
+        cancelled = false;
+        message("starting backup");
+        showJobInfo();
+        if (checkPreconditions() && openJobKey(true) && lockContentStore()) {
+            // the repository of a vcs mode job holds all the snapshots, they are tagged with their date path
+            String runtimeDestination = isVcsMode() ? job.getJobDestination(destination) :
+                    job.getRuntimeDestination(destination, date);
+            report.runtimeDestination = runtimeDestination;
+            message("backing up to path: " + runtimeDestination);
+            executorService = startNewExecutorService();
+            manifest = null;
+            checksums = null;
+            previousChecksums = null;
+            // a zip mode archive compresses its entries itself
+            dataEncryption.setCompression(job.isCompressionEnabled() && !isZipMode() ?
+                    DataEncryption.Codec.deflate : DataEncryption.Codec.none, job.getCompressionLevel());
+            if (job.isEncryptionEnabled()) dataEncryption.setCipherSuite(job.getCipherSuite());
+            if (isVcsMode()) {
+                gitStore = new GitObjectStore(new File(runtimeDestination));
+                previousSnapshot = BackupManifest.load(new File(runtimeDestination));
+                manifest = BackupManifest.empty(new File(runtimeDestination));
+            } else if (isStoreMode()) {
+                // every snapshot gets a complete manifest of its own; lockContentStore opened the content store
+                previousSnapshot = loadPreviousSnapshot(new File(runtimeDestination));
+                manifest = BackupManifest.empty(new File(runtimeDestination));
+            } else if (!isZipMode()) {
+                manifest = BackupManifest.load(new File(runtimeDestination));
+                if (!manifest.exists()) seedManifest(new File(runtimeDestination));
+                List<DataEncryption.Hash> hashes = job.getChecksumHashes();
+                if (!hashes.isEmpty()) checksums = ChecksumManifest.load(new File(runtimeDestination), hashes);
+                previousSnapshot = null;
+                if (job.isLinkEnabled()) {
+                    previousSnapshot = loadPreviousSnapshot(new File(runtimeDestination));
+                    if (previousSnapshot.exists()) {
+                        message("linking unchanged files to " + previousSnapshot.getDirectory().getPath());
+                        if (checksums != null) {
+                            previousChecksums = ChecksumManifest.load(previousSnapshot.getDirectory(), hashes);
+                        }
+                    } else {
+                        previousSnapshot = null;
+                    }
+                }
+            }
+            performBackupPaths(job.getNodes(), runtimeDestination);
+            awaitCompletion();
+            if (isZipMode()) {
+                closeArchive();
+            } else if (isVcsMode()) {
+                // a cancelled snapshot is incomplete, so it isn't committed
+                String commit = cancelled ? null : commitSnapshot(date);
+                if (commit != null && saveManifest()) recordManifestCommit(commit);
+            } else if (!(isStoreMode() && cancelled)) {
+                // a cancelled snapshot is incomplete, so the previous snapshot stays the latest one
+                saveManifest();
+            }
+            if (job.appendDate() && !cancelled && !isVcsMode()) {
+                pruneDatePaths();
+            }
+            if (isStoreMode() && !cancelled) {
+                message("content store: " + contentStore.getBlobsWritten() + " new blobs, " +
+                        contentStore.getBytesWritten() + " bytes written");
+                collectGarbage();
+            }
+            message("backup completed");
+        }
+        return finish();
+    }
+
+    /**
+     * restore the job's nodes from the job's runtime destination
+     * @param datePath the date path to restore from.  Only used when the job has the dateDir option set.
+     * @return the report of the restore
+     */
+    public BackupReport restore(String datePath) {
+        return restore(datePath, null);
+    }
+
+    /**
+     * restore the files that match a pattern from the job's runtime destination, rather than the job's nodes.
+     * In copy and store mode the files are looked up in the backup's sorted index, so only the part of the
+     * index under the pattern's prefix is read.
+     * @param datePath the date path to restore from.  Only used when the job has the dateDir option set.
+     * @param pattern a path, "glob:" and a glob or "regex:" and a regular expression, see PathPattern;
+     * null to restore the job's nodes
+     * @return the report of the restore
+     */
+    public BackupReport restore(String datePath, String pattern) {
+        report = new BackupReport(job, false, System.currentTimeMillis());
+        cancelled = false;
+        message("starting restore");
+        showJobInfo();
+        PathPattern pathPattern = null;
+        if (pattern != null) {
+            try {
+                pathPattern = PathPattern.compile(pattern);
+            } catch (IllegalArgumentException e) {
+                report.result = Result.fail;
+                message("invalid pattern " + pattern + ": " + e.getMessage());
+                return finish();
+            }
+        }
+        if (checkPreconditions() && openJobKey(false)) {
+            if (job.appendDate()) {
+                if (datePath == null || datePath.isEmpty()) {
+                    message("no date path was given, so there's nothing to be restored");
+                    report.result = Result.noDatePath;
+                    report.anyErrors = true;
+                    return finish();
+                }
+                message("Restoring from date path: " + datePath);
+            }
+            String runtimeDestination = isVcsMode() ? job.getJobDestination(destination) :
+                    job.getRuntimeDestination(destination, datePath == null ? "" : datePath);
+            report.runtimeDestination = runtimeDestination;
+            executorService = startNewExecutorService();
+            Predicate<String> selection;
+            String relativePrefix = null;
+            if (pathPattern == null) {
+                // the selected paths are compiled once, every file of the backup is matched against them
+                selection = new PathTrie(job.getNodes())::contains;
+            } else {
+                message("restoring the files that match " + pathPattern);
+                selection = pathPattern::matches;
+                relativePrefix = getRelativePathName(pathPattern.getPrefix().replace('/', File.separatorChar));
+            }
+            if (isVcsMode()) {
+                performRestoreCommit(selection, runtimeDestination, job.appendDate() ? datePath : null);
+            } else if (isStoreMode()) {
+                contentStore = new ContentStore(new File(job.getJobDestination(destination)), dataEncryption);
+                performRestoreSnapshot(selection, runtimeDestination, relativePrefix);
+            } else if (isZipMode()) {
+                performRestoreArchive(selection, runtimeDestination);
+            } else {
+                performRestorePaths(selection, runtimeDestination, relativePrefix);
+            }
+            awaitCompletion();
+            closeArchive();
+            message("restore completed");
+        }
+        return finish();
+    }
+
+    /**
+     * restore a range of a single backed up file to the given target, rather than the whole file to its
+     * origin.  Only what holds the range is read: the segments of an encrypted file that the range overlaps,
+     * and in store mode the chunks it overlaps, so a part of a large file comes back without decrypting the
+     * file from its start.  Copy and store mode backups are supported.
+     * @param datePath the date path to restore from.  Only used when the job has the dateDir option set.
+     * @param path the source path of the file
+     * @param offset the offset of the range in the file
+     * @param length the length of the range; a range that reaches past the end of the file ends with it
+     * @param target the file the range is written to
+     * @return the report of the restore
+     */
+    public BackupReport restoreRange(String datePath, String path, long offset, long length, File target) {
+        report = new BackupReport(job, false, System.currentTimeMillis());
+        cancelled = false;
+        message("starting restore of " + path + " from byte " + offset + ", " + length + " bytes");
+        showJobInfo();
+        if (checkPreconditions() && openJobKey(false)) {
+            if (isVcsMode() || isZipMode()) {
+                report.result = Result.unsupportedMode;
+                message("a range of a file can only be restored from a copy or store mode backup");
+                return finish();
+            }
+            if (job.appendDate()) {
+                if (datePath == null || datePath.isEmpty()) {
+                    message("no date path was given, so there's nothing to be restored");
+                    report.result = Result.noDatePath;
+                    report.anyErrors = true;
+                    return finish();
+                }
+                message("Restoring from date path: " + datePath);
+            }
+            String runtimeDestination = job.getRuntimeDestination(destination, datePath == null ? "" : datePath);
+            report.runtimeDestination = runtimeDestination;
+            performRestoreRange(new File(runtimeDestination), getRelativePathName(new File(path).getPath()),
+                    offset, length, target);
+            message("restore completed");
+        }
+        return finish();
+    }
+
+    private void performRestoreRange(File dir, String relativePathName, long offset, long length, File target) {
+        boolean encrypted = job.isEncryptionEnabled();
+        File backupFile = null;
+        BackupManifest.Entry entry = null;
+        if (isStoreMode()) {
+            contentStore = new ContentStore(new File(job.getJobDestination(destination)), dataEncryption);
+            entry = findBackupEntry(dir, relativePathName);
+            if (entry == null || entry.getHash() == null || entry.isEncrypted() != encrypted) entry = null;
+        } else {
+            backupFile = makeBackupFile(dir, relativePathName, encrypted);
+            if (!backupFile.isFile()) backupFile = null;
+        }
+        if (backupFile == null && entry == null) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            message("the backup at " + dir.getPath() + " has no file " + relativePathName);
+            return;
+        }
+        if (target.getParentFile() != null) target.getParentFile().mkdirs();
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long written;
+            if (entry != null) {
+                written = contentStore.restoreRange(entry.getHash(), encrypted, entry.isChunked(), job.getPassword(),
+                        offset, length, out);
+            } else if (encrypted) {
+                written = dataEncryption.cipherRangeDecrypt(job.getPassword(), backupFile, offset, length, out);
+            } else {
+                written = ContentStore.copyRange(backupFile, offset, length, out);
+            }
+            report.noFilesCopied.increment();
+            message("restored " + written + " bytes to " + target.getPath());
+        } catch (InvalidKeyException e) {
+            report.anyErrors = true;
+            report.noEncryptedFilesSkipped.increment();
+            message("skipped: " + relativePathName + " - invalid encryption key");
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            message("error restoring " + target.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * verify the backup at the job's runtime destination.  The backed up files are read back in parallel,
+     * decrypted when the job is encrypted, and their content is compared with the checksums the backup
+     * recorded or with the source files.  Nothing is written, and the reads are held to the verify limit.
+     * @param datePath the date path to verify.  Only used when the job has the dateDir option set.
+     * @return the report of the verify
+     */
+    public BackupReport verify(String datePath) {
+        report = new BackupReport(job, BackupReport.Operation.verify, System.currentTimeMillis());
+        cancelled = false;
+        message("starting verify");
+        showJobInfo();
+        if (checkPreconditions() && openJobKey(false)) {
+            if (isVcsMode()) {
+                // git already hashes every object, and it has its own check
+                report.result = Result.unsupportedMode;
+                message("a vcs mode repository is verified with the git tools: git fsck");
+                return finish();
+            }
+            if (job.appendDate()) {
+                if (datePath == null || datePath.isEmpty()) {
+                    message("no date path was given, so there's nothing to be verified");
+                    report.result = Result.noDatePath;
+                    report.anyErrors = true;
+                    return finish();
+                }
+                message("Verifying date path: " + datePath);
+            }
+            String runtimeDestination = job.getRuntimeDestination(destination, datePath == null ? "" : datePath);
+            report.runtimeDestination = runtimeDestination;
+            message("verifying " + (verifySample >= 100 ? "every file" : verifySample + "% of the files") +
+                    " against " + (verifyAgainstSource ? "the unchanged source files" : "the recorded checksums") +
+                    ", " + verifyLimit.getSummary());
+            executorService = startNewExecutorService();
+            if (isStoreMode()) {
+                contentStore = new ContentStore(new File(job.getJobDestination(destination)), dataEncryption);
+                verifySnapshot(runtimeDestination);
+            } else if (isZipMode()) {
+                verifyArchive(runtimeDestination);
+            } else {
+                verifyCopies(runtimeDestination);
+            }
+            awaitCompletion();
+            closeArchive();
+            message("verify completed");
+        }
+        return finish();
+    }
+
+    /**
+     * reads the content of a backed up file, decrypting and decompressing it as needed
+     */
+    private interface ContentReader {
+        void read(OutputStream out) throws IOException, InvalidKeyException;
+    }
+
+    /**
+     * verify the files of a copy mode backup.  The backup's manifest tells which files it has, how large
+     * their content is, and their checksum when the job records checksums.
+     */
+    private void verifyCopies(String dir) {
+        File destinationDir = new File(dir);
+        BackupManifest backup = BackupManifest.load(destinationDir);
+        if (!backup.exists()) {
+            report.anyErrors = true;
+            message("the backup at " + dir + " has no manifest yet, it gets one the next time it's backed up");
+            return;
+        }
+        for (Map.Entry<String, BackupManifest.Entry> item : backup.getEntries().entrySet()) {
+            if (cancelled) break;
+            BackupManifest.Entry entry = item.getValue();
+            // like the restore, only the content stored the job's way is verified
+            if (entry.isEncrypted() != job.isEncryptionEnabled()) continue;
+            File backupFile = makeBackupFile(destinationDir, item.getKey(), entry.isEncrypted());
+            scheduleVerify(backupFile, item.getKey(), -1, entry.getSize(), entry.getLastModified(), entry.getHash(),
+                    false, out -> {
+                        if (!entry.isEncrypted()) {
+                            Files.copy(backupFile.toPath(), out);
+                            return;
+                        }
+                        try (InputStream in = new BufferedInputStream(new FileInputStream(backupFile), 1 << 16)) {
+                            dataEncryption.cipherStreamDecrypt(job.getPassword(), in, out);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * verify the files of a store mode snapshot.  Every file's content is put together from its blobs and
+     * compared with the hash it's stored under.
+     */
+    private void verifySnapshot(String dir) {
+        BackupManifest snapshot = BackupManifest.load(new File(dir));
+        if (!snapshot.exists()) {
+            report.anyErrors = true;
+            message("no snapshot was found at " + dir);
+            return;
+        }
+        for (Map.Entry<String, BackupManifest.Entry> item : snapshot.getEntries().entrySet()) {
+            if (cancelled) break;
+            BackupManifest.Entry entry = item.getValue();
+            if (entry.getHash() == null || entry.isEncrypted() != job.isEncryptionEnabled()) continue;
+            File blob = entry.isChunked() ? contentStore.getChunkListFile(entry.getHash(), entry.isEncrypted()) :
+                    contentStore.getBlobFile(entry.getHash(), entry.isEncrypted());
+            scheduleVerify(blob, item.getKey(), entry.getSize(), entry.getSize(), entry.getLastModified(),
+                    entry.getHash(), false, out -> contentStore.restore(entry.getHash(), entry.isEncrypted(),
+                            entry.isChunked(), job.getPassword(), out));
+        }
+    }
+
+    /**
+     * verify the entries of a zip mode archive.  Extracting an entry checks its crc, so the entries are verified
+     * even where there is no unchanged source file to compare them with.
+     */
+    private void verifyArchive(String dir) {
+        File archiveFile = new File(dir, archiveFileName);
+        if (!archiveFile.isFile()) {
+            report.anyErrors = true;
+            message("no archive was found at " + archiveFile.getPath());
+            return;
+        }
+        try {
+            archiveReader = new ZipArchiveReader(archiveFile);
+        } catch (IOException e) {
+            report.anyErrors = true;
+            message("unable to read the archive " + archiveFile.getPath() + ": " + e.getMessage());
+            return;
+        }
+        ZipArchiveReader reader = archiveReader;
+        for (ZipArchiveReader.Entry entry : reader.getEntries()) {
+            if (cancelled) break;
+            if (entry.isDirectory() || entry.isEncrypted() != job.isEncryptionEnabled()) continue;
+            // the size of an encrypted entry is the size of the encrypted data
+            scheduleVerify(archiveFile, fromEntryName(entry.getPathName()), entry.getCompressedSize(),
+                    entry.isEncrypted() ? -1 : entry.getSize(), entry.getLastModified(), null, true,
+                    out -> reader.extract(entry, out, dataEncryption, job.getPassword()));
+        }
+    }
+
+    /**
+     * schedule the verify of a single backed up file, unless it's left out of the sample.  A verify holds one
+     * of the verify limit's permits from the time it's scheduled until it's done.
+     * @param backupFile the file that is read, its device is used to schedule the verify
+     * @param relativePathName the relative path name of the source file
+     * @param bytes the number of bytes the verify reads, or -1 if it reads the whole backup file
+     * @param size the size of the content, or -1 if it isn't known
+     * @param lastModified the last modified time of the source file when it was backed up
+     * @param hash the recorded SHA-256 hash of the content, or null
+     * @param checked true if the reader checks the content itself
+     * @param reader reads the content
+     */
+    private void scheduleVerify(File backupFile, String relativePathName, long bytes, long size, long lastModified,
+                                String hash, boolean checked, ContentReader reader) {
+        if (ThreadLocalRandom.current().nextInt(100) >= verifySample) {
+            report.noFilesNotSampled.increment();
+            return;
+        }
+        try {
+            verifyLimit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        File sourceFile = new File(convertRelativePathToSourcePath(relativePathName));
+        scheduleTask(backupFile, sourceFile, bytes, () -> {
+            try {
+                performVerifyFile(backupFile, sourceFile, size, lastModified, hash, checked, reader);
+            } finally {
+                verifyLimit.release();
+            }
+        });
+    }
+
+    /**
+     * performs the verify of a single backed up file.  Its content is read back and hashed, and the hash is
+     * compared with the hash of the source file when the source didn't change since the backup and that's
+     * what the verify compares with, or otherwise with the recorded hash.
+     */
+    void performVerifyFile(File backupFile, File sourceFile, long size, long lastModified, String hash,
+                           boolean checked, ContentReader reader) {
+        try {
+            // the time is compared in seconds, that's all a zip entry keeps
+            boolean sourceUnchanged = sourceFile.isFile() && (size < 0 || sourceFile.length() == size) &&
+                    sourceFile.lastModified() / 1000 == lastModified / 1000;
+            String expected = hash;
+            boolean againstSource = sourceUnchanged && (verifyAgainstSource || hash == null);
+            if (againstSource) {
+                expected = readBack(out -> Files.copy(sourceFile.toPath(), out)).getHash();
+            }
+            VerifiedContent content = readBack(reader);
+            if (size >= 0 && content.size != size) {
+                mismatch(backupFile, "its size is " + content.size + " bytes instead of " + size);
+            } else if (expected != null && !expected.equals(content.getHash())) {
+                mismatch(backupFile, "its content doesn't match " + (againstSource ?
+                        "the source file " + sourceFile.getPath() : "the recorded checksum"));
+            } else if (expected == null && !checked) {
+                report.noFilesNotCompared.increment();
+                fileMessage("read back: " + backupFile.getPath());
+            } else {
+                report.noFilesCopied.increment();
+                fileMessage("verified: " + backupFile.getPath());
+            }
+        } catch (InvalidKeyException e) {
+            report.anyErrors = true;
+            report.noEncryptedFilesSkipped.increment();
+            message("not verified: " + backupFile.getPath() + " - invalid encryption key");
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            message("error verifying " + backupFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private void mismatch(File backupFile, String reason) {
+        report.anyErrors = true;
+        report.noFilesMismatched.increment();
+        message("mismatch: " + backupFile.getPath() + " - " + reason);
+    }
+
+    private VerifiedContent readBack(ContentReader reader) throws IOException, InvalidKeyException {
+        VerifiedContent content = new VerifiedContent();
+        reader.read(content);
+        return content;
+    }
+
+    /**
+     * receives the content of a file that is verified: it's hashed and counted, at the pace of the verify limit
+     */
+    private class VerifiedContent extends OutputStream {
+        private final ChecksumManifest.Digests digests =
+                new ChecksumManifest.Digests(Collections.singletonList(DataEncryption.Hash.SHA256));
+        private long size = 0;
+
+        VerifiedContent() throws IOException {
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                verifyLimit.consume(length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("the verify was cancelled");
+            }
+            digests.update(bytes, offset, length);
+            size += length;
+        }
+
+        String getHash() {
+            return digests.getHexValue(DataEncryption.Hash.SHA256);
+        }
+    }
+
+    /**
+     * The number of threads isn't fixed; the DeviceScheduler admits copies one at a time, and a thread is
+     * only needed for each admitted copy.
+     */
+    private ExecutorService startNewExecutorService() {
+        tracker = new CompletionTracker();
+        if (executionMode == ExecutionMode.virtual) {
+            ExecutorService service = newVirtualThreadExecutor();
+            if (service != null) {
+                scheduler = new DeviceScheduler(true);
+                addDevicePaths();
+                virtualCopies = new Semaphore(maxVirtualCopies);
+                message("running copies on virtual threads");
+                return service;
+            }
+            message("virtual threads are not supported by this java runtime, using platform threads");
+        }
+        scheduler = new DeviceScheduler();
+        addDevicePaths();
+        virtualCopies = null;
+        return  Executors.newCachedThreadPool();
+    }
+
+    /**
+     * let the scheduler look up the devices of the job's selected paths and destination once, rather than
+     * for every file under them
+     */
+    private void addDevicePaths() {
+        for (String path : job.getNodes()) {
+            scheduler.addPath(new File(path).toPath());
+        }
+        if (destination != null) {
+            scheduler.addPath(new File(job.getJobDestination(destination)).toPath());
+        }
+    }
+
+    /**
+     * create an executor that starts a new virtual thread for each task.  This is looked up reflectively
+     * so the utility still runs on java versions that don't have virtual threads.
+     * @return the executor, or null if virtual threads are not available
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private boolean checkPreconditions() {
+        if (isVcsMode() && job.isEncryptionEnabled()) {
+            // the repository must stay readable by the git tools
+            report.result = Result.unsupportedMode;
+            message("Job canceled because the vcs mode does not support encryption");
+            return false;
+        }
+        if (destination == null || destination.isEmpty()) {
+            report.result = Result.requireDestination;
+            message("Job canceled because no destination directory was provided");
+            return false;
+        }
+        if (job.isEncryptionEnabled()) {
+            String password = job.getPassword();
+            if (password == null || password.isEmpty()) {
+                report.result = Result.requireEncryptionPassword;
+                message("Job canceled because no encryption password was provided");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * unlock the master key of an encrypting job from the key header at the job's destination.  This is the
+     * only time the password goes through the expensive key derivation; a wrong password is found here,
+     * before any file is touched.  A backup creates the key header when the destination doesn't have one
+     * yet, once the password decrypts a file that is already encrypted there, if there is one; a restore
+     * from a destination without one derives every file's key from the password, as the files were
+     * encrypted before there were key headers.
+     * @param create true to create the key header if there isn't one
+     * @return true if the job can go on
+     */
+    private boolean openJobKey(boolean create) {
+        dataEncryption.setMasterKey(null);
+        if (!job.isEncryptionEnabled()) return true;
+        File directory = new File(job.getJobDestination(destination));
+        try {
+            JobKey jobKey = JobKey.load(directory);
+            if (jobKey == null && !create) {
+                message("the destination has no key header, the key of every file is derived from the password");
+                return true;
+            }
+            if (jobKey == null) {
+                // the files already at the destination were encrypted with the password alone; the key
+                // header must not be created from a password that doesn't decrypt them
+                File encryptedFile = findEncryptedFile(directory);
+                if (encryptedFile != null) dataEncryption.checkPassword(job.getPassword(), encryptedFile);
+                jobKey = JobKey.create(directory, job.getPassword(), dataEncryption.random);
+                message("created the key header " + new File(directory, JobKey.fileName).getPath());
+            }
+            dataEncryption.setMasterKey(jobKey.unlock(job.getPassword()));
+            return true;
+        } catch (InvalidKeyException e) {
+            report.result = Result.invalidPassword;
+            message("Job canceled because the password does not match the password the destination was " +
+                    "encrypted with");
+            return false;
+        } catch (IOException e) {
+            report.result = Result.fail;
+            report.anyErrors = true;
+            message("Job canceled because the key header could not be read or written: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * lock the content store of a store mode job, so a second backup of the job can't collect the blobs of
+     * this one before they are in its manifest.  The lock is released by finish.
+     * @return true if the job can go on
+     */
+    private boolean lockContentStore() {
+        if (!isStoreMode()) return true;
+        try {
+            contentStore = new ContentStore(new File(job.getJobDestination(destination)), dataEncryption);
+            storeLock = contentStore.lock();
+        } catch (IOException e) {
+            report.result = Result.fail;
+            report.anyErrors = true;
+            message("Job canceled because the content store could not be locked: " + e.getMessage());
+            return false;
+        }
+        if (storeLock == null) {
+            report.result = Result.fail;
+            report.anyErrors = true;
+            message("Job canceled because another backup of the job is writing to the content store");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * find a file that was encrypted at the given directory, at any depth
+     * @return the first encrypted file found, or null if there is none
+     * @throws IOException if a directory can't be read
+     */
+    private File findEncryptedFile(File directory) throws IOException {
+        if (!directory.isDirectory()) return null;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(encryptionFileExtension) &&
+                    Files.isRegularFile(path)).findFirst().map(Path::toFile).orElse(null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * wait for every scheduled copy to complete.  Once the job is cancelled, copies that were never
+     * started don't complete, so we stop waiting as soon as the executor has terminated.
+     */
+    private void awaitCompletion() {
+        tracker.schedulingComplete();
+        try {
+            while (!tracker.await(1, TimeUnit.SECONDS)) {
+                if (cancelled && executorService.isTerminated()) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executorService.shutdown();
+    }
+
+    private boolean isStoreMode() {
+        return job.getJobMode() == Job.mode.store;
+    }
+
+    private boolean isZipMode() {
+        return job.getJobMode() == Job.mode.zip;
+    }
+
+    private boolean isVcsMode() {
+        return job.getJobMode() == Job.mode.vcs;
+    }
+
+    /**
+     * commit the files of a vcs mode backup.  When the manifest describes the head of the branch, the trees
+     * are written from the files that changed since, and the trees of the directories without a change are
+     * reused from the head's tree; otherwise every tree is built from the snapshot's files.  The commit
+     * becomes the head of the branch, and it's tagged with its date path when the job has the dateDir option
+     * set.
+     * @param date the date of the backup
+     * @return the hash of the commit, or null if it wasn't written
+     */
+    private String commitSnapshot(Date date) {
+        try {
+            String parent = gitStore.readRef(GitObjectStore.branch);
+            String tree;
+            if (parent != null && parent.equals(gitStore.readRef(GitObjectStore.manifestRef)) &&
+                    previousSnapshot.exists()) {
+                tree = gitStore.writeTree(gitStore.readCommitTree(parent), getChangedFiles());
+            } else {
+                Map<String, String> files = new HashMap<>();
+                for (Map.Entry<String, BackupManifest.Entry> item : manifest.getEntries().entrySet()) {
+                    files.put(toEntryName(item.getKey()), item.getValue().getHash());
+                }
+                tree = gitStore.writeTree(files);
+            }
+            String commit = gitStore.writeCommit(tree, parent, date.getTime(), "backup of job " + job.getName() +
+                    "\n\n" + report.getFilesCopied() + " files changed, " + manifest.size() + " files");
+            gitStore.updateRef(GitObjectStore.branch, commit);
+            if (job.appendDate()) {
+                gitStore.updateRef(GitObjectStore.tagPrefix + Job.getDatePathName(date), commit);
+            }
+            message("vcs: commit " + commit + ", " + gitStore.getObjectsWritten() + " new objects, " +
+                    gitStore.getBytesWritten() + " bytes written");
+            return commit;
+        } catch (IOException e) {
+            report.anyErrors = true;
+            message("unable to commit the backup: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * compare the snapshot with the previous one
+     * @return the blob hash of every file that is new or changed, and null for every file that was removed,
+     * by its path in the repository
+     */
+    private Map<String, String> getChangedFiles() {
+        Map<String, String> changes = new HashMap<>();
+        for (Map.Entry<String, BackupManifest.Entry> item : manifest.getEntries().entrySet()) {
+            BackupManifest.Entry previous = previousSnapshot.get(item.getKey());
+            String hash = item.getValue().getHash();
+            if (previous == null || !hash.equals(previous.getHash())) {
+                changes.put(toEntryName(item.getKey()), hash);
+            }
+        }
+        for (String relativePathName : previousSnapshot.getEntries().keySet()) {
+            if (manifest.get(relativePathName) == null) changes.put(toEntryName(relativePathName), null);
+        }
+        return changes;
+    }
+
+    /**
+     * note that the saved manifest describes the given commit, so the next backup can take the files that
+     * didn't change from the commit's trees.  A manifest that wasn't saved leaves the previous commit noted,
+     * and the next backup builds all its trees.
+     */
+    private void recordManifestCommit(String commit) {
+        try {
+            gitStore.updateRef(GitObjectStore.manifestRef, commit);
+        } catch (IOException e) {
+            message("unable to record the commit of the backup manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * create the archive a zip mode backup writes to.  It's written under a temporary name and only replaces
+     * the previous archive once it's complete.
+     * @param destinationDir the runtime destination
+     * @return true if the archive was created
+     */
+    private boolean openArchive(File destinationDir) {
+        try {
+            archive = new ZipArchiveWriter(new File(destinationDir, archiveFileName + ".tmp"));
+            return true;
+        } catch (IOException e) {
+            report.anyErrors = true;
+            message("unable to create the archive in " + destinationDir.getPath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * finish the archive of a zip mode backup, or close the archive a zip mode restore read from
+     */
+    private void closeArchive() {
+        if (archiveReader != null) {
+            try {
+                archiveReader.close();
+            } catch (IOException e) {
+                // we only read from it
+            }
+            archiveReader = null;
+        }
+        if (archive == null) return;
+        File temp = archive.getFile();
+        File archiveFile = new File(temp.getParentFile(), archiveFileName);
+        if (cancelled) {
+            // an incomplete archive doesn't replace the previous one
+            archive.abort();
+        } else {
+            try {
+                archive.close();
+                Files.move(temp.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                message("archive: " + archive.getEntryCount() + " entries written to " + archiveFile.getPath());
+            } catch (IOException e) {
+                report.anyErrors = true;
+                message("unable to complete the archive " + archiveFile.getPath() + ": " + e.getMessage());
+                temp.delete();
+            }
+        }
+        archive = null;
+    }
+
+    /**
+     * load the snapshot a store mode backup compares the source files against.  That's the latest date
+     * path's snapshot, or the snapshot being replaced when the job doesn't use date paths.
+     * @param runtimeDestination the runtime destination of the new snapshot
+     * @return the previous snapshot; exists() is false if there isn't one
+     */
+    private BackupManifest loadPreviousSnapshot(File runtimeDestination) {
+        if (!job.appendDate()) {
+            return BackupManifest.load(runtimeDestination);
+        }
+        List<String> datePaths = getAvailableDatePaths();
+        Collections.sort(datePaths);
+        Collections.reverse(datePaths);
+        for (String datePath : datePaths) {
+            if (datePath.equals(runtimeDestination.getName())) continue;
+            BackupManifest snapshot = BackupManifest.load(new File(job.getJobDestination(destination), datePath));
+            if (snapshot.exists()) return snapshot;
+        }
+        return BackupManifest.empty(runtimeDestination);
+    }
+
+    /**
+     * prune the date paths that are no longer retained, and whatever an earlier prune left in the trash.
+     * Deferred, the date paths are moved to the trash and the trash is emptied on the prune thread.
+     */
+    private void pruneDatePaths() {
+        // the trash of the previous backup must be empty before it gets more date paths
+        awaitPruning();
+        DatePathPruner datePathPruner = new DatePathPruner(new File(job.getJobDestination(destination)),
+                deferPruning, this::message);
+        pruner = datePathPruner;
+        if (!DatePaths.checkDatePathRetain(job, destination, datePathPruner)) {
+            message("unable to prune all the date paths that are no longer retained");
+        }
+        if (!datePathPruner.isDeferred()) {
+            datePathPruner.emptyTrash();
+            if (datePathPruner.getDatePathsPruned() + datePathPruner.getDeleteErrors() > 0) {
+                report.pruneSummary = datePathPruner.getSummary();
+            }
+            pruner = null;
+            return;
+        }
+        if (datePathPruner.getDatePathsMoved() > 0) {
+            report.pruneSummary = "date paths moved to the trash: " + datePathPruner.getDatePathsMoved() +
+                    ", they are deleted after the backup";
+        }
+        pruneThread = new Thread(() -> {
+            datePathPruner.emptyTrash();
+            if (datePathPruner.getDatePathsPruned() + datePathPruner.getDeleteErrors() > 0) {
+                message("prune completed, " + datePathPruner.getSummary());
+            }
+            pruner = null;
+        }, "prune " + job.getName());
+        pruneThread.setDaemon(true);
+        pruneThread.start();
+    }
+
+    /**
+     * delete the blobs that are no longer referenced by any of the job's snapshots.  This runs after the
+     * older date paths have been pruned, so their blobs are released as well.
+     */
+    private void collectGarbage() {
+        Set<String> referenced = new HashSet<>();
+        List<File> snapshotDirs = new LinkedList<>();
+        snapshotDirs.add(new File(job.getJobDestination(destination)));
+        for (String datePath : getAvailableDatePaths()) {
+            snapshotDirs.add(new File(job.getJobDestination(destination), datePath));
+        }
+        for (File dir : snapshotDirs) {
+            File file = new File(dir, BackupManifest.fileName);
+            if (!file.isFile()) continue;
+            BackupManifest snapshot = BackupManifest.load(dir);
+            if (!snapshot.exists()) {
+                // we can't tell which blobs a damaged snapshot needs, so keep all of them
+                message("unable to read the snapshot " + file.getPath() + ", unreferenced blobs are kept");
+                return;
+            }
+            for (BackupManifest.Entry entry : snapshot.getEntries().values()) {
+                if (entry.getHash() == null) continue;
+                referenced.add(entry.getHash());
+                if (!entry.isChunked()) continue;
+                try {
+                    referenced.addAll(contentStore.readChunkList(entry.getHash(), entry.isEncrypted()));
+                } catch (IOException e) {
+                    message("unable to read the chunk list of " + entry.getHash() + ", unreferenced blobs are kept");
+                    return;
+                }
+            }
+        }
+        long deleted = contentStore.collectGarbage(referenced);
+        if (deleted > 0) {
+            message("content store: " + deleted + " unreferenced blobs deleted");
+        }
+    }
+
+    /**
+     * save the manifest of the backup at the runtime destination.  The manifest is saved even when the
+     * backup was cancelled; it only holds the files that were actually backed up.
+     * @return true if the manifest was saved
+     */
+    private boolean saveManifest() {
+        if (manifest == null || !new File(report.runtimeDestination).isDirectory()) return false;
+        boolean saved = true;
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            saved = false;
+            message("unable to save the backup manifest: " + e.getMessage());
+        }
+        // a vcs mode restore walks the commit's trees, it has no use for an index.  An index that
+        // isn't written keeps the stamp of an older manifest, so it's no longer opened
+        if (saved && !isVcsMode()) {
+            try {
+                SnapshotIndex.write(new File(report.runtimeDestination), manifest.getStamp(),
+                        manifest.getEntries());
+            } catch (IOException e) {
+                message("unable to save the backup index: " + e.getMessage());
+            }
+        }
+        if (checksums == null) return saved;
+        try {
+            checksums.save();
+        } catch (IOException e) {
+            message("unable to save the checksums: " + e.getMessage());
+        }
+        return saved;
+    }
+
+    private BackupReport finish() {
+        if (storeLock != null) {
+            try {
+                storeLock.close();
+            } catch (IOException e) {
+                message("unable to release the content store lock: " + e.getMessage());
+            }
+            storeLock = null;
+        }
+        report.endTime = System.currentTimeMillis();
+        if (scheduler != null) {
+            report.concurrency = scheduler.getSummary();
+        }
+        if (report.result == Result.indeterminate) {
+            if (cancelled) {
+                report.result = Result.cancelled;
+            } else if (report.anyErrors) {
+                report.result = Result.fail;
+            } else if (report.missingPath) {
+                report.result = Result.successWithMissingPaths;
+            } else {
+                report.result = Result.success;
+            }
+        }
+        message("");
+        for (String line: report.getSummary()) {
+            message(line);
+        }
+        return report;
+    }
+
+    void showJobInfo() {
+        message("Job Name: "+ job.getName());
+        message("Destination Directory: " + destination);
+        message("File Replacement Policy: " + job.getReplacementPolicy());
+        message("Encrypt Backup Files: " + job.isEncryptionEnabled());
+        if (job.isEncryptionEnabled() && job.isCompressionEnabled()) {
+            int level = job.getCompressionLevel();
+            message("  compress before encrypting, level " +
+                    (level == Deflater.DEFAULT_COMPRESSION ? "default" : String.valueOf(level)));
+        }
+        if (job.isEncryptionEnabled() && job.isBackupJob()) {
+            message("  cipher suite: " + job.getCipherSuite() +
+                    (job.doesJobContainOption(Job.option.cipher) ? "" : " (the fastest on this host)"));
+        }
+        if (job.isBackupJob() && !job.getChecksumHashes().isEmpty()) {
+            message("Record checksums: " + job.getChecksumHashes());
+        }
+        if (job.isBackupJob() && job.isLinkEnabled()) {
+            message("Link unchanged files to the previous date path: true");
+        }
+        message("Append Job Name to destination path: " + job.appendJobName());
+        message("Append Date to destination path: " + job.appendDate());
+        if (job.appendDate()) {
+            String value = Job.option.dateDir.getValue();
+            if (value == null || value.isEmpty()) {
+                message("   keep all date paths");
+            } else {
+                message("  only retain the last " + value + " date paths");
+            }
+        }
+        message("");
+    }
+
+    private void message(String msg) {
+        listener.message(msg);
+    }
+
+    private void fileMessage(String msg) {
+        if (fileLogging) listener.message(msg);
+    }
+
+    /**
+     * perform "backup path copies" for each given path and the given destination directory.  The paths are
+     * enumerated by a DirectoryWalker and each file is scheduled for copying as soon as it's found.
+     * @param paths list of strings that contain path names
+     * @param dir a path to the destination directory
+     */
+    void performBackupPaths(List<String> paths, String dir) {
+        File destinationDir = new File(dir);
+        if (!prepareDestination(destinationDir)) {
+            return;
+        }
+        if (isZipMode() && !openArchive(destinationDir)) {
+            return;
+        }
+        if (isVcsMode()) {
+            try {
+                gitStore.init();
+            } catch (IOException e) {
+                report.anyErrors = true;
+                message("unable to create the repository in " + dir + ": " + e.getMessage());
+                return;
+            }
+        }
+        List<Path> roots = new LinkedList<>();
+        for (String path: paths) {
+            File pathFile = new File(path);
+            if (!pathFile.exists()) {
+                // path doesn't exist,  we'll denote that and just go on.
+                report.missingPath = true;
+                message("path does not exist: " + path);
+            } else {
+                roots.add(pathFile.toPath());
+            }
+        }
+        walk(roots, file -> scheduleFilePathCopyTask(file, destinationDir));
+    }
+
+    /**
+     * performs the Restore Paths operation. In restore modality, the paths and dir concept gets inverted; remember
+     * they are specified in terms of backup.  The only requirement is that the restore operation should be able to
+     * move backed-up content back to a previous state backed up state.
+     * <p>
+     * When the backup has a manifest, the files to restore are looked up in it and nothing is listed at the
+     * backup location.  A backup made before there were manifests is walked instead.
+     * @param selection tells which source files are restored
+     * @param dir the destination to where the backup copy is stored.
+     * @param relativePrefix the relative path name that all the selected files begin with, or null
+     */
+    void performRestorePaths(Predicate<String> selection, String dir, String relativePrefix) {
+        File sourceDir = new File(dir);
+        if (!sourceDir.isDirectory()) {
+            message("the backup directory " + dir + " does not exist");
+            return;
+        }
+        if (forEachBackupEntry(sourceDir, relativePrefix,
+                (relativePathName, entry) -> scheduleRestoreEntry(selection, sourceDir, relativePathName, entry))) {
+            return;
+        }
+        walk(Collections.singletonList(sourceDir.toPath()), file -> {
+            // the checksum files are kept next to the backup tree, they aren't part of it
+            if (file.getName().startsWith(ChecksumManifest.fileNamePrefix) && sourceDir.equals(file.getParentFile())) {
+                return;
+            }
+            scheduleRestoreFile(selection, file);
+        });
+    }
+
+    /**
+     * pass the files of the backup at the given directory that may be selected to the consumer.  With a
+     * prefix, and when the backup has an index, only the entries of the index under the prefix are passed;
+     * otherwise every entry of the manifest is.
+     * @param dir the runtime destination of the backup
+     * @param relativePrefix the relative path name that all the selected files begin with, or null
+     * @param consumer called with the relative path name and the entry of every file
+     * @return false if the backup has neither an index nor a manifest
+     */
+    private boolean forEachBackupEntry(File dir, String relativePrefix,
+                                       BiConsumer<String, BackupManifest.Entry> consumer) {
+        if (relativePrefix != null) {
+            SnapshotIndex index = SnapshotIndex.open(dir);
+            if (index != null) {
+                long[] passed = new long[1];
+                try (SnapshotIndex open = index) {
+                    open.scan(relativePrefix, (relativePathName, entry) -> {
+                        passed[0]++;
+                        consumer.accept(relativePathName, entry);
+                    });
+                    return true;
+                } catch (IOException e) {
+                    message("unable to read the backup index: " + e.getMessage());
+                    if (passed[0] > 0) {
+                        // the files that were passed are being restored, the manifest would pass them again
+                        report.anyErrors = true;
+                        return true;
+                    }
+                }
+            }
+        }
+        BackupManifest backup = BackupManifest.load(dir);
+        if (!backup.exists()) return false;
+        for (Map.Entry<String, BackupManifest.Entry> item : backup.getEntries().entrySet()) {
+            if (cancelled) break;
+            consumer.accept(item.getKey(), item.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * look up a single file of the backup at the given directory.  The index finds it with a binary search, the
+     * manifest is only loaded when the backup has no index, or the index doesn't have the file.
+     * @param dir the runtime destination of the backup
+     * @param relativePathName the relative path name of the file
+     * @return the entry of the file, or null if the backup doesn't have it
+     */
+    private BackupManifest.Entry findBackupEntry(File dir, String relativePathName) {
+        SnapshotIndex index = SnapshotIndex.open(dir);
+        if (index != null) {
+            try (SnapshotIndex open = index) {
+                BackupManifest.Entry entry = open.get(relativePathName);
+                // a name with a new line is only in the manifest
+                if (entry != null) return entry;
+            } catch (IOException e) {
+                message("unable to read the backup index: " + e.getMessage());
+            }
+        }
+        return BackupManifest.load(dir).get(relativePathName);
+    }
+
+    /**
+     * schedule the restore of a file that a copy mode backup's manifest lists, if it's selected.  Only the
+     * selected files are touched at the backup location, and they are scheduled with the size the manifest
+     * has for them.  The manifest lists every file at the destination, seedManifest recorded the copies that
+     * were there before it.
+     * @param selection tells which source files are restored
+     * @param sourceDir the runtime destination of the backup
+     * @param relativePathName the relative path name of the file
+     * @param entry the manifest's entry for the file
+     */
+    void scheduleRestoreEntry(Predicate<String> selection, File sourceDir, String relativePathName,
+                              BackupManifest.Entry entry) {
+        // like the walk, only the content stored the job's way is restored
+        if (cancelled || entry.isEncrypted() != job.isEncryptionEnabled()) return;
+        String originPath = convertRelativePathToSourcePath(relativePathName);
+        if (selection.test(originPath)) {
+            File backupFile = makeBackupFile(sourceDir, relativePathName, entry.isEncrypted());
+            File originFile = new File(originPath);
+            scheduleTask(backupFile, originFile, entry.getSize(),
+                    () -> performRestoreFileCopy(backupFile, entry.getLastModified(), originFile));
+        }
+    }
+
+    /**
+     * performs the restore of a store mode snapshot.  The snapshot's manifest lists every file and the hash
+     * of its content; each file on the paths is restored from its blob in the content store.
+     * @param selection tells which source files are restored
+     * @param dir the runtime destination of the snapshot
+     * @param relativePrefix the relative path name that all the selected files begin with, or null
+     */
+    void performRestoreSnapshot(Predicate<String> selection, String dir, String relativePrefix) {
+        boolean found = forEachBackupEntry(new File(dir), relativePrefix, (relativePathName, entry) -> {
+            // like the copy mode restore, only the content stored the job's way is restored
+            if (cancelled || entry.getHash() == null || entry.isEncrypted() != job.isEncryptionEnabled()) return;
+            String originPath = convertRelativePathToSourcePath(relativePathName);
+            if (selection.test(originPath)) {
+                File originFile = new File(originPath);
+                File blob = contentStore.getBlobFile(entry.getHash(), entry.isEncrypted());
+                scheduleTask(blob, originFile, entry.getSize(), () -> performRestoreBlobCopy(entry, originFile));
+            }
+        });
+        if (!found) {
+            report.anyErrors = true;
+            message("no snapshot was found at " + dir);
+        }
+    }
+
+    /**
+     * performs the restore of a zip mode archive.  The entries are found through the archive's central
+     * directory, and each entry on the paths is extracted by its own task, so the entries are decompressed
+     * in parallel.
+     * @param selection tells which source files are restored
+     * @param dir the runtime destination of the archive
+     */
+    void performRestoreArchive(Predicate<String> selection, String dir) {
+        File archiveFile = new File(dir, archiveFileName);
+        if (!archiveFile.isFile()) {
+            report.anyErrors = true;
+            message("no archive was found at " + archiveFile.getPath());
+            return;
+        }
+        try {
+            archiveReader = new ZipArchiveReader(archiveFile);
+        } catch (IOException e) {
+            report.anyErrors = true;
+            message("unable to read the archive " + archiveFile.getPath() + ": " + e.getMessage());
+            return;
+        }
+        ZipArchiveReader reader = archiveReader;
+        for (ZipArchiveReader.Entry entry : reader.getEntries()) {
+            if (cancelled) break;
+            // like the copy mode restore, only the content stored the job's way is restored
+            if (entry.isDirectory() || entry.isEncrypted() != job.isEncryptionEnabled()) continue;
+            String originPath = convertRelativePathToSourcePath(fromEntryName(entry.getPathName()));
+            if (selection.test(originPath)) {
+                File originFile = new File(originPath);
+                scheduleTask(archiveFile, originFile, entry.getCompressedSize(),
+                        () -> performRestoreArchiveEntry(reader, entry, originFile));
+            }
+        }
+    }
+
+    /**
+     * performs the restore of a vcs mode commit.  The commit's trees are walked and every file on the paths
+     * is restored from its blob by its own task.
+     * @param selection tells which source files are restored
+     * @param dir the repository
+     * @param datePath the date path tag of the commit to restore, or null to restore the latest commit
+     */
+    void performRestoreCommit(Predicate<String> selection, String dir, String datePath) {
+        GitObjectStore store = new GitObjectStore(new File(dir));
+        String ref = (datePath == null) ? GitObjectStore.branch : GitObjectStore.tagPrefix + datePath;
+        String commit = store.readRef(ref);
+        if (commit == null) {
+            report.anyErrors = true;
+            message("no commit was found for " + ref + " in " + dir);
+            return;
+        }
+        message("restoring commit " + commit);
+        // git doesn't keep the last modified time, the manifest has it for the files of the latest backup
+        BackupManifest times = BackupManifest.load(new File(dir));
+        try {
+            store.walkTree(store.readCommitTree(commit), (path, hash) -> {
+                if (cancelled) return;
+                String relativePathName = fromEntryName(path);
+                String originPath = convertRelativePathToSourcePath(relativePathName);
+                if (selection.test(originPath)) {
+                    File originFile = new File(originPath);
+                    BackupManifest.Entry entry = times.get(relativePathName);
+                    long lastModified = (entry != null && hash.equals(entry.getHash())) ? entry.getLastModified() : 0;
+                    scheduleTask(store.getObjectFile(hash), originFile,
+                            () -> performRestoreVcsFile(store, hash, lastModified, originFile));
+                }
+            });
+        } catch (IOException e) {
+            report.anyErrors = true;
+            message("unable to read commit " + commit + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * record the copies a destination already has in its new manifest.  A destination that was backed up
+     * before it got a manifest keeps copies of files whose source has since been deleted; the backup never
+     * sees those again, so the restore would no longer find them.  This walks the destination once, when its
+     * manifest is first created.  The size of an encrypted copy's content isn't known without decrypting it,
+     * and the checksum isn't known either; the backup replaces the entries of the files it still has.
+     * @param dir the runtime destination of the backup
+     */
+    private void seedManifest(File dir) {
+        if (!dir.isDirectory()) return;
+        String dirPath = dir.getPath();
+        int[] seeded = new int[1];
+        walk(Collections.singletonList(dir.toPath()), file -> {
+            String name = file.getName();
+            if (name.startsWith(BackupManifest.fileName) || name.startsWith(SnapshotIndex.fileName)) return;
+            if (dir.equals(file.getParentFile()) &&
+                    (name.startsWith(ChecksumManifest.fileNamePrefix) || name.equals(JobKey.fileName))) {
+                return;
+            }
+            String relativePathName = file.getPath().substring(dirPath.length() + 1);
+            boolean encrypted = name.endsWith(encryptionFileExtension);
+            if (encrypted) {
+                relativePathName = relativePathName.substring(0,
+                        relativePathName.length() - encryptionFileExtension.length());
+            }
+            manifest.put(relativePathName, new BackupManifest.Entry(encrypted ? -1 : file.length(),
+                    file.lastModified(), encrypted, null));
+            seeded[0]++;
+        });
+        if (seeded[0] > 0) message("recorded " + seeded[0] + " existing copies in the new manifest of " + dirPath);
+    }
+
+    /**
+     * walk the given roots, passing each file found to the given consumer on the calling thread.
+     * @param roots the files and directories to walk
+     * @param consumer called for each file found
+     */
+    private void walk(List<Path> roots, Consumer<File> consumer) {
+        DirectoryWalker walker = new DirectoryWalker();
+        walker.setErrorHandler((path, e) -> {
+            report.anyErrors = true;
+            message("unable to read directory " + path + ": " + e.getMessage());
+        });
+        walker.start(roots);
+        try {
+            Path path;
+            while ((path = walker.take()) != null) {
+                if (cancelled) {
+                    walker.cancel();
+                    break;
+                }
+                consumer.accept(path.toFile());
+            }
+        } catch (InterruptedException e) {
+            walker.cancel();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * schedule the restore of the given file from the backup tree, if it belongs to one of the paths
+     * @param selection tells which source files are restored
+     * @param file a file in the backup tree
+     */
+    void scheduleRestoreFile(Predicate<String> selection, File file) {
+        if (file.getName().startsWith(BackupManifest.fileName) || file.getName().startsWith(SnapshotIndex.fileName)) {
+            return;
+        }
+        // depending on whether the job is encrypted or not and whether the
+        // file under consideration is encrypted, we decide if it should go on
+        // for further processing.  I.E.  The restore operation for encrypted job will only
+        // continue processing files that were produced by an encrypted backup operation.  Its
+        // possible and reasonable for the restore from directory to contain content the is both encrypted
+        // and non-encrypted content. Similarly, jobs without the "encrypt" option set should only process
+        // non-encrypted files for the restore.
+        boolean isEncryptedFile = file.getName().endsWith(encryptionFileExtension);
+        if (isEncryptedFile != job.isEncryptionEnabled()) return;
+        File backupFile = file;
+        if (isEncryptedFile) {
+            String fileName = file.getName();
+            backupFile = new File(file.getParentFile(), fileName.substring(0,
+                    fileName.length()-encryptionFileExtension.length()));
+        }
+        String originPath = convertBackupPathToSourcePath(backupFile);
+        if (selection.test(originPath)) {
+            scheduleFilePathCopyTask(file, new File(originPath));
+        }
+    }
+
+    String convertBackupPathToSourcePath(File backupFile) {
+        String backupPath = backupFile.getPath();
+        String destDir = destination;
+        if (destDir == null || destDir.isEmpty()) return backupFile.getPath();
+        if (job.appendJobName()) {
+            // remove jobName from path
+            int posStart = destDir.length() + 1;
+            int posEnd = backupPath.indexOf("\\",posStart + 1);
+            backupPath = backupPath.substring(0, posStart) + backupPath.substring(posEnd + 1);
+         }
+        if (job.appendDate()) {
+            // remove date from path
+            int posStart =destDir.length() + 1;
+            int posEnd = backupPath.indexOf("\\",posStart + 1);
+            backupPath = backupPath.substring(0, posStart) + backupPath.substring(posEnd + 1);
+        }
+        String path = backupPath.substring(destDir.length()+ 1);
+        String driveLetter = "";
+        int drivePos = path.indexOf("\\");
+        if (drivePos >0) driveLetter = path.substring(0,drivePos);
+        path = path.substring(drivePos);
+        return driveLetter + ":" + path;
+    }
+
+    /*
+     * prepares the destination dir by making sure that all intermediary
+     * path directories are made.
+     * @return true, If the destination parents directories all exist.
+     *         false, if the destination directory is non-existent.
+     */
+    boolean prepareDestination(File destinationDir) {
+        if (!Arrays.asList(File.listRoots()).contains(destinationDir)) {
+            destinationDir.mkdirs();
+        }
+        if (!destinationDir.exists()) {
+            report.result = Result.nonExistentDestination;
+            message("the destination directory " + destinationDir.getPath() + " cannot be created or accessed");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * schedule the copy of a single file.
+     * @param pathFile the file to copy
+     * @param destination for a backup, the destination directory; for a restore, the origin file
+     *                    the backed up file gets restored to.
+     */
+    void scheduleFilePathCopyTask(File pathFile, File destination) {
+        if (report.isBackupJob()) {
+            scheduleTask(pathFile, destination, () -> performBackupFileCopy(pathFile, destination));
+        } else {
+            // the walk is listing the backup anyway; a copy has the last modified time of its source
+            scheduleTask(pathFile, destination,
+                    () -> performRestoreFileCopy(pathFile, pathFile.lastModified(), destination));
+        }
+    }
+
+    /**
+     * schedule the given work, which reads the source file and writes to the destination.
+     * @param source the file that is read, its device and size are used to schedule the work
+     * @param destination the file or directory that is written
+     * @param work the copy to perform
+     */
+    void scheduleTask(File source, File destination, Runnable work) {
+        scheduleTask(source, destination, -1, work);
+    }
+
+    /**
+     * schedule the given work, which reads part of the source file and writes to the destination.
+     * @param source the file that is read, its device is used to schedule the work
+     * @param destination the file or directory that is written
+     * @param bytes the number of bytes the work reads, or -1 if it reads the whole source file
+     * @param work the copy to perform
+     */
+    void scheduleTask(File source, File destination, long bytes, Runnable work) {
+        tracker.taskScheduled();
+        if (virtualCopies != null) {
+            scheduleVirtualCopyTask(source, destination, bytes, work);
+            return;
+        }
+        final DeviceScheduler.Ticket ticket;
+        try {
+            // wait until both devices can take another copy, this pushes back on the walker
+            // when the copies fall behind
+            ticket = scheduler.acquire(source.toPath(), destination.toPath());
+        } catch (InterruptedException e) {
+            tracker.taskCompleted();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            executorService.submit(()-> {
+                try {
+                    run(source, bytes, work, ticket);
+                } finally {
+                    tracker.taskCompleted();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the job was cancelled
+            scheduler.release(ticket, 0);
+            tracker.taskCompleted();
+        }
+    }
+
+    /**
+     * schedule the copy of a single file on its own virtual thread.  The walk is only held up when the
+     * number of copies in flight reaches maxVirtualCopies; the device permits are waited for on the
+     * virtual thread.
+     */
+    private void scheduleVirtualCopyTask(File source, File destination, long bytes, Runnable work) {
+        try {
+            virtualCopies.acquire();
+        } catch (InterruptedException e) {
+            tracker.taskCompleted();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            executorService.submit(()-> {
+                try {
+                    if (cancelled) return;
+                    DeviceScheduler.Ticket ticket = scheduler.acquire(source.toPath(), destination.toPath());
+                    run(source, bytes, work, ticket);
+                } catch (InterruptedException e) {
+                    // the job was cancelled
+                } finally {
+                    virtualCopies.release();
+                    tracker.taskCompleted();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the job was cancelled
+            virtualCopies.release();
+            tracker.taskCompleted();
+        }
+    }
+
+    private void run(File source, long bytes, Runnable work, DeviceScheduler.Ticket ticket) {
+        long bytesRead = 0;
+        try {
+            if (cancelled) return;
+            bytesRead = (bytes < 0) ? source.length() : bytes;
+            work.run();
+        } finally {
+            scheduler.release(ticket, bytesRead);
+        }
+    }
+
+    /**
+     * performs the backup of a single file to the given destination directory.
+     * This method implements the job's replacement policy
+     * @param pathFile - path to the file to be copied
+     * @param destinationDir path to the destination directory
+     */
+    void performBackupFileCopy(File pathFile, File destinationDir) {
+        boolean encrypt = job.isEncryptionEnabled();
+        String relativePathName = getRelativePathName(pathFile);
+        long size = pathFile.length();
+        long lastModified = pathFile.lastModified();
+        if (isStoreMode()) {
+            performStoreFileCopy(pathFile, relativePathName, size, lastModified, encrypt);
+            return;
+        }
+        if (isZipMode()) {
+            performArchiveFileCopy(pathFile, relativePathName, encrypt);
+            return;
+        }
+        if (isVcsMode()) {
+            performVcsFileCopy(pathFile, relativePathName, size, lastModified);
+            return;
+        }
+        File destinationFile = encrypt ? makeEncryptedDestinationFile(pathFile, destinationDir) :
+                makeDestinationFile(pathFile, destinationDir);
+        if (job.getReplacementPolicy().equals("byDate") &&
+                isBackupUpToDate(relativePathName, size, lastModified, encrypt, pathFile, destinationFile)) {
+            if (!manifest.exists()) {
+                // the destination predates the manifest, record the up-to-date copy
+                manifest.put(relativePathName, new BackupManifest.Entry(size, lastModified, encrypt, null));
+            }
+            report.noFilesSkipped.increment();
+            return;
+        }
+        if (previousSnapshot != null &&
+                linkToPreviousSnapshot(relativePathName, size, lastModified, encrypt, destinationFile)) {
+            report.noFilesLinked.increment();
+            return;
+        }
+        ChecksumManifest.Digests stored = null;
+        ChecksumManifest.Digests content = null;
+        if (checksums != null) {
+            try {
+                stored = checksums.newDigests();
+                // the manifest keeps the checksum of the content, an encrypted copy stores other content
+                content = encrypt ? new ChecksumManifest.Digests(Collections.singletonList(
+                        DataEncryption.Hash.SHA256)) : stored;
+            } catch (IOException e) {
+                report.anyErrors = true;
+                report.noFileCopyErrors.increment();
+                fileMessage("error copying " + pathFile.getPath() + ": " + e.getMessage());
+                return;
+            }
+        }
+        boolean copied;
+        if (encrypt) {
+            copied = doEncryptFilePathCopy(pathFile, destinationFile, content, stored);
+        } else {
+            copied = doFilePathCopy(pathFile, destinationFile, stored);
+        }
+        if (copied) {
+            String hash = null;
+            if (checksums != null) {
+                checksums.put(toEntryName(relativePathName) + (encrypt ? encryptionFileExtension : ""), stored);
+                hash = content.getHexValue(DataEncryption.Hash.SHA256);
+            }
+            manifest.put(relativePathName, new BackupManifest.Entry(size, lastModified, encrypt, hash));
+            fileMessage("backed up: " + pathFile.getPath());
+        }
+    }
+
+    /**
+     * performs the store mode backup of a single file.  With the byDate policy, a file that matches its
+     * entry in the previous snapshot keeps the previous hash and isn't read at all; every other file is
+     * hashed and its content stored, unless the store already has it.  Large files are stored as chunks, so
+     * only their changed chunks are written.
+     */
+    private void performStoreFileCopy(File pathFile, String relativePathName, long size, long lastModified,
+                                      boolean encrypt) {
+        if (job.getReplacementPolicy().equals("byDate")) {
+            BackupManifest.Entry previous = previousSnapshot.get(relativePathName);
+            if (previous != null && previous.getHash() != null && previous.matches(size, lastModified, encrypt)
+                    && contentStore.contains(previous.getHash(), encrypt, previous.isChunked())) {
+                manifest.put(relativePathName, previous);
+                report.noFilesSkipped.increment();
+                return;
+            }
+        }
+        try {
+            boolean chunked = contentStore.shouldChunk(size);
+            String hash = contentStore.store(pathFile, encrypt ? job.getPassword() : null, chunked,
+                    encrypt ? chooseCodec(pathFile) : DataEncryption.Codec.none);
+            manifest.put(relativePathName, new BackupManifest.Entry(size, lastModified, encrypt, hash, chunked));
+            report.noFilesCopied.increment();
+            fileMessage("backed up: " + pathFile.getPath());
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error storing " + pathFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * performs the vcs mode backup of a single file.  With the byDate policy, a file that matches its entry
+     * in the previous backup keeps its blob and isn't read at all; every other file is hashed and written as
+     * a blob, unless the repository already has it.
+     */
+    private void performVcsFileCopy(File pathFile, String relativePathName, long size, long lastModified) {
+        if (job.getReplacementPolicy().equals("byDate")) {
+            BackupManifest.Entry previous = previousSnapshot.get(relativePathName);
+            if (previous != null && previous.getHash() != null && previous.matches(size, lastModified, false)
+                    && gitStore.contains(previous.getHash())) {
+                manifest.put(relativePathName, previous);
+                report.noFilesSkipped.increment();
+                return;
+            }
+        }
+        try {
+            String hash = gitStore.writeBlob(pathFile);
+            manifest.put(relativePathName, new BackupManifest.Entry(size, lastModified, false, hash));
+            report.noFilesCopied.increment();
+            fileMessage("backed up: " + pathFile.getPath());
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error storing " + pathFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * performs the zip mode backup of a single file.  The file is compressed on the calling thread, in
+     * parallel with the other files, and then appended to the archive.  A zip archive is always written in
+     * full, so the replacement policy doesn't apply.
+     */
+    private void performArchiveFileCopy(File pathFile, String relativePathName, boolean encrypt) {
+        try {
+            int level = isWorthCompressing(pathFile) ? job.getCompressionLevel() : Deflater.NO_COMPRESSION;
+            ZipArchiveWriter.Entry entry = ZipArchiveWriter.compress(pathFile, toEntryName(relativePathName),
+                    level, dataEncryption, encrypt ? job.getPassword() : null);
+            if (cancelled) {
+                entry.discard();
+                return;
+            }
+            archive.write(entry);
+            report.noFilesCopied.increment();
+            fileMessage("backed up: " + pathFile.getPath());
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error archiving " + pathFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * hard link the copy of an unchanged file in the new date path to its copy in the previous date path, so
+     * the new date path is a complete tree without another copy of the file's content.  The file is copied
+     * instead when it changed or isn't in the previous date path, or when the link can't be made: the
+     * destination's file system doesn't support hard links, or the copy has as many links as it can have.
+     * @return true if the file was linked
+     */
+    private boolean linkToPreviousSnapshot(String relativePathName, long size, long lastModified, boolean encrypt,
+                                           File destinationFile) {
+        BackupManifest.Entry entry = previousSnapshot.get(relativePathName);
+        if (entry == null || !entry.matches(size, lastModified, encrypt)) return false;
+        // a linked file keeps the checksums of its copy, a file without them is copied to get them
+        String storedPathName = toEntryName(relativePathName) + (encrypt ? encryptionFileExtension : "");
+        if (checksums != null && !checksums.copy(previousChecksums, storedPathName)) return false;
+        File previousFile = makeBackupFile(previousSnapshot.getDirectory(), relativePathName, encrypt);
+        try {
+            destinationFile.getParentFile().mkdirs();
+            Files.createLink(destinationFile.toPath(), previousFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+        manifest.put(relativePathName, entry);
+        fileMessage("linked: " + destinationFile.getPath());
+        return true;
+    }
+
+    /**
+     * lets you know if the backed up copy of a file is up-to-date.  When the destination has a manifest, the
+     * answer comes from the manifest and the destination isn't touched; otherwise the last modified dates
+     * of the source and destination files are compared.
+     */
+    private boolean isBackupUpToDate(String relativePathName, long size, long lastModified, boolean encrypt,
+                                     File pathFile, File destinationFile) {
+        if (manifest.exists()) {
+            BackupManifest.Entry entry = manifest.get(relativePathName);
+            return entry != null && entry.matches(size, lastModified, encrypt);
+        }
+        return !doesSourceDateExceedDestinationDate(pathFile, destinationFile);
+    }
+
+    /**
+     * performs the restore of a single backed up file to its origin.
+     * This method implements the job's replacement policy; like performRestoreBlobCopy, it only looks at the
+     * origin file, the backup file's last modified time is given.
+     * @param backupFile - path to the backed up file
+     * @param lastModified the last modified time of the backed up file, the time of its source when it was
+     *                     backed up
+     * @param originFile path to the file being restored
+     */
+    void performRestoreFileCopy(File backupFile, long lastModified, File originFile) {
+        boolean resume = resumeRestore && job.isEncryptionEnabled() && originFile.exists();
+        if (resume && originFile.lastModified() == lastModified) {
+            // the interrupted restore completed this file
+            report.noFilesSkipped.increment();
+            return;
+        }
+        if (!resume && job.getReplacementPolicy().equals("byDate") && originFile.exists() &&
+                lastModified <= originFile.lastModified()) {
+            report.noFilesSkipped.increment();
+            return;
+        }
+        if (job.isEncryptionEnabled()) {
+            try {
+                doDecryptFilePathCopy(backupFile, lastModified, originFile, resume);
+            } catch (InvalidKeyException e) {
+                report.noEncryptedFilesSkipped.increment();
+                fileMessage("skipped: " + backupFile.getPath() + " - invalid encryption key");
+                return;
+            } catch (IOException e) {
+                report.anyErrors = true;
+                report.noFileCopyErrors.increment();
+                fileMessage("error restoring " + originFile.getPath() + ": " + e.getMessage());
+                return;
+            }
+        } else if (!doFilePathCopy(backupFile, originFile)) {
+            // the error is already reported
+            return;
+        }
+        fileMessage("restored: " + originFile.getPath());
+    }
+
+    /**
+     * performs the restore of a single file from its blob in the content store.
+     * This method implements the job's replacement policy
+     * @param entry the snapshot's entry for the file
+     * @param originFile path to the file being restored
+     */
+    void performRestoreBlobCopy(BackupManifest.Entry entry, File originFile) {
+        if (job.getReplacementPolicy().equals("byDate") && originFile.exists() &&
+                entry.getLastModified() <= originFile.lastModified()) {
+            report.noFilesSkipped.increment();
+            return;
+        }
+        try {
+            contentStore.restore(entry.getHash(), entry.isEncrypted(), entry.isChunked(), job.getPassword(),
+                    originFile);
+            originFile.setLastModified(entry.getLastModified());
+            report.noFilesCopied.increment();
+            fileMessage("restored: " + originFile.getPath());
+        } catch (InvalidKeyException e) {
+            report.noEncryptedFilesSkipped.increment();
+            fileMessage("skipped: " + originFile.getPath() + " - invalid encryption key");
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error restoring " + originFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * performs the restore of a single file from a vcs mode commit.
+     * This method implements the job's replacement policy, which can only be applied when the last modified
+     * time of the file is known
+     * @param store the repository
+     * @param hash the hash of the file's blob
+     * @param lastModified the last modified time of the file when it was backed up, or 0 if it's not known
+     * @param originFile path to the file being restored
+     */
+    void performRestoreVcsFile(GitObjectStore store, String hash, long lastModified, File originFile) {
+        if (job.getReplacementPolicy().equals("byDate") && lastModified != 0 && originFile.exists() &&
+                lastModified <= originFile.lastModified()) {
+            report.noFilesSkipped.increment();
+            return;
+        }
+        try {
+            store.readBlob(hash, originFile);
+            if (lastModified != 0) originFile.setLastModified(lastModified);
+            report.noFilesCopied.increment();
+            fileMessage("restored: " + originFile.getPath());
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error restoring " + originFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * performs the restore of a single file from the zip mode archive.
+     * This method implements the job's replacement policy
+     * @param reader the archive
+     * @param entry the archive's entry for the file
+     * @param originFile path to the file being restored
+     */
+    void performRestoreArchiveEntry(ZipArchiveReader reader, ZipArchiveReader.Entry entry, File originFile) {
+        if (job.getReplacementPolicy().equals("byDate") && originFile.exists() &&
+                entry.getLastModified() <= originFile.lastModified()) {
+            report.noFilesSkipped.increment();
+            return;
+        }
+        try {
+            reader.extract(entry, originFile, dataEncryption, job.getPassword());
+            originFile.setLastModified(entry.getLastModified());
+            report.noFilesCopied.increment();
+            fileMessage("restored: " + originFile.getPath());
+        } catch (InvalidKeyException e) {
+            report.noEncryptedFilesSkipped.increment();
+            fileMessage("skipped: " + originFile.getPath() + " - invalid encryption key");
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error restoring " + originFile.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * determine whether the date last mod time of the source pathFile is newer than
+     * the last date mod time of the destination
+     * @param pathFile
+     * @param destinationFile
+     * @return true, if the date last mod time of the source pathFile is newer than
+     * the last date mod time of the destination or the destination file doesn't exist<br>
+     * false, if the last mod time of the source pathFile is older or equal to
+     * the last date mod time of the destination file
+     */
+    boolean doesSourceDateExceedDestinationDate(File pathFile, File destinationFile) {
+        boolean result = true;
+        long srcDate = pathFile.lastModified();
+        if (destinationFile.exists()) result = srcDate > destinationFile.lastModified();
+        return result;
+    }
+
+    /**
+     * performs the actual copy for the given path file and destination file
+     * @param pathFile - path to the file to be copied
+     * @param destinationFile path to the destination file
+     * @return true if the file was copied
+     */
+    boolean doFilePathCopy(File pathFile, File destinationFile) {
+        return doFilePathCopy(pathFile, destinationFile, null);
+    }
+
+    /**
+     * performs the actual copy for the given path file and destination file, digesting the content on the way
+     * @param pathFile - path to the file to be copied
+     * @param destinationFile path to the destination file
+     * @param digests digests the content, or null
+     * @return true if the file was copied
+     */
+    boolean doFilePathCopy(File pathFile, File destinationFile, ChecksumManifest.Digests digests) {
+        try {
+            copyFileUsingChannel(pathFile, destinationFile, digests);
+            report.noFilesCopied.increment();
+            return true;
+        } catch (IOException e) {
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error copying " + pathFile.getPath() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * performs the encrypted copy for the given path file and destination file, digesting the content as it's
+     * read and the encrypted file as it's written.  A copy that fails is deleted, so a later byDate backup
+     * doesn't take it for an up-to-date copy.
+     * @param content digests the content of the path file, or null
+     * @param stored digests the encrypted destination file, or null
+     * @return true if the file was copied
+     */
+    boolean doEncryptFilePathCopy(File pathFile, File destinationFile, ChecksumManifest.Digests content,
+                                  ChecksumManifest.Digests stored) {
+        try {
+            dataEncryption.cipherStreamEncrypt(job.getPassword(), pathFile, destinationFile, chooseCodec(pathFile),
+                    content, stored);
+        } catch (IOException e) {
+            destinationFile.delete();
+            report.anyErrors = true;
+            report.noFileCopyErrors.increment();
+            fileMessage("error copying " + pathFile.getPath() + ": " + e.getMessage());
+            return false;
+        }
+        destinationFile.setLastModified(pathFile.lastModified());
+        report.noFilesCopied.increment();
+        return true;
+    }
+
+    /**
+     * choose the codec a file is compressed with before it's encrypted.  The job's codec is used, unless
+     * the file isn't worth compressing.
+     * @param pathFile the file that is about to be encrypted
+     * @return the codec
+     */
+    private DataEncryption.Codec chooseCodec(File pathFile) {
+        DataEncryption.Codec codec = dataEncryption.getCodec();
+        if (codec == DataEncryption.Codec.none) return codec;
+        return isWorthCompressing(pathFile) ? codec : DataEncryption.Codec.none;
+    }
+
+    /**
+     * probe the given file to find out if it's worth compressing, and record the decision in the report
+     * @param pathFile the file that is about to be compressed
+     * @return true if the file should be compressed
+     */
+    private boolean isWorthCompressing(File pathFile) {
+        switch (CompressionProbe.probe(pathFile)) {
+            case extension:
+                report.noFilesNotCompressedByType.increment();
+                fileMessage("not compressed, the file type is already compressed: " + pathFile.getPath());
+                return false;
+            case entropy:
+                report.noFilesNotCompressedByContent.increment();
+                fileMessage("not compressed, the content is incompressible: " + pathFile.getPath());
+                return false;
+            default:
+                report.noFilesCompressed.increment();
+                return true;
+        }
+    }
+
+    /**
+     * performs the decrypted copy for the given backup file and origin file
+     * @param lastModified the last modified time the origin file gets
+     * @param resume true to keep what an interrupted restore wrote of the origin file, see setResumeRestore
+     */
+    void doDecryptFilePathCopy(File pathFile, long lastModified, File destinationFile, boolean resume)
+            throws InvalidKeyException, IOException {
+        if (resume) {
+            long kept = dataEncryption.cipherResumeDecrypt(job.getPassword(), pathFile, destinationFile);
+            if (kept > 0) fileMessage("resumed: " + destinationFile.getPath() + " after " + kept + " bytes");
+        } else {
+            dataEncryption.cipherStreamDecrypt(job.getPassword(), pathFile, destinationFile);
+        }
+        destinationFile.setLastModified(lastModified);
+        report.noFilesCopied.increment();
+    }
+
+    File makeDestinationFile(File srcFile, File destinationDir) {
+        String path = destinationDir.getPath() + "\\" + getRelativePathName(srcFile);
+        return new File(path);
+    }
+
+    File makeEncryptedDestinationFile(File srcFile, File destinationDir) {
+        String path = destinationDir.getPath() + "\\" + getRelativePathName(srcFile) + encryptionFileExtension;
+        return new File(path);
+    }
+
+    /**
+     * @return the file that a copy mode backup stored for the given relative path name, the same file
+     * makeDestinationFile and makeEncryptedDestinationFile give
+     */
+    File makeBackupFile(File destinationDir, String relativePathName, boolean encrypted) {
+        String path = destinationDir.getPath() + "\\" + relativePathName;
+        return new File(encrypted ? path + encryptionFileExtension : path);
+    }
+
+    String getRelativePathName (File file) {
+        return getRelativePathName(file.getPath());
+    }
+
+    String getRelativePathName (String path) {
+        String relativePathName = path;
+        if (relativePathName.startsWith("\\\\")) {
+            // this is a host name, strip the host name from the relativePathName
+            int idx = relativePathName.indexOf("\\", 2);
+            relativePathName = relativePathName.substring(idx);
+        } else {
+            if (OS.current() == OS.WINDOWS) {
+                relativePathName = relativePathName.replaceFirst(":", "");
+            }
+            // currently we are only supporting Windows file system;
+            // it's our goal is to make this cross-platform interoperable.
+        }
+        return relativePathName;
+    }
+
+    /**
+     * the inverse of getRelativePathName
+     * @param relativePathName a relative path name
+     * @return the path of the source file the relative path name was made from
+     */
+    String convertRelativePathToSourcePath(String relativePathName) {
+        if (relativePathName.startsWith("\\") || OS.current() != OS.WINDOWS) {
+            return relativePathName;
+        }
+        int drivePos = relativePathName.indexOf("\\");
+        if (drivePos <= 0) return relativePathName;
+        return relativePathName.substring(0, drivePos) + ":" + relativePathName.substring(drivePos);
+    }
+
+    /**
+     * convert a relative path name to a zip entry name, which uses "/" separators and has no leading "/"
+     */
+    static String toEntryName(String relativePathName) {
+        String name = relativePathName.replace('\\', '/');
+        while (name.startsWith("/")) name = name.substring(1);
+        return name;
+    }
+
+    /**
+     * the inverse of toEntryName
+     */
+    static String fromEntryName(String name) {
+        if (OS.current() != OS.WINDOWS) return "/" + name;
+        String relativePathName = name.replace('/', '\\');
+        int drivePos = relativePathName.indexOf('\\');
+        if (drivePos != 1) {
+            // not a drive letter, it's the share of a host name path
+            relativePathName = "\\" + relativePathName;
+        }
+        return relativePathName;
+    }
+
+    private void copyFileUsingChannel(File source, File dest, ChecksumManifest.Digests digests) throws IOException {
+        if (!dest.exists()) {
+            dest.getParentFile().mkdirs();
+            dest.createNewFile();
+        }
+        try (FileChannel sourceChannel = new FileInputStream(source).getChannel();
+             FileChannel destChannel = new FileOutputStream(dest).getChannel()) {
+            if (digests == null) {
+                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            } else {
+                // the content passes through a buffer instead of going from channel to channel, so it's
+                // digested on the way
+                ReadableByteChannel in = digests.digestReads(sourceChannel);
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        destChannel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+        Path sourcePath = Paths.get(source.getPath());
+        Path destinationPath = Paths.get(dest.getPath());
+        dest.setExecutable(true,false);
+        Files.setLastModifiedTime(destinationPath, Files.getLastModifiedTime(sourcePath));
+    }
+}
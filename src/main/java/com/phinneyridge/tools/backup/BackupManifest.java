@@ -0,0 +1,268 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * BackupManifest is the index of the files stored at a job's runtime destination.  For every backed up
+ * file it records the relative path name, the size and last modified time of the source file when it was
+ * backed up, an optional hash and whether the stored copy is encrypted.  It's saved at the runtime
+ * destination at the end of each backup, so later byDate runs can decide which files changed by comparing
+ * the source scan against the manifest in memory, without touching the destination for unchanged files.
+ * <p>
+ * The manifest is a gzip compressed text file.  The first line identifies the format, the second has the
+ * stamp of the save, which changes each time the manifest is saved; every other line is one entry: size,
+ * last modified, flags, hash and relative path name, separated by tabs.  The flags are "e" for an encrypted
+ * copy and "c" for content that is stored as chunks, or "-" for neither.
+ */
+public class BackupManifest {
+    public static final String fileName = "backup.manifest";
+    private static final String formatLine = "# backup-utility manifest 1";
+    private static final String stampPrefix = "# stamp ";
+
+    /**
+     * a single file in the manifest
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final boolean encrypted;
+        private final String hash;
+        private final boolean chunked;
+
+        public Entry(long size, long lastModified, boolean encrypted, String hash) {
+            this(size, lastModified, encrypted, hash, false);
+        }
+
+        public Entry(long size, long lastModified, boolean encrypted, String hash, boolean chunked) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.encrypted = encrypted;
+            this.hash = hash;
+            this.chunked = chunked;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        /**
+         * @return the hash of the source file content, or null if it wasn't recorded
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return true if the content is stored in the content store as a list of chunks
+         */
+        public boolean isChunked() {
+            return chunked;
+        }
+
+        /**
+         * lets you know if the source file still matches this entry
+         * @param size the current size of the source file
+         * @param lastModified the current last modified time of the source file
+         * @param encrypted whether the file would be stored encrypted
+         * @return true if the stored copy is up-to-date
+         */
+        public boolean matches(long size, long lastModified, boolean encrypted) {
+            return this.size == size && this.lastModified == lastModified && this.encrypted == encrypted;
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final boolean existed;
+    private String stamp;
+
+    private BackupManifest(File directory, boolean existed) {
+        this.directory = directory;
+        this.existed = existed;
+    }
+
+    /**
+     * create a new, empty manifest for the given directory; it replaces any manifest in the directory when
+     * it's saved
+     * @param directory the runtime destination
+     * @return the empty manifest
+     */
+    public static BackupManifest empty(File directory) {
+        return new BackupManifest(directory, false);
+    }
+
+    /**
+     * load the manifest stored in the given directory
+     * @param directory the runtime destination
+     * @return the manifest.  If there is no manifest in the directory, or it can't be read, an empty
+     * manifest is returned for which exists() is false.
+     */
+    public static BackupManifest load(File directory) {
+        File file = new File(directory, fileName);
+        if (!file.isFile()) return new BackupManifest(directory, false);
+        BackupManifest manifest = new BackupManifest(directory, true);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16), StandardCharsets.UTF_8))) {
+            if (!formatLine.equals(reader.readLine())) {
+                return new BackupManifest(directory, false);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(stampPrefix)) {
+                    manifest.stamp = line.substring(stampPrefix.length());
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                if (fields.length != 5) continue;
+                manifest.entries.put(fields[4], parseEntry(fields));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // a damaged manifest is treated like a missing one; the destination is used instead
+            return new BackupManifest(directory, false);
+        }
+        return manifest;
+    }
+
+    /**
+     * save the manifest in its directory.  The manifest is written to a temporary file first, so an
+     * interrupted save leaves the previous manifest in place.
+     * @throws IOException if the manifest can't be written
+     */
+    public void save() throws IOException {
+        File file = new File(directory, fileName);
+        File temp = new File(directory, fileName + ".tmp");
+        stamp = UUID.randomUUID().toString();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(new FileOutputStream(temp), 1 << 16), StandardCharsets.UTF_8))) {
+            writer.write(formatLine);
+            writer.write('\n');
+            writer.write(stampPrefix + stamp);
+            writer.write('\n');
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                writer.write(formatEntry(item.getKey(), item.getValue()));
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * read the stamp of the manifest stored in the given directory, without reading its entries
+     * @param directory the runtime destination
+     * @return the stamp, or null if there is no manifest in the directory or it has no stamp
+     */
+    static String readStamp(File directory) {
+        File file = new File(directory, fileName);
+        if (!file.isFile()) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            if (!formatLine.equals(reader.readLine())) return null;
+            String line = reader.readLine();
+            return (line != null && line.startsWith(stampPrefix)) ? line.substring(stampPrefix.length()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the stamp of the last save of the manifest, or of the manifest it was loaded from; null if
+     * it has neither
+     */
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * format an entry as a line of the manifest, without the new line.  SnapshotIndex uses the same lines.
+     */
+    static String formatEntry(String relativePathName, Entry entry) {
+        return entry.size + "\t" + entry.lastModified + "\t" +
+                (entry.encrypted ? (entry.chunked ? "ec" : "e") : (entry.chunked ? "c" : "-")) + "\t" +
+                (entry.hash == null ? "-" : entry.hash) + "\t" + relativePathName;
+    }
+
+    /**
+     * the inverse of formatEntry
+     * @param fields the five fields of the line
+     * @throws NumberFormatException if the size or the last modified time isn't a number
+     */
+    static Entry parseEntry(String[] fields) {
+        String hash = fields[3].equals("-") ? null : fields[3];
+        return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2].contains("e"), hash,
+                fields[2].contains("c"));
+    }
+
+    /**
+     * @return true if the manifest was loaded from an existing manifest file
+     */
+    public boolean exists() {
+        return existed;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param relativePathName the relative path name of the file at the destination
+     * @return the entry for the file, or null if the manifest doesn't have one
+     */
+    public Entry get(String relativePathName) {
+        return entries.get(relativePathName);
+    }
+
+    /**
+     * add or replace the entry for a file
+     * @param relativePathName the relative path name of the file at the destination
+     * @param entry the entry
+     */
+    public void put(String relativePathName, Entry entry) {
+        entries.put(relativePathName, entry);
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
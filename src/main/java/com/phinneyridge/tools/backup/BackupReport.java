@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcome of a single BackupEngine run.  The report is filled in by the engine as the job runs, and
+ * it's what the gui and the command line use to tell the user how the job went.
+ */
+public class BackupReport {
+    public enum Operation {
+        backup,
+        restore,
+        verify      // the backup is read back and compared, nothing is written
+    }
+
+    private final String jobName;
+    private final Operation operation;
+    private final boolean backupJob;
+    private final boolean encrypted;
+    private final String replacementPolicy;
+    private final long startTime;
+    long endTime;
+    BackupEngine.Result result = BackupEngine.Result.indeterminate;
+    String runtimeDestination;
+    volatile boolean missingPath = false;   // some selected paths did not exist
+    volatile boolean anyErrors = false;     // some file failed when being backed up or restored
+    // the counters are updated by all the copy threads
+    final LongAdder noFilesCopied = new LongAdder();            // number of Files copied or restored
+    final LongAdder noFileCopyErrors = new LongAdder();         // number of File copy errors
+    final LongAdder noEncryptedFilesSkipped = new LongAdder();  // number of Encrypted files skipped because wrong key
+    final LongAdder noFilesSkipped = new LongAdder();           // number of files skipped because destination last
+                                                                // mod date is greater than or equal to the source
+                                                                // last mod date
+    final LongAdder noFilesLinked = new LongAdder();            // number of unchanged files hard linked to the
+                                                                // previous date path
+    final LongAdder noFilesCompressed = new LongAdder();        // number of files compressed
+    final LongAdder noFilesNotCompressedByType = new LongAdder();   // number of files not compressed because
+                                                                    // their extension is a compressed format
+    final LongAdder noFilesNotCompressedByContent = new LongAdder(); // number of files not compressed because
+                                                                     // their sampled content is incompressible
+    // verify: the files are counted in noFilesCopied when they match, and in noFileCopyErrors when they
+    // can't be read
+    final LongAdder noFilesMismatched = new LongAdder();        // number of files whose content doesn't match
+    final LongAdder noFilesNotCompared = new LongAdder();       // number of files read back without a checksum
+                                                                // or an unchanged source to compare them with
+    final LongAdder noFilesNotSampled = new LongAdder();        // number of files left out of a sampled verify
+    List<String> concurrency = new LinkedList<>();  // the concurrency chosen for each device
+    String pruneSummary = null;                     // what was pruned of the date paths no longer retained
+
+    BackupReport(Job job, boolean backupJob, long startTime) {
+        this(job, backupJob ? Operation.backup : Operation.restore, startTime);
+    }
+
+    BackupReport(Job job, Operation operation, long startTime) {
+        this.jobName = job.getName();
+        this.operation = operation;
+        this.backupJob = operation == Operation.backup;
+        this.encrypted = job.isEncryptionEnabled();
+        this.replacementPolicy = job.getReplacementPolicy();
+        this.startTime = startTime;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public boolean isBackupJob() {
+        return backupJob;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public BackupEngine.Result getResult() {
+        return result;
+    }
+
+    public String getRuntimeDestination() {
+        return runtimeDestination;
+    }
+
+    public boolean isMissingPath() {
+        return missingPath;
+    }
+
+    public boolean hasErrors() {
+        return anyErrors;
+    }
+
+    /**
+     * @return true if the job ran to completion without any file errors
+     */
+    public boolean isSuccess() {
+        return result == BackupEngine.Result.success || result == BackupEngine.Result.successWithMissingPaths;
+    }
+
+    public long getFilesCopied() {
+        return noFilesCopied.sum();
+    }
+
+    public long getFileCopyErrors() {
+        return noFileCopyErrors.sum();
+    }
+
+    public long getEncryptedFilesSkipped() {
+        return noEncryptedFilesSkipped.sum();
+    }
+
+    public long getFilesSkipped() {
+        return noFilesSkipped.sum();
+    }
+
+    public long getFilesLinked() {
+        return noFilesLinked.sum();
+    }
+
+    public long getFilesCompressed() {
+        return noFilesCompressed.sum();
+    }
+
+    public long getFilesNotCompressedByType() {
+        return noFilesNotCompressedByType.sum();
+    }
+
+    public long getFilesNotCompressedByContent() {
+        return noFilesNotCompressedByContent.sum();
+    }
+
+    public long getFilesMismatched() {
+        return noFilesMismatched.sum();
+    }
+
+    public long getFilesNotCompared() {
+        return noFilesNotCompared.sum();
+    }
+
+    public long getFilesNotSampled() {
+        return noFilesNotSampled.sum();
+    }
+
+    /**
+     * @return a description of the date paths that were pruned, or null if the backup didn't prune any
+     */
+    public String getPruneSummary() {
+        return pruneSummary;
+    }
+
+    /**
+     * @return one line per source and destination device describing the concurrency that was used for it
+     */
+    public List<String> getConcurrency() {
+        return concurrency;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return the elapsed time of the job in milliseconds
+     */
+    public long getElapsedMillis() {
+        return endTime - startTime;
+    }
+
+    /**
+     * get the human readable summary of the job run. This is what gets shown at the end of
+     * the console log or printed out by the command line.
+     * @return the list of summary lines
+     */
+    public List<String> getSummary() {
+        List<String> lines = new LinkedList<>();
+        String jobModality = backupJob ? "Backup" : (operation == Operation.verify ? "Verify" : "Restore");
+        String completionStatus = anyErrors ? "An error occurred during the " + jobModality + " job" :
+                "The " + jobModality + " job completed without any errors";
+        lines.add(completionStatus);
+        long sec = getElapsedMillis() / 1000;
+        long min = sec / 60;
+        sec -= min*60;
+        lines.add(jobModality + " Job Completed in " + min + " minutes and " + sec + " seconds");
+        if (this.operation == Operation.verify) {
+            addVerifySummary(lines);
+            lines.addAll(concurrency);
+            return lines;
+        }
+        String operation = backupJob ? "backed up" : "restored";
+        lines.add("Number of files " + operation + ": " + getFilesCopied());
+        lines.add("Number of copy errors: " + getFileCopyErrors());
+        if (missingPath) {
+            lines.add("Some of the selected paths did not exist and were not " + operation);
+        }
+        if (!backupJob) {
+            if (encrypted && getEncryptedFilesSkipped() > 0) {
+                lines.add("Number of encrypted files skipped because the encryption key did not match: "
+                        + getEncryptedFilesSkipped());
+            }
+            if (replacementPolicy.equals("byDate") && getFilesSkipped() > 0) {
+                lines.add("Number of files not restored because the origin exists and is up-to-date:  "
+                        + getFilesSkipped());
+            }
+        } else {
+            if (replacementPolicy.equals("byDate") && getFilesSkipped() > 0) {
+                lines.add("Number of files skipped because the destination already had an up-to-date copy:  "
+                        + getFilesSkipped());
+            }
+            if (getFilesLinked() > 0) {
+                lines.add("Number of unchanged files linked to the previous date path: " + getFilesLinked());
+            }
+            long notCompressed = getFilesNotCompressedByType() + getFilesNotCompressedByContent();
+            if (getFilesCompressed() + notCompressed > 0) {
+                lines.add("Number of files compressed: " + getFilesCompressed());
+                lines.add("Number of files not compressed: " + notCompressed + " (" +
+                        getFilesNotCompressedByType() + " by file type, " +
+                        getFilesNotCompressedByContent() + " by sampled content)");
+            }
+            if (pruneSummary != null) {
+                lines.add("Old " + pruneSummary);
+            }
+        }
+        lines.addAll(concurrency);
+        return lines;
+    }
+
+    private void addVerifySummary(List<String> lines) {
+        lines.add("Number of files verified: " + getFilesCopied());
+        lines.add("Number of files that don't match: " + getFilesMismatched());
+        lines.add("Number of read errors: " + getFileCopyErrors());
+        if (getFilesNotCompared() > 0) {
+            lines.add("Number of files read back without a checksum or an unchanged source to compare them with: "
+                    + getFilesNotCompared());
+        }
+        if (getFilesNotSampled() > 0) {
+            lines.add("Number of files left out of the sample: " + getFilesNotSampled());
+        }
+        if (encrypted && getEncryptedFilesSkipped() > 0) {
+            lines.add("Number of encrypted files that the encryption key did not match: "
+                    + getEncryptedFilesSkipped());
+        }
+    }
+}
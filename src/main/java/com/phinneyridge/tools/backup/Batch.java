@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Batch runs a saved job from the command line without a gui, so backups can be scheduled
+ * (cron, Task Scheduler) on machines that don't have a display.  Batch is its own entry class rather
+ * than an argument of Main: the java launcher starts the JavaFX toolkit, which needs a display, before it
+ * calls the main method of an Application.  Nothing Batch uses depends on JavaFX.
+ * <pre>
+ * usage: java -cp backup-utility.jar com.phinneyridge.tools.backup.Batch -job &lt;name&gt; [options]
+ *   -job &lt;name&gt;          the name of a job saved in the BackupJobs directory
+ *   -restore             restore the job instead of backing it up
+ *   -pattern &lt;pattern&gt;   restore only the files that match: a path, glob:&lt;glob&gt; or regex:&lt;regex&gt;
+ *   -resume              continue a restore that was interrupted, see BackupEngine.setResumeRestore
+ *   -range &lt;offset&gt;:&lt;length&gt;
+ *                        restore only the given bytes of the file whose path is given by -pattern
+ *   -output &lt;file&gt;       the file a -range is restored to
+ *   -verify              read the backup back and check it instead of backing it up
+ *   -sample &lt;percent&gt;    verify only the given percentage of the files, picked at random
+ *   -compareSource       verify against the unchanged source files rather than the recorded checksums
+ *   -maxRate &lt;MB/s&gt;      the most a verify reads per second
+ *   -maxReads &lt;count&gt;    the most files a verify reads at the same time
+ *   -datePath &lt;date&gt;     the date path to restore or verify (default: the most recent date path)
+ *   -destination &lt;dir&gt;   override the job's destination directory
+ *   -passwordEnv &lt;var&gt;   read the encryption password from the given environment variable
+ *   -verbose             log every file that is copied
+ *   -virtualThreads      run each file copy on a virtual thread (requires Java 21)
+ *   -log &lt;file&gt;          also write the messages to the given log file
+ *   -deferPrune          move the date paths that are no longer retained to the trash, and delete them after
+ *                        the backup has reported its completion
+ * </pre>
+ * If the job is encrypted and no -passwordEnv is given, the password is read from the console.
+ * The process exit code is 0 when the job succeeded, 1 when it failed and 2 for a usage error.
+ */
+public class Batch {
+
+    public static void main(String[] args) {
+        System.exit(new Batch().run(args));
+    }
+
+    int run(String[] args) {
+        String jobName = null;
+        boolean restore = false;
+        String pattern = null;
+        boolean resume = false;
+        long rangeOffset = -1;
+        long rangeLength = -1;
+        String output = null;
+        boolean verify = false;
+        int sample = 100;
+        boolean compareSource = false;
+        long maxRate = 0;
+        int maxReads = 0;
+        String datePath = null;
+        String destination = null;
+        String passwordEnv = null;
+        boolean verbose = false;
+        boolean virtualThreads = false;
+        String logFile = null;
+        boolean deferPrune = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-job":
+                        jobName = args[++i];
+                        break;
+                    case "-restore":
+                        restore = true;
+                        break;
+                    case "-pattern":
+                        pattern = args[++i];
+                        restore = true;
+                        break;
+                    case "-resume":
+                        resume = true;
+                        restore = true;
+                        break;
+                    case "-range":
+                        String range = args[++i];
+                        int colon = range.indexOf(':');
+                        if (colon < 0) return usage("a range is given as <offset>:<length>");
+                        rangeOffset = Long.parseLong(range.substring(0, colon));
+                        rangeLength = Long.parseLong(range.substring(colon + 1));
+                        if (rangeOffset < 0 || rangeLength < 0) return usage("invalid range " + range);
+                        restore = true;
+                        break;
+                    case "-output":
+                        output = args[++i];
+                        break;
+                    case "-verify":
+                        verify = true;
+                        break;
+                    case "-sample":
+                        sample = Integer.parseInt(args[++i]);
+                        break;
+                    case "-compareSource":
+                        compareSource = true;
+                        break;
+                    case "-maxRate":
+                        maxRate = Long.parseLong(args[++i]);
+                        break;
+                    case "-maxReads":
+                        maxReads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-datePath":
+                        datePath = args[++i];
+                        break;
+                    case "-destination":
+                        destination = args[++i];
+                        break;
+                    case "-passwordEnv":
+                        passwordEnv = args[++i];
+                        break;
+                    case "-verbose":
+                        verbose = true;
+                        break;
+                    case "-virtualThreads":
+                        virtualThreads = true;
+                        break;
+                    case "-log":
+                        logFile = args[++i];
+                        break;
+                    case "-deferPrune":
+                        deferPrune = true;
+                        break;
+                    default:
+                        return usage("unknown option " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return usage("option " + args[args.length - 1] + " requires a value");
+        } catch (NumberFormatException e) {
+            return usage("not a number: " + e.getMessage());
+        }
+        if (jobName == null) return usage("a job name is required");
+        if (restore && verify) return usage("-restore and -verify can't be combined");
+        if (rangeOffset >= 0 && (output == null || pattern == null || pattern.startsWith(PathPattern.globSyntax) ||
+                pattern.startsWith(PathPattern.regexSyntax))) {
+            return usage("-range requires the path of a file given by -pattern, and -output");
+        }
+
+        if (!JobFiles.getJobFile(jobName).exists()) {
+            System.err.println("job " + jobName + " does not exist");
+            return 1;
+        }
+        Job job = Job.load(jobName);
+        if (job == null) return 1;
+        job.setBackupMode(!restore && !verify);
+        if (job.isEncryptionEnabled()) {
+            String password = null;
+            if (passwordEnv != null) {
+                password = System.getenv(passwordEnv);
+            } else {
+                Console console = System.console();
+                if (console != null) {
+                    char[] chars = console.readPassword("Enter password/phrase: ");
+                    if (chars != null) password = new String(chars);
+                }
+            }
+            job.setPassword(password);
+        }
+
+        BackupEngine engine = new BackupEngine(job);
+        engine.setFileLogging(verbose);
+        if (virtualThreads) engine.setExecutionMode(BackupEngine.ExecutionMode.virtual);
+        engine.setVerifySample(sample);
+        engine.setVerifyAgainstSource(compareSource);
+        engine.setVerifyLimit(new ThroughputLimit(maxRate * 1024 * 1024, maxReads));
+        engine.setDeferPruning(deferPrune);
+        engine.setResumeRestore(resume);
+        if (destination != null) engine.setDestination(destination);
+        LogPipeline log = null;
+        if (logFile != null) {
+            try {
+                log = new LogPipeline(new File(logFile), 0);
+            } catch (IOException e) {
+                System.err.println("unable to create log file " + logFile + ": " + e.getMessage());
+                return 1;
+            }
+        }
+        final LogPipeline jobLog = log;
+        engine.setListener(msg -> {
+            System.out.println(msg);
+            if (jobLog != null) jobLog.message(msg);
+        });
+        BackupReport report;
+        if (restore || verify) {
+            if (job.appendDate() && datePath == null) {
+                // default to the most recent date path
+                List<String> dateDirs = engine.getAvailableDatePaths();
+                if (!dateDirs.isEmpty()) datePath = Collections.max(dateDirs);
+            }
+            if (verify) {
+                report = engine.verify(datePath);
+            } else if (rangeOffset >= 0) {
+                report = engine.restoreRange(datePath, pattern, rangeOffset, rangeLength, new File(output));
+            } else {
+                report = engine.restore(datePath, pattern);
+            }
+        } else {
+            report = engine.backup(new Date());
+            // the report is out, the process ends when the trash has been emptied
+            engine.awaitPruning();
+        }
+        job.setPassword("");
+        if (log != null) log.close();
+        return report.isSuccess() ? 0 : 1;
+    }
+
+    private int usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: java -cp backup-utility.jar com.phinneyridge.tools.backup.Batch " +
+                "-job <name> [-restore [-pattern <pattern>] [-resume] [-range <offset>:<length> -output <file>] | " +
+                "-verify [-sample <percent>] [-compareSource] [-maxRate <MB/s>] [-maxReads <count>]] " +
+                "[-datePath <date>] [-destination <dir>] [-passwordEnv <var>] [-verbose] [-virtualThreads] " +
+                "[-log <file>] [-deferPrune]");
+        return 2;
+    }
+}
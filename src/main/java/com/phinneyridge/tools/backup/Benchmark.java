@@ -0,0 +1,356 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark measures the throughput of the engine's cpu bound stages, so they can be compared against the
+ * throughput of the disks they are used with.  A stage that is slower than the source disk becomes the
+ * bottleneck of a backup.
+ * <p>
+ * usage: Benchmark chunker|cipher|suites [file]
+ * <p>
+ * Without a file, 256 MB of random data are used.  The chunker data are held in memory, so the results don't
+ * include any disk I/O, and the chunker takes files up to 2 GB.  The cipher and suites benchmarks stream the
+ * file, of any size, through the engine to files in the temporary directory, which are normally served from
+ * the page cache after the first round.  The suites benchmark compares the cipher suites and recommends the
+ * fastest one for the host.
+ */
+public class Benchmark {
+    private static final int rounds = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        switch (args[0]) {
+            case "chunker":
+                benchmarkChunker(loadData(args.length > 1 ? args[1] : null));
+                break;
+            case "cipher":
+            case "suites":
+                File plain = (args.length > 1) ? new File(args[1]) : createData();
+                try {
+                    if (args[0].equals("cipher")) {
+                        benchmarkCipher(plain);
+                    } else {
+                        benchmarkSuites(plain);
+                    }
+                } finally {
+                    if (args.length == 1) plain.delete();
+                }
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: Benchmark chunker|cipher|suites [file]");
+        System.out.println("  the chunker holds the file in memory and takes files up to 2 GB");
+    }
+
+    private static byte[] loadData(String fileName) throws IOException {
+        if (fileName != null) {
+            long size = Files.size(Paths.get(fileName));
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("the chunker holds the data in memory, " + fileName + " is larger than 2 GB");
+            }
+            return Files.readAllBytes(Paths.get(fileName));
+        }
+        byte[] data = new byte[256 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * write 256 MB of random data to a temporary file, a block at a time
+     */
+    private static File createData() throws IOException {
+        File file = File.createTempFile("benchmark", ".dat");
+        Random random = new Random(1);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < 256; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * measures the chunker on its own, SHA-256 on its own and both together (which is what the content store
+     * does for every chunked file), and checks how many chunks survive a small edit in the middle of the data.
+     */
+    static void benchmarkChunker(byte[] data) throws NoSuchAlgorithmException {
+        Chunker chunker = new Chunker();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        System.out.println("data: " + data.length / (1024 * 1024) + " MB, chunk sizes " + chunker.getMinSize() +
+                "/" + chunker.getAverageSize() + "/" + chunker.getMaxSize());
+
+        report("chunking", data.length, () -> chunk(chunker, data, null));
+        report("sha-256", data.length, () -> {
+            digest.update(data);
+            digest.digest();
+        });
+        report("chunking + sha-256", data.length, () -> chunk(chunker, data, digest));
+
+        Set<String> chunks = new HashSet<>();
+        int count = chunkHashes(chunker, data, chunks);
+        byte[] edited = new byte[data.length + 100];
+        int middle = data.length / 2;
+        System.arraycopy(data, 0, edited, 0, middle);
+        System.arraycopy(data, middle, edited, middle + 100, data.length - middle);
+        Set<String> editedChunks = new HashSet<>();
+        int editedCount = chunkHashes(chunker, edited, editedChunks);
+        editedChunks.removeAll(chunks);
+        System.out.println(String.format("chunks: %d, average %d bytes; after inserting 100 bytes in the middle " +
+                "%d of %d chunks are new", count, data.length / Math.max(count, 1), editedChunks.size(), editedCount));
+    }
+
+    private static int chunk(Chunker chunker, byte[] data, MessageDigest digest) {
+        int count = 0;
+        int offset = 0;
+        while (offset < data.length) {
+            int length = chunker.nextChunkLength(data, offset, data.length - offset);
+            if (digest != null) {
+                digest.update(data, offset, length);
+                digest.digest();
+            }
+            offset += length;
+            count++;
+        }
+        return count;
+    }
+
+    private static int chunkHashes(Chunker chunker, byte[] data, Set<String> hashes) {
+        int count = 0;
+        int offset = 0;
+        while (offset < data.length) {
+            int length = chunker.nextChunkLength(data, offset, data.length - offset);
+            hashes.add(DataEncryption.Hash.SHA256.checksum(Arrays.copyOfRange(data, offset, offset + length)));
+            offset += length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * measures file encryption and decryption by the engine at a few buffer sizes, against the stream based
+     * implementation it replaced (8 KB arrays, a new cipher per file and a new output array per update).
+     * The buffer size is also the engine's segment size; the segments of the file are encrypted and decrypted
+     * on all the processors.  The outputs are checked too: the engine must decrypt what the old implementation
+     * encrypted.
+     */
+    static void benchmarkCipher(File plain) throws IOException {
+        String password = "benchmark";
+        File encrypted = File.createTempFile("benchmark", ".enc");
+        File decrypted = File.createTempFile("benchmark", ".out");
+        try {
+            long size = plain.length();
+            String data = digest(plain);
+            System.out.println("data: " + size / (1024 * 1024) + " MB, " + Runtime.getRuntime()
+                    .availableProcessors() + " processors");
+            DataEncryption dataEncryption = new DataEncryption();
+            report("stream encrypt", size, () -> streamEncrypt(dataEncryption, password, plain, encrypted));
+            report("stream decrypt", size, () -> streamDecrypt(dataEncryption, password, encrypted,
+                    decrypted));
+            dataEncryption.cipherStreamDecrypt(password, encrypted, decrypted);
+            check("stream -> engine", data, decrypted);
+            for (int bufferSize : new int[] {64 * 1024, DataEncryption.defaultBufferSize, 4 * 1024 * 1024}) {
+                dataEncryption.setBufferSize(bufferSize);
+                String name = "engine " + bufferSize / 1024 + " KB ";
+                report(name + "encrypt", size, () -> {
+                    try {
+                        dataEncryption.cipherStreamEncrypt(password, plain, encrypted);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                report(name + "decrypt", size, () -> {
+                    try {
+                        dataEncryption.cipherStreamDecrypt(password, encrypted, decrypted);
+                    } catch (InvalidKeyException | IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                check(name + "round trip", data, decrypted);
+            }
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            encrypted.delete();
+            decrypted.delete();
+        }
+    }
+
+    /**
+     * measures file encryption and decryption by the engine with every cipher suite, and shows the suite
+     * that jobs without a cipher option use on this host
+     */
+    static void benchmarkSuites(File plain) throws IOException {
+        String password = "benchmark";
+        File encrypted = File.createTempFile("benchmark", ".enc");
+        File decrypted = File.createTempFile("benchmark", ".out");
+        try {
+            long size = plain.length();
+            String data = digest(plain);
+            System.out.println("data: " + size / (1024 * 1024) + " MB, " + Runtime.getRuntime()
+                    .availableProcessors() + " processors");
+            DataEncryption dataEncryption = new DataEncryption();
+            for (DataEncryption.CipherSuite suite : DataEncryption.CipherSuite.values()) {
+                dataEncryption.setCipherSuite(suite);
+                String name = suite.name() + " ";
+                report(name + "encrypt", size, () -> {
+                    try {
+                        dataEncryption.cipherStreamEncrypt(password, plain, encrypted);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                report(name + "decrypt", size, () -> {
+                    try {
+                        dataEncryption.cipherStreamDecrypt(password, encrypted, decrypted);
+                    } catch (InvalidKeyException | IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                check(name + "round trip", data, decrypted);
+            }
+            System.out.println("recommended cipher suite: " + DataEncryption.getFastestCipherSuite());
+        } finally {
+            encrypted.delete();
+            decrypted.delete();
+        }
+    }
+
+    /**
+     * check that the given file has the content with the given digest
+     */
+    private static void check(String name, String data, File file) throws IOException {
+        boolean identical = data.equals(digest(file));
+        System.out.println(String.format("%-24s %s", name, identical ? "ok" : "FAILED"));
+    }
+
+    /**
+     * @return the SHA-256 of the file's content, read a block at a time
+     */
+    private static String digest(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 20];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+            return DataEncryption.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * the encryption as it was done before the engine used pooled ciphers and buffers
+     */
+    private static void streamEncrypt(DataEncryption dataEncryption, String password, File input, File output) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(input));
+             OutputStream out = new FileOutputStream(output)) {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            byte[] ivBytes = new byte[16];
+            byte[] saltBytes = new byte[8];
+            dataEncryption.random.nextBytes(saltBytes);
+            dataEncryption.random.nextBytes(ivBytes);
+            cipher.init(Cipher.ENCRYPT_MODE, dataEncryption.generateSecretKey(password, saltBytes),
+                    new IvParameterSpec(ivBytes));
+            out.write(saltBytes);
+            out.write(ivBytes);
+            out.write(cipher.update(ivBytes));
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                byte[] encryptedBytes = cipher.update(buffer, 0, length);
+                if (encryptedBytes != null) out.write(encryptedBytes);
+            }
+            out.write(cipher.doFinal());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * the decryption as it was done before the engine used pooled ciphers and buffers
+     */
+    private static void streamDecrypt(DataEncryption dataEncryption, String password, File input, File output) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input)));
+             OutputStream out = new FileOutputStream(output)) {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            byte[] saltBytes = new byte[8];
+            byte[] ivBytes = new byte[16];
+            in.readFully(saltBytes);
+            in.readFully(ivBytes);
+            cipher.init(Cipher.DECRYPT_MODE, dataEncryption.generateSecretKey(password, saltBytes),
+                    new IvParameterSpec(ivBytes));
+            byte[] buffer = new byte[8192];
+            int skip = ivBytes.length;  // the decrypted check block isn't content
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                byte[] decryptedBytes = cipher.update(buffer, 0, length);
+                if (decryptedBytes == null) continue;
+                int offset = Math.min(skip, decryptedBytes.length);
+                skip -= offset;
+                out.write(decryptedBytes, offset, decryptedBytes.length - offset);
+            }
+            out.write(cipher.doFinal());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * run the given stage a few times and report the best throughput; the first round warms up the jit
+     */
+    static void report(String name, long bytes, Runnable stage) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            stage.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double mbPerSecond = (bytes / (1024.0 * 1024.0)) / (best / 1e9);
+        System.out.println(String.format("%-24s %10.1f MB/s", name, mbPerSecond));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChecksumManifest holds the checksums of the files a backup writes to its runtime destination, for one or
+ * more hash algorithms.  The checksums are computed while the files are copied or encrypted (see Digests),
+ * so they don't cost another read of the files.
+ * <p>
+ * Every algorithm has a file of its own at the runtime destination, named checksums.sha256, checksums.md5
+ * and so on, in the format of sha256sum and its siblings: one line per file with the hexadecimal checksum,
+ * two spaces and the path of the stored file relative to the runtime destination, with "/" separators.  So
+ * "sha256sum -c checksums.sha256", run in the runtime destination, checks the backup without this utility.
+ * The checksums are those of the stored files; for encrypted files that is the encrypted content.
+ */
+public class ChecksumManifest {
+    public static final String fileNamePrefix = "checksums.";
+
+    /**
+     * computes the digests of content with all of the manifest's algorithms at once, while the content
+     * streams through a channel returned by digestReads or digestWrites
+     */
+    public static class Digests {
+        private final List<DataEncryption.Hash> hashes;
+        private final MessageDigest[] digests;
+        private String[] values = null;
+
+        public Digests(List<DataEncryption.Hash> hashes) throws IOException {
+            this.hashes = hashes;
+            digests = new MessageDigest[hashes.size()];
+            try {
+                for (int i = 0; i < digests.length; i++) {
+                    digests[i] = MessageDigest.getInstance(hashes.get(i).getName());
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public void update(byte[] bytes, int offset, int length) {
+            for (MessageDigest digest : digests) {
+                digest.update(bytes, offset, length);
+            }
+        }
+
+        /**
+         * update the digests with the bytes of the buffer from the given position to its position
+         */
+        private void update(ByteBuffer buffer, int from) {
+            for (MessageDigest digest : digests) {
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.limit(buffer.position()).position(from);
+                digest.update(bytes);
+            }
+        }
+
+        /**
+         * @return a channel that reads from the given channel and digests everything it reads
+         */
+        public ReadableByteChannel digestReads(ReadableByteChannel channel) {
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int from = dst.position();
+                    int count = channel.read(dst);
+                    if (count > 0) update(dst, from);
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        /**
+         * @return a channel that writes to the given channel and digests everything it writes
+         */
+        public WritableByteChannel digestWrites(WritableByteChannel channel) {
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int from = src.position();
+                    int count = channel.write(src);
+                    if (count > 0) update(src, from);
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+
+        /**
+         * get the checksum of the content for one of the algorithms.  The first call completes the digests,
+         * the content can't be added to after that.
+         * @param hash the algorithm
+         * @return the checksum as a hexadecimal string, or null if the digests don't use the algorithm
+         */
+        public String getHexValue(DataEncryption.Hash hash) {
+            if (values == null) {
+                values = new String[digests.length];
+                for (int i = 0; i < digests.length; i++) {
+                    values[i] = DataEncryption.toHexString(digests[i].digest());
+                }
+            }
+            int index = hashes.indexOf(hash);
+            return index < 0 ? null : values[index];
+        }
+    }
+
+    private final File directory;
+    private final List<DataEncryption.Hash> hashes;
+    // the checksums of every file, in the order of the hashes
+    private final Map<String, String[]> entries = new ConcurrentHashMap<>();
+
+    private ChecksumManifest(File directory, List<DataEncryption.Hash> hashes) {
+        this.directory = directory;
+        this.hashes = hashes;
+    }
+
+    /**
+     * load the checksums that were saved in the given directory by earlier backups.  Files that are backed
+     * up again get new checksums, the others keep theirs, so the checksum files keep covering every file
+     * at the runtime destination.
+     * @param directory the runtime destination
+     * @param hashes the algorithms the checksums are computed with
+     * @return the manifest; it's empty if there are no checksum files in the directory
+     */
+    public static ChecksumManifest load(File directory, List<DataEncryption.Hash> hashes) {
+        ChecksumManifest manifest = new ChecksumManifest(directory, hashes);
+        for (int i = 0; i < hashes.size(); i++) {
+            File file = new File(directory, getFileName(hashes.get(i)));
+            if (!file.isFile()) continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    boolean escaped = line.startsWith("\\");
+                    if (escaped) line = line.substring(1);
+                    int space = line.indexOf(' ');
+                    if (space <= 0 || line.length() < space + 3) continue;
+                    String name = line.substring(space + 2);
+                    if (escaped) name = unescape(name);
+                    manifest.entries.computeIfAbsent(name, n -> new String[hashes.size()])[i] =
+                            line.substring(0, space);
+                }
+            } catch (IOException e) {
+                // the checksums of this algorithm start over
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the name of the file that holds the checksums of the given algorithm, e.g. checksums.sha256
+     */
+    public static String getFileName(DataEncryption.Hash hash) {
+        return fileNamePrefix + hash.name().toLowerCase();
+    }
+
+    public List<DataEncryption.Hash> getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return new digests for the manifest's algorithms
+     * @throws IOException if the java runtime doesn't support one of the algorithms
+     */
+    public Digests newDigests() throws IOException {
+        return new Digests(hashes);
+    }
+
+    /**
+     * record the checksums of a stored file
+     * @param storedPathName the path of the stored file relative to the runtime destination
+     * @param digests the digests of the stored file's content
+     */
+    public void put(String storedPathName, Digests digests) {
+        String[] values = new String[hashes.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = digests.getHexValue(hashes.get(i));
+        }
+        entries.put(storedPathName, values);
+    }
+
+    /**
+     * save a checksum file for every algorithm in the manifest's directory, sorted by path.  Every file is
+     * written to a temporary file first, so an interrupted save leaves the previous checksums in place.
+     * @throws IOException if a checksum file can't be written
+     */
+    public void save() throws IOException {
+        Map<String, String[]> sorted = new TreeMap<>(entries);
+        for (int i = 0; i < hashes.size(); i++) {
+            File file = new File(directory, getFileName(hashes.get(i)));
+            File temp = new File(directory, file.getName() + ".tmp");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                    StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, String[]> item : sorted.entrySet()) {
+                    String value = item.getValue()[i];
+                    if (value == null) continue;
+                    String name = item.getKey();
+                    // like sha256sum, a line with a backslash or a new line in its name begins with a backslash
+                    if (name.indexOf('\\') >= 0 || name.indexOf('\n') >= 0) {
+                        writer.write('\\');
+                        name = name.replace("\\", "\\\\").replace("\n", "\\n");
+                    }
+                    writer.write(value);
+                    writer.write("  ");
+                    writer.write(name);
+                    writer.write('\n');
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * record the checksums that another manifest has for a stored file, for a file that is stored with the
+     * same content, like a hard link
+     * @param from the other manifest
+     * @param storedPathName the path of the stored file relative to the runtime destination
+     * @return false if the other manifest doesn't have all of this manifest's checksums for the file
+     */
+    public boolean copy(ChecksumManifest from, String storedPathName) {
+        String[] found = (from == null) ? null : from.entries.get(storedPathName);
+        if (found == null) return false;
+        String[] values = new String[hashes.size()];
+        for (int i = 0; i < values.length; i++) {
+            int index = from.hashes.indexOf(hashes.get(i));
+            if (index < 0 || found[index] == null) return false;
+            values[i] = found[index];
+        }
+        entries.put(storedPathName, values);
+        return true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static String unescape(String name) {
+        StringBuilder unescaped = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                c = name.charAt(++i);
+                if (c == 'n') c = '\n';
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+}
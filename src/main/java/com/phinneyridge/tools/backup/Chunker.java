@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.Random;
+
+/**
+ * Chunker splits content into variable sized chunks at content defined boundaries (FastCDC).  A gear rolling
+ * hash is computed over the bytes, and a chunk ends where the hash matches a mask.  Since the boundaries only
+ * depend on the bytes near them, inserting or removing bytes in a large file only changes the chunks around
+ * the edit; the chunks before and after it are the same as in the previous backup, and are not stored again.
+ * <p>
+ * Normalized chunking is used: a harder mask is used before the average size and an easier one after it, which
+ * keeps most chunks close to the average size.  No cut is made before the minimum size (those bytes are
+ * skipped, not hashed), and a cut is forced at the maximum size.
+ */
+public class Chunker {
+    public static final int defaultMinSize = 256 * 1024;
+    public static final int defaultAverageSize = 1024 * 1024;
+    public static final int defaultMaxSize = 4 * 1024 * 1024;
+
+    // the gear table must never change, or the boundaries found in earlier backups won't be found again
+    private static final long[] gear = new long[256];
+    static {
+        Random random = new Random(0x6a09e667f3bcc908L);
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long maskS;   // used before the average size, two more bits than the average needs
+    private final long maskL;   // used after the average size, two bits less
+
+    public Chunker() {
+        this(defaultMinSize, defaultAverageSize, defaultMaxSize);
+    }
+
+    /**
+     * @param minSize the minimum chunk size
+     * @param averageSize the average chunk size, must be a power of 2
+     * @param maxSize the maximum chunk size
+     */
+    public Chunker(int minSize, int averageSize, int maxSize) {
+        if (Integer.bitCount(averageSize) != 1 || minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("invalid chunk sizes " + minSize + "/" + averageSize + "/" + maxSize);
+        }
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        maskS = mask(bits + 2);
+        maskL = mask(bits - 2);
+    }
+
+    /**
+     * the gear hash shifts the oldest bytes out at the top, so the top bits depend on the most bytes
+     */
+    private static long mask(int bits) {
+        return (bits <= 0) ? 0 : -1L << (64 - bits);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * find the end of the next chunk
+     * @param buffer the content
+     * @param offset the start of the chunk in the buffer
+     * @param length the number of bytes available from the offset.  Unless it's the end of the content, at
+     *               least maxSize bytes must be available, or the chunk may end early.
+     * @return the length of the chunk
+     */
+    public int nextChunkLength(byte[] buffer, int offset, int length) {
+        if (length <= minSize) return length;
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, averageSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + gear[buffer[offset + i] & 0xff];
+            if ((hash & maskS) == 0) return i + 1;
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + gear[buffer[offset + i] & 0xff];
+            if ((hash & maskL) == 0) return i + 1;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompletionTracker gives a run a single, well defined "all done" signal.  The producer (the thread
+ * scheduling the copies) holds one pending count of its own until it calls schedulingComplete, and every
+ * scheduled task holds one until it calls taskCompleted.  The signal fires exactly once, when the last
+ * of those counts is released, so a run can't be reported complete while tasks are still being
+ * scheduled, and there's no time limit guessing how long the tasks should take.
+ * A Phaser is limited to 65535 parties, which isn't enough for the number of copies a run can have in
+ * flight, so the pending count is kept in an AtomicLong instead.
+ */
+public class CompletionTracker {
+    private final AtomicLong pending = new AtomicLong(1);   // the producer's own count
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * called before a task is handed to an executor
+     */
+    public void taskScheduled() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * called exactly once for each scheduled task, whether it completed, failed or was never run
+     */
+    public void taskCompleted() {
+        if (pending.decrementAndGet() == 0) {
+            done.countDown();
+        }
+    }
+
+    /**
+     * called by the producer once it won't schedule any more tasks
+     */
+    public void schedulingComplete() {
+        taskCompleted();
+    }
+
+    /**
+     * wait for all the scheduled tasks to complete
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if all the tasks are complete, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public boolean isComplete() {
+        return done.getCount() == 0;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * CompressionProbe decides if a file is worth compressing before it's backed up.  Media files, archives and
+ * encrypted files don't get any smaller, and deflating them only costs cpu time.  Files with a well known
+ * compressed format are recognized by their extension; the other files have the entropy of their first few
+ * kilobytes measured, and content that is close to random (8 bits per byte) is stored as it is.
+ */
+public class CompressionProbe {
+    public static final int sampleSize = 16 * 1024;     // bytes sampled from the beginning of the file
+    public static final double entropyLimit = 7.5;      // bits per byte, content above this isn't compressed
+    private static final int minimumSample = 512;       // a smaller sample says too little, it's compressed
+
+    private static final Set<String> compressedExtensions = new HashSet<>(Arrays.asList(
+            // images
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif", "jxl",
+            // audio and video
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "mov", "mkv", "webm", "avi", "wmv",
+            // archives and compressed files
+            "zip", "gz", "tgz", "bz2", "xz", "lz", "lz4", "zst", "7z", "rar", "cab", "jar", "war", "apk",
+            // documents that are zip archives
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+            // encrypted by this utility
+            BackupEngine.encryptionFileExtension.substring(1)));
+
+    /**
+     * the outcome of probing a file
+     */
+    public enum Decision {
+        compress,   // the file is compressed
+        extension,  // the file isn't compressed, its extension is one of a compressed format
+        entropy     // the file isn't compressed, the sampled content is close to random
+    }
+
+    /**
+     * probe the given file
+     * @param file the file that is about to be backed up
+     * @return the decision
+     */
+    public static Decision probe(File file) {
+        if (hasCompressedExtension(file.getName())) return Decision.extension;
+        byte[] sample = new byte[sampleSize];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            // the backup of the file will report the problem
+            return Decision.compress;
+        }
+        if (length < minimumSample) return Decision.compress;
+        return entropy(sample, length) > entropyLimit ? Decision.entropy : Decision.compress;
+    }
+
+    /**
+     * lets you know if the given file name has the extension of a compressed format
+     * @param name the file name
+     * @return true if the extension is one of a compressed format
+     */
+    public static boolean hasCompressedExtension(String name) {
+        int idx = name.lastIndexOf('.');
+        if (idx < 0) return false;
+        return compressedExtensions.contains(name.substring(idx + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * compute the Shannon entropy of the given bytes
+     * @param data the bytes
+     * @param length the number of bytes to use
+     * @return the entropy in bits per byte, 0 to 8
+     */
+    public static double entropy(byte[] data, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / length;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2);
+    }
+}
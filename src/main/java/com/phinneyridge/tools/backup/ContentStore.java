@@ -0,0 +1,524 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ContentStore stores file content by the SHA-256 hash of the content (a blob).  Each distinct content is
+ * stored only once, no matter how many files or snapshots contain it, so a snapshot of a mostly unchanged
+ * tree only costs the bytes that changed.  Blobs are kept in the "blobs" directory of the job's destination,
+ * fanned out over subdirectories named by the first two hex digits of the hash.  Encrypted blobs have the
+ * ".iv16enc" extension, so the same content can be stored both ways when a job's encryption is changed.
+ * <p>
+ * A snapshot is a BackupManifest whose entries carry the hash of each file; the manifest is the only thing
+ * written to the snapshot's runtime destination.
+ * <p>
+ * Large files are split into chunks by a Chunker and every chunk is stored as a blob of its own, so a large
+ * file that only changed in a few places only costs the chunks around the changes.  The file's chunk list,
+ * the hash and length of each chunk in order, is kept next to the blobs with the ".chunks" extension and is
+ * named by the hash of the whole content.  The chunk list isn't encrypted; like the blob names, it only
+ * holds hashes.
+ * <p>
+ * A backup holds the store's lock file while it writes blobs and collects garbage, so a second backup of the
+ * same job, from the GUI and from cron say, can't delete the blobs the first one hasn't put in a manifest yet.
+ */
+public class ContentStore {
+    public static final String blobDirectoryName = "blobs";
+    public static final String chunkListExtension = ".chunks";
+    public static final String lockFileName = "store.lock";
+    private static final String tempPrefix = "blob";
+    private static final String tempSuffix = ".tmp";
+    public static final long defaultChunkThreshold = 16 * 1024 * 1024;
+    private static final DataEncryption.Hash hash = DataEncryption.Hash.SHA256;
+
+    private final File blobDirectory;
+    private final DataEncryption dataEncryption;
+    private final Chunker chunker = new Chunker();
+    private long chunkThreshold = defaultChunkThreshold;
+    private final AtomicLong blobsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * @param jobDestination the job's destination directory, the blobs are kept in its "blobs" directory
+     * @param dataEncryption used to encrypt and decrypt blobs
+     */
+    public ContentStore(File jobDestination, DataEncryption dataEncryption) {
+        this.blobDirectory = new File(jobDestination, blobDirectoryName);
+        this.dataEncryption = dataEncryption;
+    }
+
+    public File getBlobDirectory() {
+        return blobDirectory;
+    }
+
+    /**
+     * lock the store for a backup.  The lock is held until the returned lock is closed, or the process ends.
+     * @return the lock, or null if another backup holds it
+     * @throws IOException if the lock file can't be created
+     */
+    public Closeable lock() throws IOException {
+        blobDirectory.mkdirs();
+        FileChannel channel = FileChannel.open(new File(blobDirectory, lockFileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another backup in this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            return null;
+        }
+        // closing the channel releases the lock
+        return channel;
+    }
+
+    /**
+     * set the size from which on files are stored as chunks
+     * @param chunkThreshold the size in bytes
+     */
+    public void setChunkThreshold(long chunkThreshold) {
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    /**
+     * lets you know if a file of the given size should be stored as chunks
+     * @param size the size of the file
+     * @return true if the file should be stored as chunks
+     */
+    public boolean shouldChunk(long size) {
+        return size >= chunkThreshold;
+    }
+
+    /**
+     * get the file a blob is stored in
+     * @param hash the hash of the blob's content
+     * @param encrypted whether the blob is encrypted
+     * @return the blob file
+     */
+    public File getBlobFile(String hash, boolean encrypted) {
+        String name = encrypted ? hash + BackupEngine.encryptionFileExtension : hash;
+        return new File(new File(blobDirectory, hash.substring(0, 2)), name);
+    }
+
+    /**
+     * get the file the chunk list of a chunked content is stored in
+     * @param hash the hash of the whole content
+     * @param encrypted whether the chunks are encrypted
+     * @return the chunk list file
+     */
+    public File getChunkListFile(String hash, boolean encrypted) {
+        File blob = getBlobFile(hash, encrypted);
+        return new File(blob.getParentFile(), blob.getName() + chunkListExtension);
+    }
+
+    public boolean contains(String hash, boolean encrypted) {
+        return getBlobFile(hash, encrypted).isFile();
+    }
+
+    public boolean contains(String hash, boolean encrypted, boolean chunked) {
+        return chunked ? getChunkListFile(hash, encrypted).isFile() : contains(hash, encrypted);
+    }
+
+    /**
+     * store the content of the given file.  The content is hashed while it's copied or encrypted to a
+     * temporary file, which is renamed to the blob or dropped when the blob already exists, so the file is
+     * only read once.
+     * @param source the file to store
+     * @param password the encryption password, or null if the content is stored unencrypted
+     * @param chunked true to store the content as chunks (see shouldChunk)
+     * @param codec the codec that compresses encrypted content before it's encrypted
+     * @return the hash of the content
+     * @throws IOException if the file can't be read or the blob can't be written
+     */
+    public String store(File source, String password, boolean chunked, DataEncryption.Codec codec)
+            throws IOException {
+        if (chunked) return storeChunks(source, password, codec);
+        boolean encrypted = password != null;
+        if (encrypted) {
+            ChecksumManifest.Digests digests = new ChecksumManifest.Digests(Collections.singletonList(hash));
+            File temp = createTempFile(null);
+            try {
+                dataEncryption.cipherStreamEncrypt(password, source, temp, codec, digests, null);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            String contentHash = digests.getHexValue(hash);
+            File blob = getBlobFile(contentHash, true);
+            if (blob.isFile()) {
+                temp.delete();
+            } else {
+                commit(temp, blob);
+            }
+            return contentHash;
+        }
+        MessageDigest digest = newDigest();
+        File temp = createTempFile(null);
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(temp)) {
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        String contentHash = DataEncryption.toHexString(digest.digest());
+        File blob = getBlobFile(contentHash, false);
+        if (blob.isFile()) {
+            temp.delete();
+        } else {
+            commit(temp, blob);
+        }
+        return contentHash;
+    }
+
+    /**
+     * store the content of the given file as chunks.  The file is read once; every chunk is hashed as it's
+     * found, and only the chunks the store doesn't have yet are written.  The chunk list is written last, so
+     * a chunk list in the store means all of its chunks are there as well.
+     */
+    private String storeChunks(File source, String password, DataEncryption.Codec codec) throws IOException {
+        boolean encrypted = password != null;
+        MessageDigest contentDigest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        StringBuilder chunkList = new StringBuilder();
+        byte[] buffer = new byte[chunker.getMaxSize()];
+        int filled = 0;
+        boolean endOfFile = false;
+        try (InputStream in = new FileInputStream(source)) {
+            while (true) {
+                // the chunker needs a full buffer to find the next boundary, except at the end of the file
+                while (!endOfFile && filled < buffer.length) {
+                    int length = in.read(buffer, filled, buffer.length - filled);
+                    if (length < 0) {
+                        endOfFile = true;
+                    } else {
+                        filled += length;
+                    }
+                }
+                if (filled == 0) break;
+                int length = chunker.nextChunkLength(buffer, 0, filled);
+                contentDigest.update(buffer, 0, length);
+                chunkDigest.update(buffer, 0, length);
+                String chunkHash = DataEncryption.toHexString(chunkDigest.digest());
+                if (!contains(chunkHash, encrypted)) {
+                    storeChunk(chunkHash, buffer, length, password, codec);
+                }
+                chunkList.append(chunkHash).append('\t').append(length).append('\n');
+                System.arraycopy(buffer, length, buffer, 0, filled - length);
+                filled -= length;
+            }
+        }
+        String contentHash = DataEncryption.toHexString(contentDigest.digest());
+        File listFile = getChunkListFile(contentHash, encrypted);
+        if (!listFile.isFile()) {
+            File temp = createTempFile(listFile);
+            Files.write(temp.toPath(), chunkList.toString().getBytes(StandardCharsets.UTF_8));
+            commit(temp, listFile);
+        }
+        return contentHash;
+    }
+
+    private void storeChunk(String chunkHash, byte[] buffer, int length, String password,
+                            DataEncryption.Codec codec) throws IOException {
+        File blob = getBlobFile(chunkHash, password != null);
+        File temp = createTempFile(blob);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            if (password == null) {
+                out.write(buffer, 0, length);
+            } else {
+                dataEncryption.cipherStreamEncrypt(password, new ByteArrayInputStream(buffer, 0, length), out,
+                        codec);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        commit(temp, blob);
+    }
+
+    /**
+     * read the chunk list of a chunked content
+     * @param contentHash the hash of the whole content
+     * @param encrypted whether the chunks are encrypted
+     * @return the hashes of the chunks, in order
+     * @throws IOException if the chunk list is missing or can't be read
+     */
+    public List<String> readChunkList(String contentHash, boolean encrypted) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        for (String line : Files.readAllLines(getChunkListFile(contentHash, encrypted).toPath(),
+                StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) chunks.add(line.substring(0, tab));
+        }
+        return chunks;
+    }
+
+    /**
+     * restore a blob to the given file
+     * @param contentHash the hash of the blob
+     * @param encrypted whether the blob is encrypted
+     * @param chunked whether the content is stored as chunks
+     * @param password the encryption password, only used for encrypted blobs
+     * @param target the file to write the content to
+     * @throws IOException if the blob is missing or can't be copied
+     * @throws InvalidKeyException if the password doesn't match the password the blob was encrypted with
+     */
+    public void restore(String contentHash, boolean encrypted, boolean chunked, String password, File target)
+            throws IOException, InvalidKeyException {
+        if (chunked) {
+            restoreChunks(contentHash, encrypted, password, target);
+            return;
+        }
+        File blob = getBlobFile(contentHash, encrypted);
+        if (!blob.isFile()) throw new IOException("missing blob " + blob.getPath());
+        if (target.getParentFile() != null) target.getParentFile().mkdirs();
+        if (encrypted) {
+            dataEncryption.cipherStreamDecrypt(password, blob, target);
+        } else {
+            Files.copy(blob.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void restoreChunks(String contentHash, boolean encrypted, String password, File target)
+            throws IOException, InvalidKeyException {
+        List<String> chunks = readChunkList(contentHash, encrypted);
+        if (target.getParentFile() != null) target.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            restoreBlobs(chunks, encrypted, password, out);
+        }
+    }
+
+    /**
+     * restore the content of the given hash to a stream, the way restore writes it to a file
+     * @param contentHash the hash of the content
+     * @param encrypted whether the blobs are encrypted
+     * @param chunked whether the content is stored as chunks
+     * @param password the encryption password, only used for encrypted blobs
+     * @param out receives the content; it's not closed
+     * @throws IOException if a blob is missing or can't be read
+     * @throws InvalidKeyException if the password doesn't match the password the blobs were encrypted with
+     */
+    public void restore(String contentHash, boolean encrypted, boolean chunked, String password, OutputStream out)
+            throws IOException, InvalidKeyException {
+        restoreBlobs(chunked ? readChunkList(contentHash, encrypted) : Collections.singletonList(contentHash),
+                encrypted, password, out);
+    }
+
+    /**
+     * restore a range of the content of the given hash.  Only the blobs the range overlaps are read, and of an
+     * encrypted blob only the segments it overlaps (see DataEncryption.EncryptedFile), so a part of a large
+     * file is restored without restoring what comes before it.
+     * @param contentHash the hash of the content
+     * @param encrypted whether the blobs are encrypted
+     * @param chunked whether the content is stored as chunks
+     * @param password the encryption password, only used for encrypted blobs
+     * @param offset the offset of the range in the content
+     * @param length the length of the range; a range that reaches past the end of the content ends with it
+     * @param out receives the range; it's not closed
+     * @return the number of bytes written
+     * @throws IOException if a blob is missing or can't be read
+     * @throws InvalidKeyException if the password doesn't match the password the blobs were encrypted with
+     */
+    public long restoreRange(String contentHash, boolean encrypted, boolean chunked, String password, long offset,
+                             long length, WritableByteChannel out) throws IOException, InvalidKeyException {
+        if (!chunked) {
+            return restoreRange(getBlobFile(contentHash, encrypted), encrypted, password, offset, length, out);
+        }
+        long written = 0;
+        long start = 0;     // the offset of the chunk in the content
+        for (String line : Files.readAllLines(getChunkListFile(contentHash, encrypted).toPath(),
+                StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) continue;
+            long end;
+            try {
+                end = start + Long.parseLong(line.substring(tab + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("the chunk list of " + contentHash + " is damaged");
+            }
+            if (written >= length) break;
+            if (end > offset + written) {
+                written += restoreRange(getBlobFile(line.substring(0, tab), encrypted), encrypted, password,
+                        offset + written - start, length - written, out);
+            }
+            start = end;
+        }
+        return written;
+    }
+
+    private long restoreRange(File blob, boolean encrypted, String password, long offset, long length,
+                              WritableByteChannel out) throws IOException, InvalidKeyException {
+        if (!blob.isFile()) throw new IOException("missing blob " + blob.getPath());
+        if (encrypted) return dataEncryption.cipherRangeDecrypt(password, blob, offset, length, out);
+        return copyRange(blob, offset, length, out);
+    }
+
+    /**
+     * copy a range of a file
+     * @param file the file to copy from
+     * @param offset the offset of the range
+     * @param length the length of the range; a range that reaches past the end of the file ends with it
+     * @param out receives the range; it's not closed
+     * @return the number of bytes written
+     * @throws IOException if the file can't be read
+     */
+    static long copyRange(File file, long offset, long length, WritableByteChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = offset + Math.min(length, Math.max(0, in.size() - offset));
+            long position = offset;
+            while (position < end) {
+                long count = in.transferTo(position, end - position, out);
+                if (count <= 0) break;
+                position += count;
+            }
+            return Math.max(0, position - offset);
+        }
+    }
+
+    private void restoreBlobs(List<String> hashes, boolean encrypted, String password, OutputStream out)
+            throws IOException, InvalidKeyException {
+        for (String blobHash : hashes) {
+            File blob = getBlobFile(blobHash, encrypted);
+            if (!blob.isFile()) throw new IOException("missing blob " + blob.getPath());
+            if (encrypted) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(blob), 1 << 16)) {
+                    dataEncryption.cipherStreamDecrypt(password, in, out);
+                }
+            } else {
+                Files.copy(blob.toPath(), out);
+            }
+        }
+    }
+
+    /**
+     * delete the blobs that aren't referenced by any of the given hashes, and the temporary files that were
+     * left behind by backups that didn't complete.  This must only be run while holding the store's lock
+     * (see lock), so no other backup is writing to the store.
+     * @param referenced the hashes referenced by the remaining snapshots, including the chunks of their
+     *                   chunked content
+     * @return the number of blobs deleted
+     */
+    public long collectGarbage(Set<String> referenced) {
+        long deleted = 0;
+        // the temporary files of unchunked content are created in the blob directory itself
+        File[] temps = blobDirectory.listFiles(file -> file.isFile() && file.getName().startsWith(tempPrefix) &&
+                file.getName().endsWith(tempSuffix));
+        if (temps != null) {
+            for (File temp : temps) {
+                if (temp.delete()) deleted++;
+            }
+        }
+        File[] fanouts = blobDirectory.listFiles(File::isDirectory);
+        if (fanouts == null) return deleted;
+        for (File fanout : fanouts) {
+            try (DirectoryStream<Path> blobs = Files.newDirectoryStream(fanout.toPath())) {
+                for (Path blob : blobs) {
+                    String name = blob.getFileName().toString();
+                    if (name.endsWith(chunkListExtension)) {
+                        name = name.substring(0, name.length() - chunkListExtension.length());
+                    }
+                    if (name.endsWith(BackupEngine.encryptionFileExtension)) {
+                        name = name.substring(0, name.length() - BackupEngine.encryptionFileExtension.length());
+                    }
+                    // leftover temporary files aren't referenced either
+                    if (!referenced.contains(name) && Files.deleteIfExists(blob)) {
+                        deleted++;
+                    }
+                }
+            } catch (IOException e) {
+                // leave the blobs we can't get to
+            }
+        }
+        return deleted;
+    }
+
+    public long getBlobsWritten() {
+        return blobsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    private File createTempFile(File blob) throws IOException {
+        File dir = (blob == null) ? blobDirectory : blob.getParentFile();
+        dir.mkdirs();
+        return File.createTempFile(tempPrefix, tempSuffix, dir);
+    }
+
+    /**
+     * move a completely written temporary file to its blob.  If another thread stored the same content at
+     * the same time, the blob is simply replaced by identical content.
+     */
+    private void commit(File temp, File blob) throws IOException {
+        blob.getParentFile().mkdirs();
+        long size = temp.length();
+        try {
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        blobsWritten.incrementAndGet();
+        bytesWritten.addAndGet(size);
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(hash.getName());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -17,27 +17,169 @@ package com.phinneyridge.tools.backup;
 //import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class DataEncryption {
     Provider provider = null; // = Security.getProvider("BC");
     private static final String IV = "encryptionIntVec";
-    private final String AES_Transformation = "AES/CBC/PKCS5Padding";
-    public Random random = new Random();
+    private static final String AES_Transformation = "AES/CBC/PKCS5Padding";
+    private static final int blockSize = 16;    // the aes block size
+    private static final int tagLength = 16;    // the authentication tag at the end of every segment
+    // salt, ivBytes, check block and segment size
+    private static final int segmentHeaderSize = 8 + 16 + blockSize + 4;
+    private static final int recordHeaderSize = 4 + 1 + 1;     // stored length, codec and last segment flag
+    // record offset, stored length, content length, codec and tag
+    private static final int indexEntrySize = 8 + 4 + 4 + 1 + tagLength;
+    public static final int defaultBufferSize = 1024 * 1024;
+    // the largest segment a file may have; the segment size is read from the file before it's authenticated
+    private static final int maxSegmentSize = 64 * 1024 * 1024;
+    public Random random = new SecureRandom();
+    private static final byte[] fileKeyInfo = "backup-utility file key".getBytes(StandardCharsets.UTF_8);
+    private volatile byte[] masterKey = null;   // the job's master key, see JobKey
+    private int bufferSize = defaultBufferSize;
+    // a cipher is busy with one file at a time, more contexts than cores would only hold memory
+    private final int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+    private final BlockingQueue<CipherContext> idleContexts = new LinkedBlockingQueue<>();
+    private final AtomicInteger contextCount = new AtomicInteger();    // contexts created and not dropped
+    // the segments of a file that are encrypted or decrypted at the same time, at most
+    private final int segmentParallelism = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private Codec codec = Codec.none;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private CipherSuite cipherSuite = CipherSuite.aesGcm;
+    private static volatile CipherSuite fastestCipherSuite = null;
+
+    /**
+     * the codecs that can compress the content before it's encrypted.  Encrypted content can't be
+     * compressed, so compression has to happen first.  The id of the codec is recorded in the key check
+     * block of the encrypted file, so the content is decompressed without having to know how it was written.
+     */
+    public enum Codec {
+        none(0),    // the content is encrypted as it is
+        deflate(1); // the content is compressed with java.util.zip.Deflater
+
+        private final int id;
+
+        Codec(int id) {
+            this.id = id;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        static Codec fromId(int id) {
+            for (Codec codec : values()) {
+                if (codec.id == id) return codec;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * the authenticated ciphers the segments of a file can be encrypted with.  The id of the suite is recorded
+     * in the key check block, so a file is decrypted with the suite it was encrypted with, whatever the job's
+     * suite is now.  AES-GCM is the fastest where the processor has aes instructions, ChaCha20-Poly1305 where
+     * it doesn't; see getFastestCipherSuite.
+     */
+    public enum CipherSuite {
+        aesGcm(0, "AES/GCM/NoPadding", "AES", 16, "backup-utility segment key"),
+        chacha20Poly1305(1, "ChaCha20-Poly1305", "ChaCha20", 32, "backup-utility chacha20-poly1305 segment key");
+
+        private final int id;
+        private final String transformation;
+        private final String algorithm;
+        private final int keyLength;
+        private final byte[] keyInfo;   // the info the segment key is derived with, see deriveSegmentKey
+
+        CipherSuite(int id, String transformation, String algorithm, int keyLength, String keyInfo) {
+            this.id = id;
+            this.transformation = transformation;
+            this.algorithm = algorithm;
+            this.keyLength = keyLength;
+            this.keyInfo = keyInfo.getBytes(StandardCharsets.UTF_8);
+        }
+
+        int getId() {
+            return id;
+        }
+
+        static CipherSuite fromId(int id) {
+            for (CipherSuite suite : values()) {
+                if (suite.id == id) return suite;
+            }
+            return null;
+        }
+
+        /**
+         * @return the cipher parameters for the given 12 byte nonce, with a 16 byte tag
+         */
+        AlgorithmParameterSpec getParameters(byte[] nonce) {
+            return (this == aesGcm) ? new GCMParameterSpec(tagLength * 8, nonce) : new IvParameterSpec(nonce);
+        }
+    }
+
+    /**
+     * the formats of the encrypted content.  The id of the format is recorded in the key check block, next to
+     * the id of the codec.
+     */
+    private enum Format {
+        cbc(0),         // a single aes-cbc stream, as files were encrypted before there were segments
+        records(2);     // segments that are compressed on their own, in records, with a segment index at the end
+
+        private final int id;
+
+        Format(int id) {
+            this.id = id;
+        }
+
+        int getId() {
+            return id;
+        }
+
+        static Format fromId(int id) {
+            for (Format format : values()) {
+                if (format.id == id) return format;
+            }
+            return null;
+        }
+    }
 
     public DataEncryption() {
         /*
@@ -72,132 +214,1391 @@ public class DataEncryption {
     }
      */
 
-    public void cipherStreamEncrypt(String passPhrase, File inputFile, File outputFile) {
+    /**
+     * set the compression used by the encrypt methods that don't take a codec
+     * @param codec the codec that compresses the content before it's encrypted
+     * @param level the compression level (Deflater.DEFAULT_COMPRESSION, or 0 to 9)
+     */
+    void setCompression(Codec codec, int level) {
+        this.codec = codec;
+        this.compressionLevel = level;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * set the cipher suite the segments of the files that are encrypted from now on are encrypted with
+     */
+    void setCipherSuite(CipherSuite cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * get the cipher suite that encrypts the fastest on this host.  The suites are measured the first time
+     * it's asked for, encrypting a megabyte over and over with each suite, which takes up to a second.
+     * @return the fastest cipher suite
+     */
+    public static CipherSuite getFastestCipherSuite() {
+        CipherSuite suite = fastestCipherSuite;
+        if (suite == null) {
+            synchronized (DataEncryption.class) {
+                if (fastestCipherSuite == null) {
+                    byte[] data = new byte[1024 * 1024];
+                    CipherSuite fastest = CipherSuite.aesGcm;
+                    long best = Long.MAX_VALUE;
+                    for (CipherSuite candidate : CipherSuite.values()) {
+                        long time = measureCipherSuite(candidate, data, 64);
+                        if (time < best) {
+                            best = time;
+                            fastest = candidate;
+                        }
+                    }
+                    fastestCipherSuite = fastest;
+                }
+                suite = fastestCipherSuite;
+            }
+        }
+        return suite;
+    }
+
+    /**
+     * measure how long the given cipher suite takes to encrypt the given data.  The runtime only switches to
+     * its fastest code for a suite (which for aes-gcm is many times faster) after the suite has been busy for
+     * a while, so only the best of the rounds counts.
+     * @param suite the cipher suite
+     * @param data the data to encrypt
+     * @param rounds the number of times the data are encrypted
+     * @return the time of the fastest round in nanoseconds, or Long.MAX_VALUE if the suite isn't available
+     */
+    static long measureCipherSuite(CipherSuite suite, byte[] data, int rounds) {
+        try {
+            Cipher cipher = Cipher.getInstance(suite.transformation);
+            byte[] key = new byte[suite.keyLength];
+            new SecureRandom().nextBytes(key);
+            SecretKey secretKey = new SecretKeySpec(key, suite.algorithm);
+            // direct buffers like the cipher contexts use, encrypted a piece at a time, which gets the suite's
+            // fastest code going sooner than a few large pieces do
+            int pieceSize = 16 * 1024;
+            ByteBuffer input = ByteBuffer.allocateDirect(data.length);
+            input.put(data);
+            ByteBuffer output = ByteBuffer.allocateDirect(pieceSize + tagLength);
+            ByteBuffer nonce = ByteBuffer.allocate(12);
+            int count = 0;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (int offset = 0; offset < data.length; offset += pieceSize) {
+                    // a suite doesn't allow a nonce to be used twice with the same key
+                    nonce.putInt(8, count++);
+                    input.limit(Math.min(data.length, offset + pieceSize)).position(offset);
+                    output.clear();
+                    cipher.init(Cipher.ENCRYPT_MODE, secretKey, suite.getParameters(nonce.array()));
+                    cipher.doFinal(input, output);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best;
+        } catch (GeneralSecurityException e) {
+            // the suite isn't supported by this java runtime
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * read from the given channel until the buffer is full or the channel has no more content
+     * @return true if the end of the channel was reached
+     */
+    private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) return true;
+        }
+        return false;
+    }
 
-        FileOutputStream fileOutput = null;
-        FileInputStream fileInput = null;
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * get a cipher context from the pool.  A new context is created while the pool has less than poolSize
+     * of them; after that the caller waits for a context to be released.
+     */
+    private CipherContext acquireContext() throws IOException {
+        CipherContext context = tryAcquireContext(bufferSize);
+        if (context != null) return context;
         try {
-            if (!outputFile.exists()) {
-                outputFile.getParentFile().mkdirs();
-                outputFile.createNewFile();
+            return idleContexts.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a cipher");
+        }
+    }
+
+    /**
+     * get a cipher context from the pool without waiting
+     * @param capacity the capacity of the input buffer the context must have
+     * @return the context, or null when the pool has none to spare
+     */
+    private CipherContext tryAcquireContext(int capacity) throws IOException {
+        if (capacity != bufferSize) return null;
+        CipherContext context = idleContexts.poll();
+        if (context != null) return context;
+        if (contextCount.incrementAndGet() <= poolSize) {
+            try {
+                return new CipherContext(bufferSize);
+            } catch (GeneralSecurityException e) {
+                contextCount.decrementAndGet();
+                throw new IOException("unable to create the cipher: " + e.getMessage(), e);
             }
+        }
+        contextCount.decrementAndGet();
+        return null;
+    }
+
+    private void releaseContext(CipherContext context) {
+        if (context.input.capacity() == bufferSize) {
+            idleContexts.offer(context);
+        } else {
+            // the buffer size was changed while the context was in use
+            contextCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * a cipher with the direct buffers the content is read into and encrypted or decrypted into.  The
+     * contexts are pooled, so the cipher instances and their buffers are reused from file to file, and the
+     * size of the pool bounds the direct memory that is used.
+     */
+    private static class CipherContext {
+        final Cipher cipher;        // decrypts the files that were encrypted before there were segments
+        final Cipher checkCipher;   // encrypts or decrypts the check block alone
+        private final EnumMap<CipherSuite, Cipher> segmentCiphers = new EnumMap<>(CipherSuite.class);
+        final ByteBuffer input;
+        final ByteBuffer output;
+        // the segment the context holds, see Segments
+        int segmentIndex;
+        boolean last;
+        int plainLength;
+        Codec segmentCodec;
+        byte[] recordHeader;
+        ByteBuffer result;
+        private Deflater deflater;
+        private Inflater inflater;
+
+        CipherContext(int bufferSize) throws GeneralSecurityException {
+            cipher = Cipher.getInstance(AES_Transformation);
+            checkCipher = Cipher.getInstance("AES/CBC/NoPadding");
+            input = ByteBuffer.allocateDirect(bufferSize);
+            // the cipher wants room for the input, the partial block it holds and a block of padding
+            output = ByteBuffer.allocateDirect(bufferSize + 2 * blockSize);
+        }
+
+        Cipher getSegmentCipher(CipherSuite suite) throws GeneralSecurityException {
+            Cipher cipher = segmentCiphers.get(suite);
+            return (cipher == null) ? newSegmentCipher(suite) : cipher;
+        }
+
+        /**
+         * replace the context's cipher of the given suite with a new one
+         */
+        Cipher newSegmentCipher(CipherSuite suite) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(suite.transformation);
+            segmentCiphers.put(suite, cipher);
+            return cipher;
+        }
+
+        Deflater getDeflater(int level) {
+            if (deflater == null) deflater = new Deflater(level);
+            deflater.reset();
+            deflater.setLevel(level);
+            return deflater;
+        }
+
+        Inflater getInflater() {
+            if (inflater == null) inflater = new Inflater();
+            inflater.reset();
+            return inflater;
+        }
+    }
+
+    /**
+     * set the size of the buffers the content is encrypted and decrypted through.  Larger buffers mean
+     * fewer reads, writes and cipher calls per file; every pooled cipher holds two of them as direct memory.
+     * The buffer size is the segment size of the files that are encrypted from now on.  It's recorded in
+     * each file, so a file is decrypted whatever the buffer size is when it's decrypted.
+     * @param bufferSize the buffer size in bytes, at most 64 MB
+     */
+    void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0 || bufferSize > maxSegmentSize) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        // the idle contexts have the old size, in use contexts are dropped when they are released
+        CipherContext context;
+        while ((context = idleContexts.poll()) != null) {
+            contextCount.decrementAndGet();
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * set the job's master key.  While it's set, every file is encrypted with a key derived from the master
+     * key and the file's salt with HKDF, instead of running PBKDF2 on the password for every file.  Files
+     * that were encrypted with a key derived from the password alone can still be decrypted.
+     * @param masterKey the master key unlocked from the job's key header (see JobKey), or null to derive
+     *                  every file's key from the password
+     */
+    void setMasterKey(byte[] masterKey) {
+        this.masterKey = masterKey;
+    }
+
+    /**
+     * encrypt the given file, compressing it first with the codec and the level set by setCompression
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param inputFile the file to encrypt
+     * @param outputFile the encrypted file
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, File inputFile, File outputFile) throws IOException {
+        cipherStreamEncrypt(passPhrase, inputFile, outputFile, codec);
+    }
+
+    /**
+     * encrypt the given file, compressing it first with the given codec and the level set by setCompression
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param inputFile the file to encrypt
+     * @param outputFile the encrypted file
+     * @param codec the codec that compresses the content before it's encrypted
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, File inputFile, File outputFile, Codec codec)
+            throws IOException {
+        cipherStreamEncrypt(passPhrase, inputFile, outputFile, codec, null, null);
+    }
+
+    /**
+     * encrypt the given file like cipherStreamEncrypt(passPhrase, inputFile, outputFile, codec), and digest
+     * the content as it's read and the encrypted file as it's written, so neither has to be read again for
+     * its checksums
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param inputFile the file to encrypt
+     * @param outputFile the encrypted file
+     * @param codec the codec that compresses the content before it's encrypted
+     * @param content digests the content of the input file, or null
+     * @param stored digests the encrypted file, or null
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, File inputFile, File outputFile, Codec codec,
+                                    ChecksumManifest.Digests content, ChecksumManifest.Digests stored)
+            throws IOException {
+        if (!outputFile.exists()) {
+            outputFile.getParentFile().mkdirs();
+        }
+        try (FileChannel fileInput = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel fileOutput = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
             outputFile.setWritable(true,false);
-            fileOutput = new FileOutputStream(outputFile);
-            fileInput = new FileInputStream(inputFile);
-        } catch (FileNotFoundException e) {
-        } catch (IOException e) {
+            encrypt(passPhrase, content == null ? fileInput : content.digestReads(fileInput),
+                    stored == null ? fileOutput : stored.digestWrites(fileOutput), codec, compressionLevel);
         }
+    }
+
+    /**
+     * encrypt the given input to the given output, compressing it first with the codec that was set by
+     * setCompression
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param input the content to encrypt; it's read to its end but not closed
+     * @param output receives the encrypted content; it's not closed
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, InputStream input, OutputStream output) throws IOException {
+        cipherStreamEncrypt(passPhrase, input, output, codec, compressionLevel);
+    }
+
+    /**
+     * encrypt the given input to the given output, compressing it first with the given codec and the level
+     * set by setCompression
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param input the content to encrypt; it's read to its end but not closed
+     * @param output receives the encrypted content; it's not closed
+     * @param codec the codec that compresses the content before it's encrypted
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, InputStream input, OutputStream output, Codec codec)
+            throws IOException {
+        cipherStreamEncrypt(passPhrase, input, output, codec, compressionLevel);
+    }
+
+    /**
+     * encrypt the given input to the given output
+     * @param passPhrase the password or phrase the encryption key is generated from
+     * @param input the content to encrypt; it's read to its end but not closed
+     * @param output receives the encrypted content; it's not closed
+     * @param codec the codec that compresses the content before it's encrypted
+     * @param level the compression level (Deflater.DEFAULT_COMPRESSION, or 0 to 9)
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamEncrypt(String passPhrase, InputStream input, OutputStream output, Codec codec,
+                                    int level) throws IOException {
+        encrypt(passPhrase, Channels.newChannel(input), Channels.newChannel(output), codec, level);
+    }
+
+    /**
+     * encrypt the given input to the given output.  The output begins with the 8 byte salt and the 16 byte
+     * initialization vector, followed by the aes encrypted check block (used to check the key when
+     * decrypting), the 4 byte segment size, the records of the segments and the segment index.  The check
+     * block is the ivBytes with the id of the format xor'ed into its second to last byte and the id of the
+     * codec into its last byte; the files written before there were segments have a check block with a format
+     * of cbc.
+     * <p>
+     * The content is split into segments of the buffer size, and every segment is compressed and encrypted on
+     * its own with aes-gcm, so the segments of a large file are processed in parallel (see Segments).  The
+     * record of a segment is a 6 byte record header (the length of the encrypted segment, its codec and
+     * whether it's the last segment) followed by the encrypted segment, which ends with its authentication
+     * tag.  A segment is only compressed when it gets smaller.  The nonce of a segment is derived from the
+     * ivBytes, the index of the segment and whether it's the last segment; the last segment is always shorter
+     * than the segment size, it's empty when the content fills the segments exactly.  So segments can't be
+     * reordered, left out or cut off without the decryption noticing.  The file header and the record header
+     * are authenticated with every segment.
+     * <p>
+     * The segment index at the end lists the offset, the lengths, the codec and the tag of every segment; it's
+     * encrypted too, and followed by its own 8 byte offset.  It lets an EncryptedFile find any segment without
+     * reading the ones before it.
+     */
+    private void encrypt(String passPhrase, ReadableByteChannel input, WritableByteChannel output, Codec codec,
+                         int level) throws IOException {
+        CipherContext context = acquireContext();
         try {
-            final Cipher cipher = Cipher.getInstance(AES_Transformation);
             byte[] ivBytes = new byte[16];
             byte[] saltBytes = new byte[8];
             random.nextBytes(saltBytes); // randomize the salt
             random.nextBytes(ivBytes); // randomize the ivBytes
-            SecretKey secretKey = generateSecretKey(passPhrase, saltBytes);
-            IvParameterSpec iv = new IvParameterSpec(ivBytes);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, iv);
-            //output = new CipherOutputStream(fileOutput,cipher);
-            byte[] filebytes = new byte[1024];
-            byte[]encryptedBytes;
+            byte[] key = masterKey;
+            SecretKey secretKey = (key == null) ? generateSecretKey(passPhrase, saltBytes) :
+                    deriveFileKey(key, saltBytes);
+            // when we decrypt the contents we use the check block to determine
+            // if the right key was used, and how the content was written.
+            byte[] checkBytes = ivBytes.clone();
+            CipherSuite suite = cipherSuite;
+            checkBytes[checkBytes.length - 3] ^= suite.getId();
+            checkBytes[checkBytes.length - 2] ^= Format.records.getId();
+            checkBytes[checkBytes.length - 1] ^= codec.getId();
+            context.checkCipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(ivBytes));
+            int segmentSize = context.input.capacity();
+            ByteBuffer header = ByteBuffer.allocate(segmentHeaderSize);
             // file begins with 8 byte salt (PBE - password base encryption)
-            fileOutput.write(saltBytes);
+            header.put(saltBytes);
             // file then contains  16 byte initialization vector (used in AES encryption)
-            fileOutput.write(ivBytes);
-            // the aes encrypted contents now follows
-            long fileSize = inputFile.length();
-            // next we begin by encrypting the ivBytes.
-            // when we decrypt the contents we use that to determine
-            // if the right key was used.
-            encryptedBytes = cipher.update(ivBytes);
-            fileOutput.write(encryptedBytes);
-            int bytesRead;
-            // we now write out the encrypted file content
-            if (fileSize > 0) {
-                // this can be skipped for empty files  (size = 0);
-                // The "fileInput.read" operation throws an "IOException: Stream Closed" for empty files
-                while ((bytesRead = fileInput.read(filebytes, 0, 1024)) > 0) {
-                    encryptedBytes = cipher.update(filebytes, 0, bytesRead);
-                    fileOutput.write(encryptedBytes);
-                }
-            }
-            encryptedBytes = cipher.doFinal();
-            fileOutput.write(encryptedBytes);
-        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
-            noSuchAlgorithmException.printStackTrace();
-        } catch (NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException |
-                BadPaddingException | InvalidAlgorithmParameterException e) {
+            header.put(ivBytes);
+            header.put(context.checkCipher.doFinal(checkBytes));
+            header.putInt(segmentSize);
+            header.flip();
+            writeFully(output, header);
+            SegmentCipher segmentCipher = new SegmentCipher(suite, deriveSegmentKey(secretKey, saltBytes, suite),
+                    ivBytes, header.array(), segmentSize, codec, level);
+            new Segments(segmentCipher, true, context).run(input, output);
+        } catch (GeneralSecurityException e) {
             // these exceptions are not expected
-        } catch (IOException e) {
-            // there was a problem writing the output to file;
+            throw new IOException("unable to encrypt: " + e.getMessage(), e);
         } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     * encrypts and decrypts the segments of one file.  A segment is processed in a cipher context: the content
+     * of the segment is read into the input buffer, or its encrypted record into the output buffer, and
+     * the result is left in whichever buffer the last step wrote to.
+     */
+    private static class SegmentCipher {
+        final CipherSuite suite;
+        final SecretKey key;
+        final byte[] ivBytes;
+        final byte[] header;        // the file header, it's authenticated with every segment
+        final int segmentSize;
+        final Codec codec;          // the codec the segments are compressed with, when they get smaller
+        final int level;
+
+        SegmentCipher(CipherSuite suite, SecretKey key, byte[] ivBytes, byte[] header, int segmentSize,
+                      Codec codec, int level) {
+            this.suite = suite;
+            this.key = key;
+            this.ivBytes = ivBytes;
+            this.header = header;
+            this.segmentSize = segmentSize;
+            this.codec = codec;
+            this.level = level;
+        }
+
+        /**
+         * compress and encrypt the segment in the context's input buffer, and set its record header
+         */
+        void encrypt(CipherContext context) throws GeneralSecurityException {
+            ByteBuffer plain = context.input;
+            ByteBuffer source = plain;
+            context.plainLength = plain.remaining();
+            context.segmentCodec = Codec.none;
+            if (codec == Codec.deflate && context.plainLength > tagLength) {
+                ByteBuffer compressed = context.output;
+                compressed.clear();
+                // the compressed segment has to save more than the tag, so the encrypted segment fits the input
+                compressed.limit(context.plainLength - tagLength);
+                Deflater deflater = context.getDeflater(level);
+                deflater.setInput(plain);
+                deflater.finish();
+                while (!deflater.finished() && compressed.hasRemaining()) {
+                    deflater.deflate(compressed);
+                }
+                if (deflater.finished()) {
+                    compressed.flip();
+                    source = compressed;
+                    context.segmentCodec = Codec.deflate;
+                } else {
+                    plain.rewind();
+                }
+            }
+            ByteBuffer target = (source == plain) ? context.output : context.input;
+            target.clear();
+            context.recordHeader = recordHeader(source.remaining() + tagLength, context.segmentCodec, context.last);
+            Cipher cipher = init(context, Cipher.ENCRYPT_MODE, context.segmentIndex, context.last ? 1 : 0);
+            cipher.updateAAD(context.recordHeader);
+            cipher.doFinal(source, target);
+            target.flip();
+            context.result = target;
+        }
+
+        /**
+         * decrypt and decompress the segment in the context's output buffer
+         * @throws AEADBadTagException if the segment isn't the one that was encrypted at its place
+         */
+        void decrypt(CipherContext context) throws GeneralSecurityException, IOException {
+            ByteBuffer plain = context.input;
+            plain.clear();
+            Cipher cipher = init(context, Cipher.DECRYPT_MODE, context.segmentIndex, context.last ? 1 : 0);
+            cipher.updateAAD(context.recordHeader);
+            cipher.doFinal(context.output, plain);
+            plain.flip();
+            context.result = plain;
+            if (context.segmentCodec == Codec.deflate) {
+                ByteBuffer inflated = context.output;
+                inflated.clear();
+                inflated.limit(segmentSize);
+                Inflater inflater = context.getInflater();
+                inflater.setInput(plain);
+                try {
+                    while (!inflater.finished() && inflated.hasRemaining() && !inflater.needsInput() &&
+                            !inflater.needsDictionary()) {
+                        inflater.inflate(inflated);
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("the compressed content is damaged", e);
+                }
+                if (!inflater.finished()) throw new IOException("the compressed content is damaged");
+                inflated.flip();
+                context.result = inflated;
+            }
+        }
+
+        /**
+         * get the context's cipher of the file's suite, initialized for the segment with the given index and
+         * flag (see nonce), with the file header as its first additional authenticated data
+         */
+        Cipher init(CipherContext context, int mode, int index, int flag) throws GeneralSecurityException {
+            Cipher cipher = context.getSegmentCipher(suite);
             try {
-                fileInput.close();
-                fileOutput.close();
-            } catch (IOException e) {
+                cipher.init(mode, key, suite.getParameters(nonce(index, flag)));
+            } catch (InvalidKeyException e) {
+                if (mode != Cipher.DECRYPT_MODE) throw e;
+                // a chacha20 cipher refuses the key and nonce it was last initialized with, even to decrypt,
+                // so a segment that is decrypted again (the same blob restored twice) needs a new cipher
+                cipher = context.newSegmentCipher(suite);
+                cipher.init(mode, key, suite.getParameters(nonce(index, flag)));
             }
+            cipher.updateAAD(header);
+            return cipher;
         }
 
+        /**
+         * the nonce of a segment: the first 7 ivBytes, the index of the segment and a byte that's 1 for the last
+         * segment; the segment index is encrypted with an index of -1 and a last byte of 2.  Every file has its
+         * own key, so the nonces only have to be unique within the file.
+         */
+        byte[] nonce(int index, int flag) {
+            ByteBuffer nonce = ByteBuffer.allocate(12);
+            nonce.put(ivBytes, 0, 7);
+            nonce.putInt(index);
+            nonce.put((byte) flag);
+            return nonce.array();
+        }
 
+        static byte[] recordHeader(int storedLength, Codec codec, boolean last) {
+            ByteBuffer recordHeader = ByteBuffer.allocate(recordHeaderSize);
+            recordHeader.putInt(storedLength);
+            recordHeader.put((byte) codec.getId());
+            recordHeader.put((byte) (last ? 1 : 0));
+            return recordHeader.array();
+        }
     }
 
-    public void cipherStreamDecrypt(String passPhrase, File inputFile, File outputFile) throws InvalidKeyException {
+    /**
+     * encrypts or decrypts the segments of a file in parallel.  The calling thread reads the segments and writes
+     * the results in order, while the segments in between are processed by the common fork join pool.  Every
+     * segment in flight is held in a cipher context of its own: besides the one the caller acquired, the file
+     * uses contexts that are idle in the pool, but it doesn't wait for them; with no context to spare the
+     * segments are processed one at a time.  A file of a single segment is processed by the calling thread.
+     */
+    private class Segments {
+        private final SegmentCipher segmentCipher;
+        private final boolean encrypting;
+        private final CipherContext first;     // the context the caller acquired, the caller releases it
+        private final Deque<CipherContext> available = new ArrayDeque<>();    // contexts that aren't in flight
+        private final Deque<ForkJoinTask<CipherContext>> inFlight = new ArrayDeque<>();
+        private final List<CipherContext> borrowed = new ArrayList<>();
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream(); // the segment index entries
+        private int segmentCount = 0;
+        private long position = segmentHeaderSize;    // the offset of the next record in the encrypted file
 
-        FileOutputStream fileOutput = null;
-        FileInputStream fileInput = null;
+        Segments(SegmentCipher segmentCipher, boolean encrypting, CipherContext first) {
+            this.segmentCipher = segmentCipher;
+            this.encrypting = encrypting;
+            this.first = first;
+        }
 
-        try {
-            if (!outputFile.exists()) {
-                outputFile.getParentFile().mkdirs();
-                outputFile.createNewFile();
+        /**
+         * @throws IOException if a segment can't be read or written, or a segment is missing
+         * @throws GeneralSecurityException if a segment can't be encrypted, or doesn't decrypt to what was
+         * encrypted
+         */
+        void run(ReadableByteChannel from, WritableByteChannel to) throws IOException, GeneralSecurityException {
+            available.add(first);
+            try {
+                boolean last = false;
+                for (int index = 0; !last; index++) {
+                    if (inFlight.size() >= segmentParallelism) {
+                        available.add(complete(inFlight.poll(), to));
+                    }
+                    CipherContext context = available.poll();
+                    if (context == null) {
+                        context = tryAcquireContext(first.input.capacity());
+                        if (context != null) {
+                            borrowed.add(context);
+                        } else {
+                            // a context of this file is the next to be free
+                            context = complete(inFlight.poll(), to);
+                        }
+                    }
+                    context.segmentIndex = index;
+                    try {
+                        last = encrypting ? readContent(from, context) : readRecord(from, context);
+                    } catch (IOException e) {
+                        available.add(context);
+                        throw e;
+                    }
+                    if (index == 0 && last) {
+                        process(context);
+                        write(context, to);
+                        available.add(context);
+                    } else {
+                        CipherContext segment = context;
+                        inFlight.add(ForkJoinPool.commonPool().submit(() -> {
+                            process(segment);
+                            return segment;
+                        }));
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    available.add(complete(inFlight.poll(), to));
+                }
+                if (encrypting) {
+                    writeIndex(to);
+                } else {
+                    checkIndex(from);
+                }
+            } finally {
+                // after a failure, the contexts of the segments still in flight can't be reused until they're done
+                for (ForkJoinTask<CipherContext> segment : inFlight) {
+                    segment.quietlyJoin();
+                }
+                for (CipherContext context : borrowed) {
+                    releaseContext(context);
+                }
+            }
+        }
+
+        private void process(CipherContext context) throws GeneralSecurityException, IOException {
+            if (encrypting) {
+                segmentCipher.encrypt(context);
+            } else {
+                segmentCipher.decrypt(context);
             }
-            fileOutput = new FileOutputStream(outputFile);
-            fileInput = new FileInputStream(inputFile);
-        } catch (IOException e) {
-            System.out.println("error opening files");
         }
+
+        /**
+         * read the content of the next segment into the context's input buffer
+         * @return true if it's the last segment
+         */
+        private boolean readContent(ReadableByteChannel from, CipherContext context) throws IOException {
+            ByteBuffer segment = context.input;
+            segment.clear();
+            context.last = fill(from, segment);
+            segment.flip();
+            return context.last;
+        }
+
+        /**
+         * read the record of the next segment into the context's output buffer
+         * @return true if it's the last segment
+         */
+        private boolean readRecord(ReadableByteChannel from, CipherContext context) throws IOException {
+            ByteBuffer segment = context.output;
+            segment.clear();
+            ByteBuffer recordHeader = ByteBuffer.allocate(recordHeaderSize);
+            fill(from, recordHeader);
+            if (recordHeader.hasRemaining()) throw new EOFException("the encrypted content is incomplete");
+            context.recordHeader = recordHeader.array();
+            readRecordHeader(context, segmentCipher.segmentSize);
+            segment.limit(recordHeader.getInt(0));
+            fill(from, segment);
+            if (segment.hasRemaining()) throw new EOFException("the encrypted content is incomplete");
+            segment.flip();
+            segmentCount++;
+            position += recordHeaderSize + segment.remaining();
+            return context.last;
+        }
+
+        /**
+         * wait for a segment in flight and write its result
+         * @return the segment's context, it's free to be used for the next segment
+         */
+        private CipherContext complete(ForkJoinTask<CipherContext> segment, WritableByteChannel to)
+                throws IOException, GeneralSecurityException {
+            CipherContext context;
+            try {
+                context = segment.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a segment");
+            } catch (ExecutionException e) {
+                // the fork join pool may wrap the exception of the segment in a RuntimeException
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+                    if (cause instanceof IOException) throw (IOException) cause;
+                }
+                throw new IOException("unable to process a segment: " + e.getCause().getMessage(), e.getCause());
+            }
+            write(context, to);
+            return context;
+        }
+
+        private void write(CipherContext context, WritableByteChannel to) throws IOException {
+            if (encrypting) {
+                ByteBuffer result = context.result;
+                int storedLength = result.remaining();
+                writeFully(to, ByteBuffer.wrap(context.recordHeader));
+                DataOutputStream entry = new DataOutputStream(entries);
+                entry.writeLong(position);
+                entry.writeInt(storedLength);
+                entry.writeInt(context.plainLength);
+                entry.writeByte(context.segmentCodec.getId());
+                for (int i = result.limit() - tagLength; i < result.limit(); i++) {
+                    entry.writeByte(result.get(i));
+                }
+                segmentCount++;
+                position += recordHeaderSize + storedLength;
+            }
+            writeFully(to, context.result);
+        }
+
+        /**
+         * write the encrypted segment index, followed by its offset
+         */
+        private void writeIndex(WritableByteChannel to) throws IOException, GeneralSecurityException {
+            ByteBuffer index = ByteBuffer.allocate(4 + entries.size());
+            index.putInt(segmentCount);
+            index.put(entries.toByteArray());
+            Cipher cipher = segmentCipher.init(first, Cipher.ENCRYPT_MODE, -1, 2);
+            writeFully(to, ByteBuffer.wrap(cipher.doFinal(index.array())));
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            trailer.putLong(position);
+            trailer.flip();
+            writeFully(to, trailer);
+        }
+
+        /**
+         * read the segment index that follows the last segment, and check that it's the index of the segments
+         * that were read.  The index is only needed to read the file at random, but nothing else may follow
+         * the last segment.
+         * @throws GeneralSecurityException if the index isn't the one that was encrypted with the segments
+         */
+        private void checkIndex(ReadableByteChannel from) throws IOException, GeneralSecurityException {
+            long indexLength = 4 + (long) segmentCount * indexEntrySize + tagLength;
+            if (indexLength + 8 > Integer.MAX_VALUE) throw new IOException("the encrypted content is damaged");
+            ByteBuffer index = ByteBuffer.allocate((int) indexLength + 8);
+            fill(from, index);
+            if (index.hasRemaining()) throw new EOFException("the encrypted content is incomplete");
+            if (!fill(from, ByteBuffer.allocate(1))) throw new IOException("the encrypted content is damaged");
+            Cipher cipher = segmentCipher.init(first, Cipher.DECRYPT_MODE, -1, 2);
+            ByteBuffer entries = ByteBuffer.wrap(cipher.doFinal(index.array(), 0, (int) indexLength));
+            if (entries.getInt() != segmentCount || index.getLong((int) indexLength) != position) {
+                throw new IOException("the encrypted content is damaged");
+            }
+        }
+    }
+
+    /**
+     * set the context's segment codec and last segment flag from its record header
+     * @throws IOException if the record header can't be valid
+     */
+    private static void readRecordHeader(CipherContext context, int segmentSize) throws IOException {
+        ByteBuffer recordHeader = ByteBuffer.wrap(context.recordHeader);
+        int storedLength = recordHeader.getInt();
+        context.segmentCodec = Codec.fromId(recordHeader.get());
+        int last = recordHeader.get();
+        if (storedLength < tagLength || storedLength > segmentSize + tagLength || context.segmentCodec == null ||
+                (last != 0 && last != 1)) {
+            throw new IOException("the encrypted content is damaged");
+        }
+        context.last = last == 1;
+    }
+
+    /**
+     * derive the key the segments of a file are encrypted with from the file's key, so the check block and the
+     * segments don't use the same key with different modes
+     */
+    private static SecretKey deriveSegmentKey(SecretKey fileKey, byte[] saltBytes, CipherSuite suite) {
+        return new SecretKeySpec(hkdf(fileKey.getEncoded(), saltBytes, suite.keyInfo, suite.keyLength),
+                suite.algorithm);
+    }
+
+    /**
+     * decrypt the given file
+     * @param passPhrase the password or phrase the file was encrypted with
+     * @param inputFile the encrypted file
+     * @param outputFile the decrypted file; what was written of it is left in place when the decryption fails
+     * @throws InvalidKeyException if the pass phrase isn't the one the file was encrypted with
+     * @throws IOException if the input can't be read, the output can't be written or a segment of the input
+     * is damaged, truncated or out of order
+     */
+    public void cipherStreamDecrypt(String passPhrase, File inputFile, File outputFile) throws InvalidKeyException,
+            IOException {
+        if (!outputFile.exists()) {
+            outputFile.getParentFile().mkdirs();
+        }
+        try (FileChannel fileInput = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel fileOutput = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            decrypt(passPhrase, fileInput, fileOutput);
+        }
+    }
+
+    /**
+     * decrypt content that was encrypted by cipherStreamEncrypt.  Compressed content is decompressed with
+     * the codec recorded in its check block.
+     * @param passPhrase the password or phrase the content was encrypted with
+     * @param input the encrypted content; it's read to its end but not closed
+     * @param output receives the decrypted content; it's not closed
+     * @throws InvalidKeyException if the pass phrase isn't the one the content was encrypted with
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public void cipherStreamDecrypt(String passPhrase, InputStream input, OutputStream output)
+            throws InvalidKeyException, IOException {
+        decrypt(passPhrase, Channels.newChannel(input), Channels.newChannel(output));
+    }
+
+    private void decrypt(String passPhrase, ReadableByteChannel input, WritableByteChannel output)
+            throws InvalidKeyException, IOException {
+        CipherContext context = acquireContext();
         try {
-            final Cipher cipher = Cipher.getInstance(AES_Transformation);
             byte[] saltBytes = new byte[8];
             byte[] ivBytes = new byte[16];
+            ByteBuffer header = ByteBuffer.allocate(saltBytes.length + ivBytes.length + blockSize);
+            fill(input, header);
+            if (header.hasRemaining()) {
+                throw new EOFException("the encrypted content is incomplete");
+            }
+            header.flip();
             // the encrypted file begins with 8 salt bytes
-            fileInput.read(saltBytes);
+            header.get(saltBytes);
             // the encrypted file begins with 16 initialization vector bytes
-            fileInput.read(ivBytes);
-            SecretKey secretKey = generateSecretKey(passPhrase, saltBytes);
+            header.get(ivBytes);
+            // the encrypted check block comes next, it tells which key the file was encrypted with
+            byte[] firstBlock = new byte[blockSize];
+            header.get(firstBlock);
             IvParameterSpec iv = new IvParameterSpec(ivBytes);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey,iv);
-            byte[] filebytes = new byte[1024];
-            byte[]decryptedBytes;
-            boolean firstTime = true;
-            while (fileInput.available()>0) {
-                int bytesRead = fileInput.read(filebytes,0, 1024);
-                decryptedBytes = cipher.update(filebytes,0,bytesRead);
-                if (firstTime) {
-                    for (int i = 0; i<ivBytes.length; i++) {
-                        if (ivBytes[i] != decryptedBytes[i]) {
-                            throw new InvalidKeyException(
-                                    "key used for decryption does not match key used for encryption");
-                        }
-                    }
-                    firstTime = false;
+            SecretKey secretKey = chooseKey(context, passPhrase, saltBytes, iv, firstBlock);
+            context.checkCipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
+            byte[] checkBytes = context.checkCipher.doFinal(firstBlock);
+            Codec codec = checkCodec(ivBytes, checkBytes);
+            if (checkFormat(ivBytes, checkBytes) == Format.cbc) {
+                decryptCbc(context, secretKey, iv, firstBlock, input, output);
+            } else {
+                ByteBuffer segmentHeader = ByteBuffer.allocate(segmentHeaderSize);
+                segmentHeader.put(header.array());
+                fill(input, segmentHeader);
+                if (segmentHeader.hasRemaining()) {
+                    throw new EOFException("the encrypted content is incomplete");
+                }
+                SegmentCipher segmentCipher = openSegments(secretKey, saltBytes, ivBytes, checkBytes,
+                        segmentHeader.array(), codec);
+                CipherContext segments = context;
+                if (segmentCipher.segmentSize > context.input.capacity()) {
+                    // the file was encrypted with larger buffers than the pool has now; its segments are
+                    // decrypted one at a time, in a context of their size that isn't pooled
+                    segments = new CipherContext(segmentCipher.segmentSize);
                 }
-                fileOutput.write(decryptedBytes);
+                new Segments(segmentCipher, false, segments).run(input, output);
             }
-            decryptedBytes = cipher.doFinal();
-            fileOutput.write(decryptedBytes);
-        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | BadPaddingException |
-                NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException e) {
+            throw e;
+        } catch (AEADBadTagException e) {
+            // the key was checked, so the segment was changed after it was encrypted
+            throw new IOException("the encrypted content is damaged");
+        } catch (BadPaddingException e) {
+            // the last block doesn't decrypt with this key
+            throw new InvalidKeyException("key used for decryption does not match key used for encryption");
+        } catch (GeneralSecurityException e) {
             // These exceptions are not expected
-        } catch (IOException e) {
-            // this indicates a problem reading the file
+            throw new IOException("unable to decrypt: " + e.getMessage(), e);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     * get the segment cipher of a file that was encrypted in segments
+     * @param header the file header, up to and including the segment size
+     * @throws IOException if the segment size can't be valid
+     */
+    private static SegmentCipher openSegments(SecretKey secretKey, byte[] saltBytes, byte[] ivBytes,
+                                              byte[] checkBytes, byte[] header, Codec codec)
+            throws IOException {
+        int segmentSize = ByteBuffer.wrap(header).getInt(segmentHeaderSize - 4);
+        if (segmentSize <= 0 || segmentSize > maxSegmentSize) {
+            throw new IOException("the encrypted content is damaged");
+        }
+        CipherSuite suite = checkSuite(ivBytes, checkBytes);
+        return new SegmentCipher(suite, deriveSegmentKey(secretKey, saltBytes, suite), ivBytes, header,
+                segmentSize, codec, 0);
+    }
+
+    /**
+     * decrypt a file that was encrypted before there were segments, as a single aes-cbc stream that begins
+     * with the check block
+     */
+    private static void decryptCbc(CipherContext context, SecretKey secretKey, IvParameterSpec iv, byte[] firstBlock,
+                                   ReadableByteChannel input, WritableByteChannel content)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = context.cipher;
+        cipher.init(Cipher.DECRYPT_MODE, secretKey,iv);
+        int checked = 0;    // the number of check block bytes that have been decrypted
+        ByteBuffer in = context.input;
+        ByteBuffer out = context.output;
+        in.clear();
+        in.put(firstBlock);
+        boolean endOfInput = false;
+        boolean finished = false;
+        while (!finished) {
+            out.clear();
+            if (endOfInput) {
+                in.clear();
+                in.flip();
+                cipher.doFinal(in, out);
+                finished = true;
+            } else {
+                endOfInput = fill(input, in);
+                in.flip();
+                cipher.update(in, out);
+                in.clear();
+            }
+            out.flip();
+            // the check block is only there to check the key and name the codec, it's not part of the content
+            while (checked < blockSize && out.hasRemaining()) {
+                out.get();
+                checked++;
+            }
+            writeFully(content, out);
+        }
+    }
+
+    /**
+     * open an encrypted file to read it at random
+     * @param passPhrase the password or phrase the file was encrypted with
+     * @param inputFile the encrypted file
+     * @return the encrypted file, or null when the file was encrypted before there were segments; such a
+     * file can only be decrypted as a whole
+     * @throws InvalidKeyException if the pass phrase isn't the one the file was encrypted with
+     * @throws IOException if the file can't be read, or its segment index is damaged
+     */
+    public EncryptedFile openEncryptedFile(String passPhrase, File inputFile) throws InvalidKeyException,
+            IOException {
+        FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+        CipherContext context = null;
+        try {
+            context = acquireContext();
+            ByteBuffer header = ByteBuffer.allocate(segmentHeaderSize);
+            readFully(channel, header, 0);
+            byte[] saltBytes = Arrays.copyOfRange(header.array(), 0, 8);
+            byte[] ivBytes = Arrays.copyOfRange(header.array(), 8, 24);
+            byte[] firstBlock = Arrays.copyOfRange(header.array(), 24, 24 + blockSize);
+            IvParameterSpec iv = new IvParameterSpec(ivBytes);
+            SecretKey secretKey = chooseKey(context, passPhrase, saltBytes, iv, firstBlock);
+            context.checkCipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
+            byte[] checkBytes = context.checkCipher.doFinal(firstBlock);
+            Codec codec = checkCodec(ivBytes, checkBytes);
+            if (checkFormat(ivBytes, checkBytes) != Format.records) return null;
+            SegmentCipher segmentCipher = openSegments(secretKey, saltBytes, ivBytes, checkBytes, header.array(),
+                    codec);
+            // the file ends with the offset of the segment index
+            long size = channel.size();
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            readFully(channel, trailer, size - 8);
+            long indexOffset = trailer.getLong(0);
+            if (indexOffset < segmentHeaderSize || indexOffset > size - 8 - tagLength ||
+                    size - 8 - indexOffset > Integer.MAX_VALUE) {
+                throw new IOException("the segment index is damaged");
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) (size - 8 - indexOffset));
+            readFully(channel, index, indexOffset);
+            Cipher cipher = segmentCipher.init(context, Cipher.DECRYPT_MODE, -1, 2);
+            EncryptedFile file = new EncryptedFile(channel, segmentCipher, indexOffset,
+                    ByteBuffer.wrap(cipher.doFinal(index.array())));
+            channel = null;
+            return file;
+        } catch (InvalidKeyException e) {
+            throw e;
+        } catch (AEADBadTagException | BufferUnderflowException e) {
+            throw new IOException("the segment index is damaged");
+        } catch (GeneralSecurityException e) {
+            // These exceptions are not expected
+            throw new IOException("unable to decrypt: " + e.getMessage(), e);
+        } finally {
+            if (context != null) releaseContext(context);
+            if (channel != null) channel.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        if (position < 0) throw new EOFException("the encrypted content is incomplete");
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) throw new EOFException("the encrypted content is incomplete");
+            position += count;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * decrypt the given file, continuing a decryption to the same output file that was interrupted.  The
+     * output file is kept up to the last segment it holds completely, and only the segments after it are
+     * decrypted; the segments it holds aren't read again, so it must be the output of an earlier decryption
+     * of the same file.  A file that was encrypted before there were segments is decrypted from the start.
+     * @param passPhrase the password or phrase the file was encrypted with
+     * @param inputFile the encrypted file
+     * @param outputFile the decrypted file, as far as it was decrypted before
+     * @return the number of bytes of the output file that were kept
+     * @throws InvalidKeyException if the pass phrase isn't the one the file was encrypted with
+     * @throws IOException if the input can't be read, the output can't be written or the input is damaged
+     */
+    public long cipherResumeDecrypt(String passPhrase, File inputFile, File outputFile)
+            throws InvalidKeyException, IOException {
+        try (EncryptedFile file = openEncryptedFile(passPhrase, inputFile)) {
+            if (file == null || !outputFile.exists()) {
+                cipherStreamDecrypt(passPhrase, inputFile, outputFile);
+                return 0;
+            }
+            try (FileChannel output = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE)) {
+                long kept = Math.min(output.size(), file.length());
+                if (kept < file.length()) kept -= kept % file.getSegmentSize();
+                output.truncate(kept);
+                output.position(kept);
+                file.read(kept, file.length() - kept, output);
+                return kept;
+            }
+        }
+    }
+
+    /**
+     * decrypt a range of the given file's content.  Only the segments the range overlaps are read; a file that
+     * was encrypted before there were segments is decrypted as a whole, and only the range is written.
+     * @param passPhrase the password or phrase the file was encrypted with
+     * @param inputFile the encrypted file
+     * @param offset the offset of the range in the decrypted content
+     * @param length the length of the range; a range that reaches past the end of the content ends with it
+     * @param output receives the decrypted range; it's not closed
+     * @return the number of bytes written
+     * @throws InvalidKeyException if the pass phrase isn't the one the file was encrypted with
+     * @throws IOException if the input can't be read, the output can't be written or the input is damaged
+     */
+    public long cipherRangeDecrypt(String passPhrase, File inputFile, long offset, long length,
+                                   WritableByteChannel output) throws InvalidKeyException, IOException {
+        try (EncryptedFile file = openEncryptedFile(passPhrase, inputFile)) {
+            if (file != null) {
+                long count = Math.min(length, Math.max(0, file.length() - offset));
+                file.read(Math.min(offset, file.length()), count, output);
+                return count;
+            }
+        }
+        RangeChannel range = new RangeChannel(output, offset, length);
+        try (FileChannel input = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            decrypt(passPhrase, input, range);
+        }
+        return range.written;
+    }
+
+    /**
+     * passes on the range of the content written to it, and drops the rest
+     */
+    private static class RangeChannel implements WritableByteChannel {
+        private final WritableByteChannel output;
+        private long skip;          // the bytes still to be dropped before the range
+        private final long length;
+        long written = 0;
+
+        RangeChannel(WritableByteChannel output, long offset, long length) {
+            this.output = output;
+            this.skip = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            int count = buffer.remaining();
+            int skipped = (int) Math.min(skip, count);
+            skip -= skipped;
+            buffer.position(buffer.position() + skipped);
+            int passed = (int) Math.min(length - written, buffer.remaining());
+            if (passed > 0) {
+                ByteBuffer range = buffer.duplicate();
+                range.limit(range.position() + passed);
+                writeFully(output, range);
+                written += passed;
+            }
+            buffer.position(buffer.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * an encrypted file that is read at random.  The segment index at the end of the file tells where the
+     * record of every segment begins, so a range of the content is decrypted by reading only the segments it
+     * overlaps, and every segment can be verified on its own.  The methods may be called from several threads.
+     */
+    public class EncryptedFile implements Closeable {
+        private final FileChannel channel;
+        private final SegmentCipher segmentCipher;
+        private final long[] offsets;       // the offset of every segment's record
+        private final byte[][] recordHeaders;
+        private final byte[][] tags;
+        private final long length;          // the length of the decrypted content
+
+        private EncryptedFile(FileChannel channel, SegmentCipher segmentCipher, long indexOffset, ByteBuffer index)
+                throws IOException {
+            this.channel = channel;
+            this.segmentCipher = segmentCipher;
+            int count = index.getInt();
+            if (count <= 0 || index.remaining() != (long) count * indexEntrySize) {
+                throw new IOException("the segment index is damaged");
+            }
+            offsets = new long[count];
+            recordHeaders = new byte[count][];
+            tags = new byte[count][tagLength];
+            long contentLength = 0;
+            long position = segmentHeaderSize;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = index.getLong();
+                int storedLength = index.getInt();
+                int plainLength = index.getInt();
+                Codec codec = Codec.fromId(index.get());
+                index.get(tags[i]);
+                boolean last = i == count - 1;
+                // the records follow each other without gaps, up to the segment index
+                int segmentSize = segmentCipher.segmentSize;
+                if (codec == null || offsets[i] != position || storedLength < tagLength ||
+                        storedLength > segmentSize + tagLength ||
+                        (last ? plainLength >= segmentSize : plainLength != segmentSize)) {
+                    throw new IOException("the segment index is damaged");
+                }
+                recordHeaders[i] = SegmentCipher.recordHeader(storedLength, codec, last);
+                contentLength += plainLength;
+                position += recordHeaderSize + storedLength;
+            }
+            if (position != indexOffset) throw new IOException("the segment index is damaged");
+            length = contentLength;
+        }
+
+        /**
+         * @return the length of the decrypted content
+         */
+        public long length() {
+            return length;
+        }
+
+        public int getSegmentCount() {
+            return recordHeaders.length;
+        }
+
+        /**
+         * @return the length of the decrypted content of every segment, but the last
+         */
+        public int getSegmentSize() {
+            return segmentCipher.segmentSize;
+        }
+
+        /**
+         * decrypt a range of the content
+         * @param offset the offset of the range in the decrypted content
+         * @param length the length of the range
+         * @param output receives the decrypted range; it's not closed
+         * @throws IOException if the range is outside the content, the file can't be read, the output can't be
+         * written or a segment in the range is damaged
+         */
+        public void read(long offset, long length, WritableByteChannel output) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > this.length) {
+                throw new IOException("the range " + offset + "+" + length + " is outside the content");
+            }
+            if (length == 0) return;
+            CipherContext pooled = acquireContext();
+            try {
+                CipherContext context = segmentContext(pooled);
+                int segmentSize = segmentCipher.segmentSize;
+                int segment = (int) (offset / segmentSize);
+                int skip = (int) (offset % segmentSize);
+                while (length > 0) {
+                    ByteBuffer result = decryptSegment(context, segment++);
+                    result.position(skip);
+                    result.limit((int) Math.min(result.limit(), skip + length));
+                    length -= result.remaining();
+                    writeFully(output, result);
+                    skip = 0;
+                }
+            } finally {
+                releaseContext(pooled);
+            }
+        }
+
+        /**
+         * verify a segment, by decrypting it and checking its authentication tag
+         * @param segment the index of the segment
+         * @throws IOException if the segment can't be read or it's damaged
+         */
+        public void verifySegment(int segment) throws IOException {
+            if (segment < 0 || segment >= recordHeaders.length) {
+                throw new IOException("the file has no segment " + segment);
+            }
+            CipherContext pooled = acquireContext();
+            try {
+                decryptSegment(segmentContext(pooled), segment);
+            } finally {
+                releaseContext(pooled);
+            }
+        }
+
+        /**
+         * @return the pooled context when the segments fit its buffers, or else a context of their size that
+         * isn't pooled, see decrypt
+         */
+        private CipherContext segmentContext(CipherContext pooled) throws IOException {
+            if (pooled.input.capacity() >= segmentCipher.segmentSize) return pooled;
+            try {
+                return new CipherContext(segmentCipher.segmentSize);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("unable to create the cipher: " + e.getMessage(), e);
+            }
+        }
+
+        private ByteBuffer decryptSegment(CipherContext context, int segment) throws IOException {
+            byte[] recordHeader = recordHeaders[segment];
+            ByteBuffer read = ByteBuffer.allocate(recordHeaderSize);
+            readFully(channel, read, offsets[segment]);
+            context.recordHeader = recordHeader;
+            readRecordHeader(context, segmentCipher.segmentSize);
+            ByteBuffer record = context.output;
+            record.clear();
+            record.limit(ByteBuffer.wrap(recordHeader).getInt());
+            readFully(channel, record, offsets[segment] + recordHeaderSize);
+            boolean matches = Arrays.equals(read.array(), recordHeader);
+            for (int i = 0; i < tagLength; i++) {
+                matches &= record.get(record.limit() - tagLength + i) == tags[segment][i];
+            }
+            if (!matches) throw new IOException("the encrypted content is damaged");
+            context.segmentIndex = segment;
+            try {
+                segmentCipher.decrypt(context);
+            } catch (AEADBadTagException e) {
+                throw new IOException("the encrypted content is damaged");
+            } catch (GeneralSecurityException e) {
+                // These exceptions are not expected
+                throw new IOException("unable to decrypt: " + e.getMessage(), e);
+            }
+            return context.result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * check a password against the check block of a file that was encrypted with a key derived from the
+     * password alone, as the files were before there were key headers.  Only the header of the file is read.
+     * @param passPhrase the password or phrase to check
+     * @param inputFile the encrypted file
+     * @throws InvalidKeyException if the pass phrase isn't the one the file was encrypted with
+     * @throws IOException if the header of the file can't be read
+     */
+    public void checkPassword(String passPhrase, File inputFile) throws InvalidKeyException, IOException {
+        byte[] header = new byte[8 + 16 + blockSize];
+        try (InputStream input = new FileInputStream(inputFile)) {
+            int length = 0;
+            while (length < header.length) {
+                int count = input.read(header, length, header.length - length);
+                if (count < 0) throw new EOFException("the encrypted content is incomplete");
+                length += count;
+            }
+        }
+        byte[] saltBytes = Arrays.copyOfRange(header, 0, 8);
+        byte[] ivBytes = Arrays.copyOfRange(header, 8, 24);
+        CipherContext context = acquireContext();
+        try {
+            context.checkCipher.init(Cipher.DECRYPT_MODE, generateSecretKey(passPhrase, saltBytes),
+                    new IvParameterSpec(ivBytes));
+            checkCodec(ivBytes, context.checkCipher.doFinal(header, 24, blockSize));
+        } catch (InvalidKeyException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            // These exceptions are not expected
+            throw new IOException("unable to decrypt: " + e.getMessage(), e);
         } finally {
+            releaseContext(context);
+        }
+    }
+
+    /**
+     * choose the key to decrypt a file with.  A file encrypted while the job had a master key has a key
+     * derived from it, which is cheap to try; when the first block doesn't decrypt to a valid check block with
+     * that key, the file was encrypted with a key derived from the password alone.
+     * @param firstBlock the encrypted check block
+     * @return the key to decrypt the file with; when the password is wrong, decryption with it fails the check
+     */
+    private SecretKey chooseKey(CipherContext context, String passPhrase, byte[] saltBytes, IvParameterSpec iv,
+                                byte[] firstBlock) throws GeneralSecurityException {
+        byte[] key = masterKey;
+        if (key != null) {
+            SecretKey fileKey = deriveFileKey(key, saltBytes);
+            context.checkCipher.init(Cipher.DECRYPT_MODE, fileKey, iv);
             try {
-                fileInput.close();
-                fileOutput.close();
-            } catch (IOException e) {
+                checkCodec(iv.getIV(), context.checkCipher.doFinal(firstBlock));
+                return fileKey;
+            } catch (InvalidKeyException e) {
+                // not encrypted with the master key
             }
         }
+        return generateSecretKey(passPhrase, saltBytes);
+    }
 
+    /**
+     * derive the key of a single file from the master key
+     * @param masterKey the job's master key
+     * @param saltBytes the file's salt
+     * @return the file's key
+     */
+    private static SecretKey deriveFileKey(byte[] masterKey, byte[] saltBytes) {
+        return new SecretKeySpec(hkdf(masterKey, saltBytes, fileKeyInfo, 16), "AES");
+    }
+
+    /**
+     * derive key material with HKDF (RFC 5869) using HMAC-SHA256
+     * @param inputKey the input key material
+     * @param salt the salt; an empty salt stands for a block of zeros
+     * @param info the context the key material is derived for
+     * @param length the number of bytes to derive, at most 255 * 32
+     * @return the derived key material
+     */
+    public static byte[] hkdf(byte[] inputKey, byte[] salt, byte[] info, int length) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+            byte[] pseudoRandomKey = mac.doFinal(inputKey);
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            byte[] result = new byte[length];
+            byte[] block = new byte[0];
+            for (int offset = 0, counter = 1; offset < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                int count = Math.min(block.length, length - offset);
+                System.arraycopy(block, 0, result, offset, count);
+                offset += count;
+            }
+            return result;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available in every java runtime
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * check the decrypted check block against the ivBytes.  Only the last three bytes may differ, by the id of
+     * the cipher suite of the segments, the id of the format the file was written in and the id of the codec
+     * the content was compressed with.
+     * @return the codec of the content
+     * @throws InvalidKeyException if the check block doesn't match, which means the key isn't the one the
+     * content was encrypted with
+     */
+    private Codec checkCodec(byte[] ivBytes, byte[] checkBytes) throws InvalidKeyException {
+        int last = ivBytes.length - 1;
+        for (int i = 0; i < last - 2; i++) {
+            if (ivBytes[i] != checkBytes[i]) {
+                throw new InvalidKeyException("key used for decryption does not match key used for encryption");
+            }
+        }
+        Codec codec = Codec.fromId((ivBytes[last] ^ checkBytes[last]) & 0xff);
+        Format format = checkFormat(ivBytes, checkBytes);
+        CipherSuite suite = checkSuite(ivBytes, checkBytes);
+        // the files encrypted before there were segments only had aes, and weren't compressed
+        if (codec == null || format == null || suite == null ||
+                (format == Format.cbc && (suite != CipherSuite.aesGcm || codec != Codec.none))) {
+            throw new InvalidKeyException("key used for decryption does not match key used for encryption");
+        }
+        return codec;
+    }
+
+    /**
+     * @return the format recorded in the check block, or null when it isn't a known format
+     */
+    private static Format checkFormat(byte[] ivBytes, byte[] checkBytes) {
+        int index = ivBytes.length - 2;
+        return Format.fromId((ivBytes[index] ^ checkBytes[index]) & 0xff);
+    }
+
+    /**
+     * @return the cipher suite recorded in the check block, or null when it isn't a known suite
+     */
+    private static CipherSuite checkSuite(byte[] ivBytes, byte[] checkBytes) {
+        int index = ivBytes.length - 3;
+        return CipherSuite.fromId((ivBytes[index] ^ checkBytes[index]) & 0xff);
     }
 
     public String getHashName(String name) {
@@ -208,6 +1609,40 @@ public class DataEncryption {
         return new BigInteger(1, bytes).toString(16);
     }
 
+    /**
+     * convert the given bytes to a hexadecimal string with two digits for every byte.  Unlike
+     * convertBytesToHex, leading zeros are kept, so digests of the same algorithm always have the same length.
+     * @param bytes the bytes to convert
+     * @return the hexadecimal string
+     */
+    public static String toHexString(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * the inverse of toHexString
+     * @param hex a hexadecimal string with two digits for every byte
+     * @return the bytes
+     * @throws IllegalArgumentException if the string isn't hexadecimal
+     */
+    public static byte[] fromHexString(String hex) {
+        if (hex.length() % 2 != 0) throw new IllegalArgumentException("odd number of hexadecimal digits");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) throw new IllegalArgumentException("not a hexadecimal digit");
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
     public byte[] convertHexToBytes(String hexString) {
         byte[] bigintBytes = new BigInteger(hexString, 16).toByteArray();
         // BigInteger use byte[0] to express the sign +/-
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DatePathPruner deletes the date paths that are no longer retained.  A date path is deleted bottom-up by a
+ * pool of threads: each directory is a task that deletes its files, in batches when there are many, while
+ * its subdirectories are deleted by tasks of their own, and the directory itself goes last.  Nothing is
+ * collected or sorted up front, so the memory used doesn't grow with the size of the date path.
+ * <p>
+ * Deferred, a date path is only renamed into the trash directory next to the date paths, which takes no
+ * longer for a million files than for one; the trash is emptied later, by emptyTrash, while the job has
+ * already reported its completion.  A trash that wasn't emptied, because the deletion was cancelled or
+ * the process ended, is emptied by the next prune.
+ */
+public class DatePathPruner {
+    public static final String trashDirName = ".trash";
+    private static final int filesPerTask = 1000;
+    private static final long progressNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private final File trash;
+    private final boolean deferred;
+    private final EngineListener listener;
+    private volatile boolean cancelled = false;
+    private final AtomicLong nextProgress = new AtomicLong();
+    // the counters are updated by all the delete tasks
+    private final LongAdder noFilesDeleted = new LongAdder();
+    private final LongAdder noDirectoriesDeleted = new LongAdder();
+    private final LongAdder noDeleteErrors = new LongAdder();
+    private int noDatePathsPruned = 0;
+    private int noDatePathsMoved = 0;
+    private long elapsedNanos = 0;
+
+    /**
+     * create a pruner
+     * @param jobDestination the directory that holds the job's date paths
+     * @param deferred true to move the date paths to the trash instead of deleting them
+     * @param listener receives the progress of the deletion
+     */
+    public DatePathPruner(File jobDestination, boolean deferred, EngineListener listener) {
+        this.trash = new File(jobDestination, trashDirName);
+        this.deferred = deferred;
+        this.listener = listener;
+    }
+
+    /**
+     * prune a date path: delete it, or move it to the trash when the pruner is deferred.  A date path that
+     * can't be moved to the trash is deleted.
+     * @param datePath the date path directory
+     * @return true if the date path is gone
+     */
+    public boolean prune(File datePath) {
+        if (deferred && moveToTrash(datePath)) {
+            noDatePathsMoved++;
+            return true;
+        }
+        listener.message("deleting date path " + datePath.getPath());
+        boolean deleted = delete(datePath.toPath());
+        if (deleted) noDatePathsPruned++;
+        return deleted;
+    }
+
+    /**
+     * delete everything in the trash, along with the trash directory
+     * @return true if the trash is gone, false if something in it couldn't be deleted or the deletion
+     * was cancelled
+     */
+    public boolean emptyTrash() {
+        File[] entries = trash.listFiles();
+        if (entries == null) return true;
+        listener.message("emptying the trash " + trash.getPath());
+        boolean result = true;
+        for (File entry : entries) {
+            if (!delete(entry.toPath())) result = false;
+            else if (isDatePathName(entry.getName())) noDatePathsPruned++;
+        }
+        // a trash that still has something in it stays for the next prune
+        return result && trash.delete();
+    }
+
+    /**
+     * stop deleting.  The tasks that are running finish the file they're deleting and start no new work;
+     * what is left is deleted by the next prune.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * @return the number of date paths that were moved to the trash, to be deleted by emptyTrash
+     */
+    public int getDatePathsMoved() {
+        return noDatePathsMoved;
+    }
+
+    public int getDatePathsPruned() {
+        return noDatePathsPruned;
+    }
+
+    public long getFilesDeleted() {
+        return noFilesDeleted.sum();
+    }
+
+    public long getDirectoriesDeleted() {
+        return noDirectoriesDeleted.sum();
+    }
+
+    public long getDeleteErrors() {
+        return noDeleteErrors.sum();
+    }
+
+    /**
+     * @return a description of what was pruned for the job log
+     */
+    public String getSummary() {
+        long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        return "date paths pruned: " + noDatePathsPruned + ", " + getFilesDeleted() + " files and " +
+                getDirectoriesDeleted() + " directories deleted in " + (millis / 1000) + "." +
+                String.format("%03d", millis % 1000) + " seconds, " + getDeleteErrors() + " delete errors";
+    }
+
+    /**
+     * rename the date path into the trash.  The trash is on the same file system as the date paths, so
+     * the rename doesn't move any data.
+     */
+    private boolean moveToTrash(File datePath) {
+        if (!trash.isDirectory() && !trash.mkdirs()) return false;
+        File target = new File(trash, datePath.getName());
+        // a date path of the same name may still be in the trash from an earlier prune
+        for (int i = 1; target.exists(); i++) {
+            target = new File(trash, datePath.getName() + "." + i);
+        }
+        try {
+            Files.move(datePath.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            listener.message("moved date path " + datePath.getPath() + " to the trash");
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            listener.message("unable to move date path " + datePath.getPath() + " to the trash: " + e);
+            return false;
+        }
+    }
+
+    private boolean delete(Path path) {
+        long start = System.nanoTime();
+        nextProgress.set(start + progressNanos);
+        long errors = getDeleteErrors();
+        try {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // deleting is waiting on the file system, so there are more threads than cores; the pool is
+                // only kept while a directory is deleted, its threads don't outlive the prune
+                ForkJoinPool pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+                try {
+                    pool.invoke(new DeleteDirectory(path));
+                } finally {
+                    pool.shutdown();
+                }
+            } else {
+                deleteEntry(path, false);
+            }
+        } finally {
+            elapsedNanos += System.nanoTime() - start;
+        }
+        return !cancelled && getDeleteErrors() == errors && !Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * deletes a directory after its contents: the files in batches and each subdirectory as a task of its own
+     */
+    private class DeleteDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+
+        DeleteDirectory(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) return;
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (cancelled) break;
+                    // a link to a directory is deleted as a file, what it links to is left alone
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(fork(new DeleteDirectory(entry)));
+                    } else {
+                        files.add(entry);
+                        if (files.size() == filesPerTask) {
+                            tasks.add(fork(new DeleteFiles(files)));
+                            files = new ArrayList<>();
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                noDeleteErrors.increment();
+                listener.message("unable to list " + directory + ": " + e.getMessage());
+            }
+            for (Path file : files) {
+                deleteEntry(file, false);
+            }
+            for (RecursiveAction task : tasks) {
+                task.join();
+            }
+            if (!cancelled) deleteEntry(directory, true);
+        }
+
+        private RecursiveAction fork(RecursiveAction task) {
+            task.fork();
+            return task;
+        }
+    }
+
+    private class DeleteFiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> files;
+
+        DeleteFiles(List<Path> files) {
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            for (Path file : files) {
+                if (cancelled) return;
+                deleteEntry(file, false);
+            }
+        }
+    }
+
+    private void deleteEntry(Path path, boolean directory) {
+        try {
+            Files.delete(path);
+            if (directory) noDirectoriesDeleted.increment();
+            else noFilesDeleted.increment();
+        } catch (NoSuchFileException e) {
+            // deleted by someone else, like the prune of another run emptying the same trash
+        } catch (IOException e) {
+            noDeleteErrors.increment();
+            listener.message("unable to delete " + path + ": " + e);
+        }
+        long next = nextProgress.get();
+        long now = System.nanoTime();
+        if (now >= next && nextProgress.compareAndSet(next, now + progressNanos)) {
+            listener.message("deleted " + getFilesDeleted() + " files and " + getDirectoriesDeleted() +
+                    " directories");
+        }
+    }
+
+    private static boolean isDatePathName(String name) {
+        return name.matches("\\d\\d\\d\\d-\\d\\d-\\d\\d@\\d\\d-\\d\\d-\\d\\d(\\.\\d+)?");
+    }
+}
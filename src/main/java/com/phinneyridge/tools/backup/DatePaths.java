@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * DatePaths finds the date path directories at a job's destination, and prunes the ones that are no longer
+ * retained.  It doesn't depend on a UI, so it's shared by the gui and the command line.
+ */
+public class DatePaths {
+    private static final Pattern datePathPattern = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d@\\d\\d-\\d\\d-\\d\\d");
+
+    private DatePaths() {
+    }
+
+    public static boolean isDatePath(File dir) {
+        return isDatePath(dir.getName());
+    }
+
+    public static boolean isDatePath(String dirFileName) {
+        return datePathPattern.matcher(dirFileName).matches();
+    }
+
+    /**
+     * get the date paths at the given destination
+     * @param runtimeDestination the job's destination directory
+     * @return the names of the date path directories, in no particular order
+     */
+    static List<String> getAvailableDatePaths(File runtimeDestination) {
+        List<String> paths = new LinkedList<>();
+        File[] files = runtimeDestination.listFiles();
+        if (files == null) return paths;
+        for (File file: files) {
+            if (file.isDirectory()) {
+                if (isDatePath(file)) {
+                    paths.add(file.getName());
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     *  checks that the number of date paths to retain is not exceeded.  If it is,
+     *  the older date path directories are pruned.
+     * @param job the job whose date paths are checked
+     * @param destination the destination of the run, see BackupEngine.setDestination
+     * @param pruner deletes the date paths, or moves them to the trash
+     * @return true is the routine successfully completed the operation.<br>
+     *         false is there was a problem deleting a directory
+     */
+    static boolean checkDatePathRetain(Job job, String destination, DatePathPruner pruner) {
+        boolean result = true;
+        String runtime = job.getRuntimeDestination(destination, "");
+        File runtimeDestination = new File(runtime);
+        if (!isDatePath(runtimeDestination)) {
+            String dateDirValue = Job.option.dateDir.getValue();
+            if (!(dateDirValue == null || dateDirValue.isEmpty())) {
+                Integer numDatePathRetain = Integer.valueOf(dateDirValue);
+                List<String> dates = getAvailableDatePaths(runtimeDestination);
+                if (dates.size() > numDatePathRetain) {
+                    // got too many date path directories that we are retaining
+                    // delete the older date path directories
+                    int i = dates.size();
+                    while (i > numDatePathRetain) {
+                        if (!deleteOldestDatePath(job, destination, dates, pruner)) {
+                            result = false;
+                            break;
+                        }
+                        i--;
+                    }
+                }
+            }
+        }
+        return  result;
+    }
+
+    private static boolean deleteOldestDatePath(Job job, String destination, List<String> dates,
+                                                DatePathPruner pruner) {
+        Collections.sort(dates);
+        boolean result = pruner.prune(new File(job.getRuntimeDestination(destination, dates.get(0))));
+        dates.remove(0);
+        return result;
+    }
+}
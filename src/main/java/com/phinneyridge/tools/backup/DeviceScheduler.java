@@ -0,0 +1,255 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DeviceScheduler decides how many file copies may run at the same time.  Every source and destination
+ * device gets its own AdaptiveLimit, and a copy has to hold a permit from both its source and its
+ * destination device before it can start.  The initial and maximum concurrency depend on the kind of
+ * device: a USB thumbdrive starts at a single copy, while a network share starts higher and may go a
+ * lot higher, since most of each copy's time is spent waiting on the network.
+ * A network share mapped to a Windows drive letter reports the file system of the server, usually NTFS,
+ * so it can't be told from a local disk.  Drive letters other than the system drive start at the network
+ * limits, and the limit is cut if the device can't keep up.
+ * Devices are identified by their file store, so every mount point of a POSIX system is a device of its
+ * own, like every drive letter or \\host\share of a Windows one.  The store of a file is looked up once for
+ * each of the paths added with addPath, the files under them take it from there without a system call.
+ * When the copies are run on virtual threads, a waiting copy costs almost nothing, so the maximum
+ * concurrency allowed for network shares is much higher.
+ */
+public class DeviceScheduler {
+    public enum DeviceType {
+        local(4, 16, 64),           // fixed local disk
+        removable(1, 4, 4),         // thumbdrives and memory cards
+        network(8, 64, 1024),       // network shares
+        drive(8, 64, 1024);         // drive letters that may be a local disk or a mapped network share
+
+        private final int initialLimit;
+        private final int maxLimit;
+        private final int virtualMaxLimit;  // the max limit when copies run on virtual threads
+
+        DeviceType(int initialLimit, int maxLimit, int virtualMaxLimit) {
+            this.initialLimit = initialLimit;
+            this.maxLimit = maxLimit;
+            this.virtualMaxLimit = virtualMaxLimit;
+        }
+    }
+
+    /**
+     * a file store and the kind of device it's on
+     */
+    private static class Device {
+        private final String name;
+        private final DeviceType type;
+
+        Device(String name, DeviceType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, AdaptiveLimit> limits = new ConcurrentHashMap<>();
+    private final Map<Path, Device> devices = new ConcurrentHashMap<>();    // the device of known paths
+    private final boolean virtualThreads;
+
+    public DeviceScheduler() {
+        this(false);
+    }
+
+    /**
+     * @param virtualThreads true if the copies are run on virtual threads
+     */
+    public DeviceScheduler(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * look up the device of a path that the files of a job are under, like a selected path or the
+     * destination, so the files under it don't have to be looked up on their own
+     * @param path a file or directory
+     */
+    public void addPath(Path path) {
+        devices.put(path, findDevice(path));
+    }
+
+    /**
+     * holds the permits of a single scheduled copy
+     */
+    public static class Ticket {
+        private final AdaptiveLimit source;
+        private final AdaptiveLimit destination;
+        private final long start;
+
+        private Ticket(AdaptiveLimit source, AdaptiveLimit destination) {
+            this.source = source;
+            this.destination = destination;
+            this.start = System.nanoTime();
+        }
+    }
+
+    /**
+     * wait until a copy from the given source to the given destination may start
+     * @param source the file being copied
+     * @param destination the destination file or directory
+     * @return the ticket that must be passed to release once the copy is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Ticket acquire(Path source, Path destination) throws InterruptedException {
+        AdaptiveLimit sourceLimit = getLimit("source", source);
+        AdaptiveLimit destinationLimit = getLimit("destination", destination);
+        sourceLimit.acquire();
+        try {
+            destinationLimit.acquire();
+        } catch (InterruptedException e) {
+            sourceLimit.release(0, 0);
+            throw e;
+        }
+        return new Ticket(sourceLimit, destinationLimit);
+    }
+
+    /**
+     * release the permits held by a copy
+     * @param ticket the ticket returned by acquire
+     * @param bytes the number of bytes copied
+     */
+    public void release(Ticket ticket, long bytes) {
+        long latency = System.nanoTime() - ticket.start;
+        ticket.destination.release(bytes, latency);
+        ticket.source.release(bytes, latency);
+    }
+
+    /**
+     * @return one line per device describing the concurrency chosen for it
+     */
+    public List<String> getSummary() {
+        List<String> lines = new LinkedList<>();
+        for (AdaptiveLimit limit : limits.values()) {
+            lines.add(limit.getSummary());
+        }
+        return lines;
+    }
+
+    private AdaptiveLimit getLimit(String role, Path path) {
+        Device device = getDevice(path);
+        String key = role + " " + device.name;
+        AdaptiveLimit limit = limits.get(key);
+        if (limit == null) {
+            limit = limits.computeIfAbsent(key, k -> {
+                int maxLimit = virtualThreads ? device.type.virtualMaxLimit : device.type.maxLimit;
+                return new AdaptiveLimit(k + " (" + device.type + ")", device.type.initialLimit, maxLimit);
+            });
+        }
+        return limit;
+    }
+
+    /**
+     * get the device of a path from the closest of its parents whose device is known.  A path that isn't
+     * under any of them has its device looked up once for its directory.
+     */
+    private Device getDevice(Path path) {
+        for (Path known = path; known != null; known = known.getParent()) {
+            Device device = devices.get(known);
+            if (device != null) return device;
+        }
+        Path directory = (path.getParent() == null) ? path : path.getParent();
+        return devices.computeIfAbsent(directory, DeviceScheduler::findDevice);
+    }
+
+    /**
+     * look up the file store that contains the given path, or its closest parent that exists
+     */
+    private static Device findDevice(Path path) {
+        boolean unc = path.toString().startsWith("\\\\");
+        Path existing = path;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing != null) {
+            try {
+                FileStore store = Files.getFileStore(existing);
+                // the name of a store isn't unique, every tmpfs is "tmpfs" and a volume may have no label;
+                // its description also has the mount point or drive letter
+                DeviceType type = unc ? DeviceType.network : getDeviceType(store);
+                if (type == DeviceType.local && isDriveLetter(path)) type = getDriveType(store, path);
+                return new Device(store.toString(), type);
+            } catch (IOException e) {
+                // the path's root identifies the device
+            }
+        }
+        Path root = path.getRoot();
+        return new Device((root == null) ? "" : root.toString(), unc ? DeviceType.network : DeviceType.local);
+    }
+
+    private static boolean isDriveLetter(Path path) {
+        Path root = path.getRoot();
+        return root != null && root.toString().matches("[A-Za-z]:\\\\?");
+    }
+
+    /**
+     * determine the kind of device of a drive letter whose file store looks like a local disk.  Windows
+     * tells removable drives apart, but not network shares that are mapped to a drive letter.
+     * @param store the file store of the drive
+     * @param path a path on the drive
+     * @return the device type
+     */
+    static DeviceType getDriveType(FileStore store, Path path) {
+        try {
+            if (Boolean.TRUE.equals(store.getAttribute("volume:isRemovable"))) return DeviceType.removable;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // the attribute is only kept by the Windows file stores
+        }
+        String systemDrive = System.getenv("SystemDrive");
+        if (systemDrive != null && path.getRoot().toString().regionMatches(true, 0, systemDrive, 0, 2)) {
+            return DeviceType.local;
+        }
+        return DeviceType.drive;
+    }
+
+    /**
+     * determine the kind of device of the given file store
+     * @param store a file store
+     * @return the device type
+     */
+    static DeviceType getDeviceType(FileStore store) {
+        switch (store.type().toLowerCase()) {
+            case "cifs":
+            case "smbfs":
+            case "smb2":
+            case "nfs":
+            case "nfs4":
+            case "afpfs":
+            case "webdav":
+            case "fuse.sshfs":
+                return DeviceType.network;
+            case "fat":
+            case "fat32":
+            case "vfat":
+            case "exfat":
+            case "msdos":
+                return DeviceType.removable;
+            default:
+                return DeviceType.local;
+        }
+    }
+}
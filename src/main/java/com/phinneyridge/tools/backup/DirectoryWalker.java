@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * DirectoryWalker enumerates the files under a set of root paths.  Each directory is read with a
+ * DirectoryStream by its own fork/join task, so sibling subtrees are enumerated in parallel and idle
+ * workers steal directories from busy ones.  The files that are found are streamed to the consumer
+ * through a bounded queue; the consumer can start copying as soon as the first file is found, and
+ * the walkers block whenever the consumer falls behind, so the heap never holds more than the queue's
+ * capacity of paths regardless of how large the tree is.
+ */
+public class DirectoryWalker {
+    private static final Path END = Paths.get("");  // marks the end of the walk in the queue
+
+    private final ForkJoinPool pool;
+    private final BlockingQueue<Path> queue;
+    private volatile boolean cancelled = false;
+    private boolean finished = false;
+    private BiConsumer<Path, IOException> errorHandler = (path, e) -> {};
+    private final AtomicLong directoriesScanned = new AtomicLong();
+    private final AtomicLong filesFound = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * create a walker
+     * @param parallelism the number of directories that can be read at the same time
+     * @param queueCapacity the maximum number of found files waiting to be taken by the consumer
+     */
+    public DirectoryWalker(int parallelism, int queueCapacity) {
+        pool = new ForkJoinPool(parallelism);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public DirectoryWalker() {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()), 10000);
+    }
+
+    /**
+     * set the handler called when a directory can't be read.  The walk continues with the remaining
+     * directories.  The handler is called from the walker threads.
+     * @param errorHandler the handler
+     */
+    public void setErrorHandler(BiConsumer<Path, IOException> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * start walking the given roots in the background.  A root may be a file, in which case it's
+     * passed to the consumer as is.
+     * @param roots the files and directories to walk
+     */
+    public void start(List<Path> roots) {
+        pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    List<WalkTask> tasks = new LinkedList<>();
+                    for (Path root : roots) {
+                        if (Files.isDirectory(root)) {
+                            tasks.add(new WalkTask(root));
+                        } else {
+                            found(root);
+                        }
+                    }
+                    invokeAll(tasks);
+                } catch (InterruptedException e) {
+                    // cancelled
+                } finally {
+                    end();
+                }
+            }
+        });
+    }
+
+    /**
+     * take the next file found by the walk, waiting for one if necessary
+     * @return the next file, or null once the walk is complete
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Path take() throws InterruptedException {
+        if (finished) return null;
+        Path path = queue.take();
+        if (path == END) {
+            finished = true;
+            pool.shutdown();
+            return null;
+        }
+        return path;
+    }
+
+    /**
+     * stop the walk.  take() returns null after the walk is cancelled.
+     */
+    public void cancel() {
+        cancelled = true;
+        pool.shutdownNow();
+        queue.clear();
+        queue.offer(END);
+    }
+
+    public long getDirectoriesScanned() {
+        return directoriesScanned.get();
+    }
+
+    public long getFilesFound() {
+        return filesFound.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private void found(Path file) throws InterruptedException {
+        filesFound.incrementAndGet();
+        queue.put(file);
+    }
+
+    private void end() {
+        if (!cancelled) {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                queue.offer(END);
+            }
+        }
+    }
+
+    /**
+     * reads a single directory.  Files are passed on to the queue as they are read, and each
+     * subdirectory is forked as its own task.
+     */
+    private class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        WalkTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) return;
+            List<WalkTask> subdirectories = new LinkedList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                directoriesScanned.incrementAndGet();
+                for (Path child : stream) {
+                    if (cancelled) return;
+                    if (Files.isDirectory(child)) {
+                        WalkTask task = new WalkTask(child);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else {
+                        found(child);
+                    }
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                errorHandler.accept(dir, e);
+            } catch (DirectoryIteratorException e) {
+                errors.incrementAndGet();
+                errorHandler.accept(dir, e.getCause());
+            } catch (InterruptedException e) {
+                cancelled = true;
+                return;
+            }
+            for (WalkTask task : subdirectories) {
+                if (cancelled) return;
+                try {
+                    task.join();
+                } catch (CancellationException e) {
+                    // the pool was shut down by cancel()
+                }
+            }
+        }
+    }
+}
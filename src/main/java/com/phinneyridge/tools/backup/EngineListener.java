@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+/**
+ * Receives the messages produced by a BackupEngine while it runs a job.  The engine doesn't know
+ * whether it's being run from the gui or from the command line; it's the listener that decides where
+ * the messages end up.
+ */
+public interface EngineListener {
+    /**
+     * called with each message produced by the engine. This may be called from any of the engine's
+     * worker threads, so implementations need to be thread safe.
+     * @param msg the message
+     */
+    void message(String msg);
+}
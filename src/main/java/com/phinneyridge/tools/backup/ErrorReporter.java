@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+/**
+ * Shows the errors that occur outside of a running job, such as loading a job.  The gui shows them in a
+ * dialog; without a gui they're written to the standard error.
+ */
+public interface ErrorReporter {
+    void showThrowable(String title, String header, Throwable e);
+    void showErrorMessage(String error, String title);
+
+    /**
+     * the reporter used when the utility is run without a gui
+     */
+    ErrorReporter console = new ErrorReporter() {
+        @Override
+        public void showThrowable(String title, String header, Throwable e) {
+            System.err.println(header + ": " + e.getMessage());
+        }
+
+        @Override
+        public void showErrorMessage(String error, String title) {
+            System.err.println(error);
+        }
+    };
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * GitObjectStore keeps the snapshots of a vcs mode job in a bare git repository.  File contents are blobs,
+ * directories are trees and every backup is a commit, all written as loose objects in the git format, so the
+ * history can be inspected with the standard git tools (git log, git show, git checkout into a work tree...).
+ * <p>
+ * Objects are named by their content, so a backup only writes the blobs and trees that changed.  When the
+ * previous snapshot is known, only the trees of the directories with a changed file are rebuilt; every other
+ * directory keeps the tree hash it had in the previous commit.  Only loose objects are read, so
+ * the repository is created with automatic garbage collection turned off, and it must not be packed by
+ * running git gc or git repack.
+ */
+public class GitObjectStore {
+    public static final String branch = "refs/heads/master";
+    public static final String tagPrefix = "refs/tags/";
+    public static final String manifestRef = "refs/backup/manifest";   // the commit the manifest describes
+    private static final String fileMode = "100644";
+    private static final String treeMode = "40000";
+
+    private final File directory;
+    private final File objectDirectory;
+    private final AtomicLong objectsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * @param directory the directory of the bare repository
+     */
+    public GitObjectStore(File directory) {
+        this.directory = directory;
+        this.objectDirectory = new File(directory, "objects");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * create the bare repository, if it doesn't exist yet
+     * @throws IOException if the repository can't be created
+     */
+    public void init() throws IOException {
+        if (new File(directory, "HEAD").isFile()) return;
+        new File(objectDirectory, "info").mkdirs();
+        new File(objectDirectory, "pack").mkdirs();
+        new File(directory, "refs/heads").mkdirs();
+        new File(directory, "refs/tags").mkdirs();
+        Files.write(new File(directory, "config").toPath(), ("[core]\n" +
+                "\trepositoryformatversion = 0\n" +
+                "\tfilemode = false\n" +
+                "\tbare = true\n" +
+                "[gc]\n" +
+                "\tauto = 0\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(directory, "HEAD").toPath(),
+                ("ref: " + branch + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * get the file a loose object is stored in
+     * @param hash the object's hash
+     * @return the object file
+     */
+    public File getObjectFile(String hash) {
+        return new File(new File(objectDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    public boolean contains(String hash) {
+        return getObjectFile(hash).isFile();
+    }
+
+    /**
+     * store the content of a file as a blob.  The file is hashed while it's compressed to a temporary file,
+     * which becomes the object unless the repository already has it.
+     * @param source the file
+     * @return the hash of the blob
+     * @throws IOException if the file can't be read, it changed while it was read, or the object can't be written
+     */
+    public String writeBlob(File source) throws IOException {
+        long size = source.length();
+        MessageDigest digest = newDigest();
+        File temp = createTempFile();
+        long read = 0;
+        Deflater deflater = new Deflater();
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp), deflater, 1 << 16)) {
+            byte[] header = ("blob " + size + "\0").getBytes(StandardCharsets.UTF_8);
+            digest.update(header);
+            out.write(header);
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                read += length;
+                if (read > size) break;
+                digest.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        if (read != size) {
+            temp.delete();
+            throw new IOException("the file changed while it was backed up");
+        }
+        String hash = DataEncryption.toHexString(digest.digest());
+        commit(temp, hash);
+        return hash;
+    }
+
+    /**
+     * store an object whose content is in memory
+     * @param type the object type, tree or commit
+     * @param content the content of the object
+     * @return the hash of the object
+     * @throws IOException if the object can't be written
+     */
+    public String writeObject(String type, byte[] content) throws IOException {
+        byte[] header = (type + " " + content.length + "\0").getBytes(StandardCharsets.UTF_8);
+        MessageDigest digest = newDigest();
+        digest.update(header);
+        digest.update(content);
+        String hash = DataEncryption.toHexString(digest.digest());
+        if (contains(hash)) return hash;
+        File temp = createTempFile();
+        try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp))) {
+            out.write(header);
+            out.write(content);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        commit(temp, hash);
+        return hash;
+    }
+
+    /**
+     * write the trees for the given files, bottom up.  A tree that's already in the repository, which is the
+     * case for every directory that didn't change, isn't written again, but every tree is built and hashed.
+     * @param files the blob hash of every file, by its path; the path is split into directories at "/"
+     * @return the hash of the root tree
+     * @throws IOException if a tree can't be written
+     */
+    public String writeTree(Map<String, String> files) throws IOException {
+        return writeTree(null, files);
+    }
+
+    /**
+     * write the trees of a snapshot that differs from a previous snapshot in the given files.  Only the trees
+     * of the directories with a changed file are read, rebuilt and hashed; every other directory keeps the
+     * tree it has in the previous snapshot, so the work depends on the changes rather than on the size of
+     * the snapshot.
+     * @param previousTree the hash of the previous snapshot's root tree, or null to build every tree from
+     * the given files
+     * @param changes the blob hash of every file that is new or changed, and null for every file that was
+     * removed, by its path; the path is split into directories at "/"
+     * @return the hash of the root tree
+     * @throws IOException if a tree can't be read or written
+     */
+    public String writeTree(String previousTree, Map<String, String> changes) throws IOException {
+        Directory root = new Directory();
+        for (Map.Entry<String, String> file : changes.entrySet()) {
+            Directory directory = root;
+            String[] names = file.getKey().split("/");
+            List<String> path = new ArrayList<>();
+            for (String name : names) {
+                if (!name.isEmpty()) path.add(name);
+            }
+            if (path.isEmpty()) continue;
+            for (int i = 0; i < path.size() - 1; i++) {
+                directory = directory.directories.computeIfAbsent(path.get(i), name -> new Directory());
+            }
+            directory.files.put(path.get(path.size() - 1), file.getValue());
+        }
+        String tree = writeTree(previousTree, root);
+        // a snapshot without any files has an empty root tree
+        return (tree == null) ? writeObject("tree", new byte[0]) : tree;
+    }
+
+    private static class Directory {
+        final Map<String, Directory> directories = new TreeMap<>();
+        final Map<String, String> files = new TreeMap<>();     // null for a file that was removed
+    }
+
+    /**
+     * @return the hash of the tree, or null if the directory has no files left
+     */
+    private String writeTree(String previousTree, Directory changes) throws IOException {
+        // git sorts the entries of a tree by name, as if the name of a directory ended with "/"
+        TreeMap<String, String[]> entries = new TreeMap<>(GitObjectStore::compareNames);
+        if (previousTree != null) {
+            for (String[] entry : readTree(previousTree)) {
+                entries.put(entry[0].equals(treeMode) ? entry[1] + "/" : entry[1], entry);
+            }
+        }
+        for (Map.Entry<String, Directory> subdirectory : changes.directories.entrySet()) {
+            String key = subdirectory.getKey() + "/";
+            String[] previous = entries.remove(key);
+            String tree = writeTree((previous == null) ? null : previous[2], subdirectory.getValue());
+            if (tree != null) entries.put(key, new String[] {treeMode, subdirectory.getKey(), tree});
+        }
+        for (Map.Entry<String, String> file : changes.files.entrySet()) {
+            if (file.getValue() == null) {
+                entries.remove(file.getKey());
+            } else {
+                entries.put(file.getKey(), new String[] {fileMode, file.getKey(), file.getValue()});
+            }
+        }
+        if (entries.isEmpty()) return null;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (String[] entry : entries.values()) {
+            content.write((entry[0] + " " + entry[1] + "\0").getBytes(StandardCharsets.UTF_8));
+            content.write(toBytes(entry[2]));
+        }
+        return writeObject("tree", content.toByteArray());
+    }
+
+    /**
+     * write a commit for the given tree
+     * @param tree the hash of the root tree
+     * @param parent the hash of the parent commit, or null for the first commit
+     * @param time the time of the commit
+     * @param message the commit message
+     * @return the hash of the commit
+     * @throws IOException if the commit can't be written
+     */
+    public String writeCommit(String tree, String parent, long time, String message) throws IOException {
+        int offset = TimeZone.getDefault().getOffset(time) / 60000;
+        String zone = String.format("%c%02d%02d", offset < 0 ? '-' : '+', Math.abs(offset) / 60, Math.abs(offset) % 60);
+        String identity = "backup-utility <backup-utility@localhost> " + (time / 1000) + " " + zone;
+        StringBuilder content = new StringBuilder();
+        content.append("tree ").append(tree).append('\n');
+        if (parent != null) content.append("parent ").append(parent).append('\n');
+        content.append("author ").append(identity).append('\n');
+        content.append("committer ").append(identity).append('\n');
+        content.append('\n').append(message).append('\n');
+        return writeObject("commit", content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * read a ref
+     * @param ref the name of the ref, i.e. refs/heads/master
+     * @return the hash the ref points to, or null if the ref doesn't exist
+     */
+    public String readRef(String ref) {
+        File file = new File(directory, ref);
+        if (!file.isFile()) return null;
+        try {
+            String hash = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            return hash.isEmpty() ? null : hash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * point a ref to the given object.  The ref is written to a temporary file first, so it's never left
+     * half written.
+     */
+    public void updateRef(String ref, String hash) throws IOException {
+        File file = new File(directory, ref);
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".lock");
+        Files.write(temp.toPath(), (hash + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the names of the tags in the repository
+     */
+    public List<String> getTags() {
+        List<String> tags = new ArrayList<>();
+        String[] names = new File(directory, tagPrefix).list();
+        if (names != null) {
+            for (String name : names) tags.add(name);
+        }
+        return tags;
+    }
+
+    /**
+     * get the root tree of a commit
+     * @param commit the hash of the commit
+     * @return the hash of the commit's tree
+     * @throws IOException if the commit can't be read
+     */
+    public String readCommitTree(String commit) throws IOException {
+        String content = new String(readObject(commit, "commit"), StandardCharsets.UTF_8);
+        if (!content.startsWith("tree ")) throw new IOException("invalid commit " + commit);
+        return content.substring(5, content.indexOf('\n'));
+    }
+
+    /**
+     * pass every file of a tree to the given consumer
+     * @param tree the hash of the tree
+     * @param consumer receives the path of each file, with "/" separators, and the hash of its blob
+     * @throws IOException if a tree can't be read
+     */
+    public void walkTree(String tree, BiConsumer<String, String> consumer) throws IOException {
+        walkTree(tree, "", consumer);
+    }
+
+    private void walkTree(String tree, String prefix, BiConsumer<String, String> consumer) throws IOException {
+        for (String[] entry : readTree(tree)) {
+            if (entry[0].equals(treeMode)) {
+                walkTree(entry[2], prefix + entry[1] + "/", consumer);
+            } else if (!entry[0].equals("160000")) {
+                // submodules (160000) have no content in this repository
+                consumer.accept(prefix + entry[1], entry[2]);
+            }
+        }
+    }
+
+    /**
+     * read the entries of a tree
+     * @return the mode, name and hash of every entry, in the order of the tree
+     */
+    private List<String[]> readTree(String tree) throws IOException {
+        byte[] content = readObject(tree, "tree");
+        List<String[]> entries = new ArrayList<>();
+        int position = 0;
+        while (position < content.length) {
+            int space = indexOf(content, (byte) ' ', position);
+            int end = indexOf(content, (byte) 0, space);
+            if (space < 0 || end < 0 || end + 21 > content.length) throw new IOException("invalid tree " + tree);
+            String mode = new String(content, position, space - position, StandardCharsets.UTF_8);
+            String name = new String(content, space + 1, end - space - 1, StandardCharsets.UTF_8);
+            byte[] hash = new byte[20];
+            System.arraycopy(content, end + 1, hash, 0, 20);
+            position = end + 21;
+            entries.add(new String[] {mode, name, DataEncryption.toHexString(hash)});
+        }
+        return entries;
+    }
+
+    /**
+     * write the content of a blob to the given file, the content is checked against the blob's hash
+     * @param hash the hash of the blob
+     * @param target the file to write the content to
+     * @throws IOException if the blob is missing or damaged, or the file can't be written
+     */
+    public void readBlob(String hash, File target) throws IOException {
+        File file = getObjectFile(hash);
+        if (!file.isFile()) throw new IOException("missing object " + hash);
+        if (target.getParentFile() != null) target.getParentFile().mkdirs();
+        MessageDigest digest = newDigest();
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(new FileInputStream(file), inflater, 1 << 16);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            String header = readHeader(in, digest);
+            if (!header.startsWith("blob ")) throw new IOException("object " + hash + " is not a blob");
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            inflater.end();
+        }
+        if (!DataEncryption.toHexString(digest.digest()).equals(hash)) {
+            throw new IOException("object " + hash + " is damaged");
+        }
+    }
+
+    private byte[] readObject(String hash, String type) throws IOException {
+        File file = getObjectFile(hash);
+        if (!file.isFile()) throw new IOException("missing object " + hash);
+        try (InputStream in = new InflaterInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String header = readHeader(in, null);
+            if (!header.startsWith(type + " ")) throw new IOException("object " + hash + " is not a " + type);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                content.write(buffer, 0, length);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    private static String readHeader(InputStream in, MessageDigest digest) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int b;
+        while ((b = in.read()) > 0) {
+            header.append((char) b);
+        }
+        if (b < 0) throw new IOException("invalid object header");
+        if (digest != null) {
+            digest.update(header.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return header.toString();
+    }
+
+    public long getObjectsWritten() {
+        return objectsWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    private File createTempFile() throws IOException {
+        objectDirectory.mkdirs();
+        return File.createTempFile("tmp_obj_", null, objectDirectory);
+    }
+
+    /**
+     * move a completely written temporary file to its object, or drop it when the object already exists
+     */
+    private void commit(File temp, String hash) throws IOException {
+        File object = getObjectFile(hash);
+        if (object.isFile()) {
+            temp.delete();
+            return;
+        }
+        object.getParentFile().mkdirs();
+        long size = temp.length();
+        try {
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // another thread wrote the same object
+            temp.delete();
+            if (!object.isFile()) throw e;
+            return;
+        }
+        objectsWritten.incrementAndGet();
+        bytesWritten.addAndGet(size);
+    }
+
+    /**
+     * compare names the way git does, by their utf-8 bytes
+     */
+    private static int compareNames(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            int difference = (x[i] & 0xff) - (y[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return x.length - y.length;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        if (from < 0) return -1;
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] toBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DataEncryption.Hash.SHA1.getName());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
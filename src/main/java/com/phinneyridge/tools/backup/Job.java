@@ -18,9 +18,9 @@ import javax.xml.stream.XMLStreamException;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.zip.Deflater;
 
 public class Job {
-    private JobManager jobManager;
     private String name;
     private File jobFile;
     private File jobNodeFile;
@@ -49,7 +49,8 @@ public class Job {
     public enum mode {
         copy,  // copy to file and directory
         zip,   // copy to zip file
-        vcs    // copy to version control system
+        vcs,   // copy to version control system
+        store  // copy to content addressed store, each file content is only stored once
     }
     private mode jobMode;
 
@@ -69,7 +70,11 @@ public class Job {
     public enum option {
         jobDir,      // add job name directory to destination dir
         dateDir,     // add job execution Date director to destination dir
-        encrypt;      // encrypt file content
+        encrypt,      // encrypt file content
+        compress,     // compress file content before it's encrypted, the value is the compression level
+        cipher,       // the cipher suite encrypted files are written with, the value is the suite's name
+        checksum,     // record checksums of the copied files, the value lists extra hash algorithms
+        link;         // hard link unchanged files to the previous date path, copy mode with dateDir
         private String value;
         public void setValue(String value) {
             this.value = value;
@@ -92,9 +97,8 @@ public class Job {
 
     public Job(String name) {
         this.name = name;
-        jobManager = App.getJobManager();
-        jobFile = jobManager.getJobFile(name);
-        jobNodeFile = jobManager.getJobNodeFile(name);
+        jobFile = JobFiles.getJobFile(name);
+        jobNodeFile = JobFiles.getJobNodeFile(name);
         jobMode = mode.copy;  // default job mode
     }
 
@@ -125,16 +129,20 @@ public class Job {
         JobXml xml = new JobXml();
         Job job = xml.parseJob(name);
         if (job == null) {
-            App.getUIManager().showErrorMessage("Error","an error occurred parsing job xml file");
+            showLoadError("an error occurred parsing job xml file");
             return  null;
         }
         if (!xml.parseNodes(job)) {
-            App.getUIManager().showErrorMessage("Error","an error occurred parsing job_node xml file");
+            showLoadError("an error occurred parsing job_node xml file");
             return  null;
         }
         return job;
     }
 
+    private static void showLoadError(String error) {
+        JobFiles.getErrorReporter().showErrorMessage(error, "Error");
+    }
+
     boolean save() {
         try {
             getJobXml().save(this);
@@ -166,44 +174,67 @@ public class Job {
      * Get the Destination at runtime.  At runtime, the destination file may have
      * additional paths added (i.e. Job and/or date paths may be added) This method
      * is called from performBackup.
+     * @param destination the destination of the run, see BackupEngine.setDestination
      * @param date the date used for creating a date path.  This is only used
      *             if the job has the dateDir option set
      * @return the adjusted runtime destination
      */
-    String getRuntimeDestination(Date date) {
+    String getRuntimeDestination(String destination, Date date) {
         String runtimePath = "";
         if (getOptions().contains(option.jobDir)) {
             runtimePath +=  "\\" + getName();
         }
         if (getOptions().contains(option.dateDir)) {
-            String pattern = "yyyy-MM-dd@HH-mm-ss"; // format selected for natural sort
-            SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
-            String dateDirName = simpleDateFormat.format(date);
-            runtimePath +=  "\\" + dateDirName;
+            runtimePath +=  "\\" + getDatePathName(date);
         }
-        return  getDestination() + runtimePath;
+        return  destination + runtimePath;
 
     }
 
+    /**
+     * get the name of the date path for the given date
+     * @param date the date of the job execution
+     * @return the date path name
+     */
+    static String getDatePathName(Date date) {
+        String pattern = "yyyy-MM-dd@HH-mm-ss"; // format selected for natural sort
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern);
+        return simpleDateFormat.format(date);
+    }
+
     /**
      * Get the Destination at runtime.  At runtime, the destination file may have
      * additional paths added (i.e. Job and/or date paths may be added) This method is
      * called from performRestore.
+     * @param destination the destination of the run, see BackupEngine.setDestination
      * @param datePath the datePath used for creating a date path.  This is only used
      *             if the job has the dateDir option set
      * @return the adjusted runtime destination
      */
-    String getRuntimeDestination(String datePath) {
+    String getRuntimeDestination(String destination, String datePath) {
         String runtimePath = "";
         if (getOptions().contains(option.jobDir)) {
-            runtimePath += jobManager.getActiveJob().getName() + "\\";
+            runtimePath += getName() + "\\";
         }
         if (getOptions().contains(option.dateDir)) {
             if (!datePath.isEmpty()) {
                 runtimePath += datePath + "\\";
             }
         }
-        return getDestination() + "\\" + runtimePath;
+        return destination + "\\" + runtimePath;
+    }
+
+    /**
+     * Get the job's own destination directory.  This is the destination with the job name added when
+     * the job has the jobDir option set; it's the directory the date paths are created in.
+     * @param destination the destination of the run, see BackupEngine.setDestination
+     * @return the job's destination directory
+     */
+    String getJobDestination(String destination) {
+        if (getOptions().contains(option.jobDir)) {
+            return destination + "\\" + getName();
+        }
+        return destination;
     }
 
     File getDestinationFile() {
@@ -316,9 +347,79 @@ public class Job {
     public boolean isEncryptionEnabled() {
         return getOptions().contains(option.encrypt)?true:false;
     }
+    public boolean isCompressionEnabled() {
+        return getOptions().contains(option.compress);
+    }
+
+    /**
+     * get the job's compression level.  It's used for compressing encrypted files when the compress option
+     * is set, and for the entries of a zip mode archive.
+     * @return the compression level, 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION when
+     * the job doesn't set one or sets one that isn't a number.  A level outside 1 to 9 is taken as the
+     * closest one.
+     */
+    public int getCompressionLevel() {
+        String value = option.compress.getValue();
+        if (value == null || value.trim().isEmpty()) return Deflater.DEFAULT_COMPRESSION;
+        try {
+            int level = Integer.parseInt(value.trim());
+            return Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        } catch (NumberFormatException e) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    /**
+     * get the cipher suite the job's files are encrypted with.  Without the cipher option, or with a suite
+     * this version doesn't know, it's the suite that is the fastest on this host.
+     * @return the cipher suite
+     */
+    public DataEncryption.CipherSuite getCipherSuite() {
+        String value = option.cipher.getValue();
+        if (getOptions().contains(option.cipher) && value != null && !value.isEmpty()) {
+            try {
+                return DataEncryption.CipherSuite.valueOf(value);
+            } catch (IllegalArgumentException e) {
+                // fall through to the fastest suite
+            }
+        }
+        return DataEncryption.getFastestCipherSuite();
+    }
+
+    /**
+     * get the hash algorithms the checksums of a copy mode backup are computed with.  SHA-256 is always one of
+     * them, it's the checksum the backup manifest keeps of every file's content; the checksum option's value
+     * can name others, e.g. "MD5,SHA512".
+     * @return the algorithms, or an empty list when the job doesn't have the checksum option
+     */
+    public List<DataEncryption.Hash> getChecksumHashes() {
+        List<DataEncryption.Hash> hashes = new ArrayList<>();
+        if (!getOptions().contains(option.checksum)) return hashes;
+        hashes.add(DataEncryption.Hash.SHA256);
+        String value = option.checksum.getValue();
+        if (value == null) return hashes;
+        for (String name : value.split("[,\\s]+")) {
+            try {
+                DataEncryption.Hash hash = DataEncryption.Hash.valueOf(name.toUpperCase().replace("-", ""));
+                if (!hashes.contains(hash)) hashes.add(hash);
+            } catch (IllegalArgumentException e) {
+                // an algorithm this version doesn't know is left out
+            }
+        }
+        return hashes;
+    }
+
     public boolean appendJobName() {
         return getOptions().contains(option.jobDir)?true:false;
     }
+    /**
+     * @return true if a copy mode backup hard links the files that didn't change to their copies in the
+     * previous date path, rather than copying them again.  Only used with the dateDir option.
+     */
+    public boolean isLinkEnabled() {
+        return getOptions().contains(option.link) && appendDate();
+    }
+
     public boolean appendDate() {
         return getOptions().contains(option.dateDir)?true:false;
     }
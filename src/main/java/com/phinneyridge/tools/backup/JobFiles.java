@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * JobFiles knows where the jobs are saved, and shows the errors that occur loading them.  It doesn't
+ * depend on a UI, so jobs can be loaded and run without a display (see Batch).
+ */
+public class JobFiles {
+    private static final String jobsDir = System.getProperty("user.home") + "/BackupJobs";
+    private static final File jobsDirFile = new File(jobsDir);
+    private static volatile ErrorReporter reporter = ErrorReporter.console;
+
+    private JobFiles() {
+    }
+
+    /**
+     * set the reporter that shows the errors that occur loading a job; the gui sets itself.
+     * @param errorReporter the reporter, or null to write the errors to the standard error
+     */
+    static void setErrorReporter(ErrorReporter errorReporter) {
+        reporter = (errorReporter == null) ? ErrorReporter.console : errorReporter;
+    }
+
+    static ErrorReporter getErrorReporter() {
+        return reporter;
+    }
+
+    /**
+     * gets a list of all the existing job names
+     * @return a list of all the existing job names
+     */
+    static List<String> getAllJobNames() {
+        List<String> jobNames = new LinkedList<>();
+        File[] jobFiles = jobsDirFile.listFiles();
+        if (jobFiles != null) {
+            for (File jobFile : jobFiles) {
+                String name = jobFile.getName();
+                if (!name.contains("_nodes.")) {
+                    int idx = name.lastIndexOf(".");
+                    jobNames.add(name.substring(0, idx));
+                }
+            }
+        }
+        return jobNames;
+    }
+
+    /**
+     * get the File object use for storing information about the given job name
+     * @param jobName the name of the job
+     * @return the File object used for storing job info for the given job name
+     */
+    static File getJobFile(String jobName) {
+        return new File(jobsDir, jobName + ".xml");
+    }
+
+    /**
+     * get the File object use for storing information about the nodes for the given job name
+     * @param jobName the name of the job
+     * @return the File object used for storing job info about the nodes for the given job name
+     */
+    static File getJobNodeFile(String jobName) {
+        return new File(jobsDir, jobName + "_nodes.xml");
+    }
+}
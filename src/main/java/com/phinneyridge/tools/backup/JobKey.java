@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * JobKey is the key header of an encrypting job.  It's kept in the job's destination directory and holds the
+ * salt and iteration count the job's master key is derived from with PBKDF2, and a check value that tells if
+ * a password gives the right master key.  The expensive derivation is done once per run; every file is then
+ * encrypted with its own key, derived cheaply from the master key and the file's salt with HKDF (see
+ * DataEncryption).
+ * <p>
+ * The key header is a text file.  The first line identifies the format; the other lines are a name and a
+ * value separated by a tab: the salt and the check value in hexadecimal, and the iteration count.  It holds
+ * nothing secret, but without it the files encrypted with the master key can't be decrypted.
+ */
+public class JobKey {
+    public static final String fileName = "backup.key";
+    public static final int defaultIterations = 600000;
+    private static final String formatLine = "# backup-utility key 1";
+    private static final int masterKeyLength = 32;
+    private static final byte[] checkInfo = "backup-utility key check".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] salt;
+    private final int iterations;
+    private final byte[] check;
+
+    private JobKey(byte[] salt, int iterations, byte[] check) {
+        this.salt = salt;
+        this.iterations = iterations;
+        this.check = check;
+    }
+
+    /**
+     * load the key header of the given directory
+     * @param directory the job's destination directory
+     * @return the key header, or null if the directory doesn't have one
+     * @throws IOException if the key header can't be read or isn't valid
+     */
+    public static JobKey load(File directory) throws IOException {
+        File file = new File(directory, fileName);
+        if (!file.isFile()) return null;
+        byte[] salt = null;
+        byte[] check = null;
+        int iterations = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!formatLine.equals(reader.readLine())) {
+                throw new IOException(file.getPath() + " isn't a key header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length != 2) continue;
+                switch (fields[0]) {
+                    case "salt":
+                        salt = DataEncryption.fromHexString(fields[1]);
+                        break;
+                    case "iterations":
+                        iterations = Integer.parseInt(fields[1]);
+                        break;
+                    case "check":
+                        check = DataEncryption.fromHexString(fields[1]);
+                        break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file.getPath() + " isn't a valid key header");
+        }
+        if (salt == null || check == null || iterations <= 0) {
+            throw new IOException(file.getPath() + " isn't a complete key header");
+        }
+        return new JobKey(salt, iterations, check);
+    }
+
+    /**
+     * create the key header for the given password and save it in the given directory
+     * @param directory the job's destination directory
+     * @param password the job's password
+     * @param random the source of the salt
+     * @return the key header
+     * @throws IOException if the key header can't be written
+     */
+    public static JobKey create(File directory, String password, Random random) throws IOException {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        byte[] check = checkValue(deriveMasterKey(password, salt, defaultIterations));
+        JobKey jobKey = new JobKey(salt, defaultIterations, check);
+        jobKey.save(directory);
+        return jobKey;
+    }
+
+    private void save(File directory) throws IOException {
+        directory.mkdirs();
+        File file = new File(directory, fileName);
+        File temp = new File(directory, fileName + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(formatLine + "\n");
+            writer.write("salt\t" + DataEncryption.toHexString(salt) + "\n");
+            writer.write("iterations\t" + iterations + "\n");
+            writer.write("check\t" + DataEncryption.toHexString(check) + "\n");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * derive the master key from the given password
+     * @param password the job's password
+     * @return the master key
+     * @throws InvalidKeyException if the password isn't the one the key header was created with
+     */
+    public byte[] unlock(String password) throws InvalidKeyException {
+        byte[] masterKey = deriveMasterKey(password, salt, iterations);
+        if (!MessageDigest.isEqual(check, checkValue(masterKey))) {
+            throw new InvalidKeyException("the password does not match the password of the key header");
+        }
+        return masterKey;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    private static byte[] deriveMasterKey(String password, byte[] salt, int iterations) {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, masterKeyLength * 8);
+            try {
+                return factory.generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException e) {
+            // PBKDF2WithHmacSHA256 is available in every java runtime
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] checkValue(byte[] masterKey) {
+        return DataEncryption.hkdf(masterKey, new byte[0], checkInfo, 16);
+    }
+}
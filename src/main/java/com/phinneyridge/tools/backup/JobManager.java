@@ -20,14 +20,6 @@ import javafx.scene.control.ButtonType;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.layout.Region;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.LineNumberReader;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 import java.util.regex.Matcher;
@@ -38,10 +30,6 @@ public class JobManager {
     private UIManager ui;
     private FileSelection fileSelection;
 
-    private String jobsDir = System.getProperty("user.home") + "/BackupJobs";
-    private File jobsDirFile = new File(jobsDir);
-    private Pattern datePathPattern = Pattern.compile("\\d\\d\\d\\d-\\d\\d-\\d\\d@\\d\\d-\\d\\d-\\d\\d");
-
     public JobManager() {
         ui = App.getUIManager();
         fileSelection = App.getFileSelection();
@@ -62,18 +50,7 @@ public class JobManager {
      * @return a list of all the existing job names
      */
     List<String> getAllJobNames() {
-        List<String> jobNames = new LinkedList<>();
-        File[] jobFiles = jobsDirFile.listFiles();
-        if (jobFiles != null) {
-            for (File jobFile : jobFiles) {
-                String name = jobFile.getName();
-                if (!name.contains("_nodes.")) {
-                    int idx = name.lastIndexOf(".");
-                    jobNames.add(name.substring(0, idx));
-                }
-            }
-        }
-        return jobNames;
+        return JobFiles.getAllJobNames();
     }
 
     public Job createJob() {
@@ -163,102 +140,4 @@ public class JobManager {
         }
         return false;
     }
-
-    /**
-     * get the File object use for storing information about the given job name
-     * @param jobName the name of the job
-     * @return the File object used for storing job info for the given job name
-     */
-    File getJobFile(String jobName) {
-        return new File(jobsDir, jobName + ".xml");
-    }
-
-    /**
-     * get the File object use for storing information about the nodes for the given job name
-     * @param jobName the name of the job
-     * @return the File object used for storing job info about the nodes for the given job name
-     */
-    File getJobNodeFile(String jobName) {
-        return new File(jobsDir, jobName + "_nodes.xml");
-    }
-
-    public boolean isDatePath(File dir) {
-        Matcher matcher = datePathPattern.matcher(dir.getName());
-        if (matcher.matches()) return true;
-        else return false;
-    }
-
-    public boolean isDatePath(String dirFileName) {
-        Matcher matcher = datePathPattern.matcher(dirFileName);
-        if (matcher.matches()) return true;
-        else return false;
-    }
-
-
-    /**
-     *  checks that the number of date paths to retain is not exceeded.  If it is,
-     *  the older date path directories are deleted.
-     * @return true is the routine successfully completed the operation.<br>
-     *         false is there was a problem deleting a directory
-     */
-    boolean checkDatePathRetain () {
-        boolean result = true;
-        String runtime = getActiveJob().getRuntimeDestination("");
-        File runtimeDestination = new File(runtime);
-        if (!isDatePath(runtimeDestination)) {
-            String dateDirValue = Job.option.dateDir.getValue();
-            if (!(dateDirValue == null || dateDirValue.isEmpty())) {
-                Integer numDatePathRetain = Integer.valueOf(dateDirValue);
-                List<String> dates = getAvailableDatePaths(runtimeDestination);
-                if (dates.size() > numDatePathRetain) {
-                    // got too many date path directories that we are retaining
-                    // delete the older date path directories
-                    int i = dates.size();
-                    while (i > numDatePathRetain) {
-                        if (!deleteOldestPathPath(dates)) {
-                            result = false;
-                            break;
-                        }
-                        i--;
-                    }
-                }
-            }
-        }
-        return  result;
-    }
-
-    boolean deleteOldestPathPath(List<String>dates) {
-        Collections.sort(dates);
-        boolean result = deleteDatePath(dates.get(0));
-        dates.remove(0);
-        return result;
-    }
-
-    boolean deleteDatePath(String date) {
-        String datePath = activeJob.getRuntimeDestination(date);
-        try {
-            Files.walk(Paths.get(datePath))
-                    .map(Path::toFile)
-                    .sorted((o1, o2) -> -o1.compareTo(o2))
-                    .forEach(File::delete);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-        return true;
-    }
-
-    List<String> getAvailableDatePaths(File runtimeDestination) {
-        List<String> paths = new LinkedList<>();
-        File[] files = runtimeDestination.listFiles();
-        for (File file: files) {
-            if (file.isDirectory()) {
-                if (isDatePath(file)) {
-                    paths.add(file.getName());
-                }
-            }
-        }
-        return paths;
-    }
-
 }
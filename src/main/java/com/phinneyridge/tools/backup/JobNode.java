@@ -27,6 +27,7 @@ import javafx.stage.DirectoryChooser;
 
 import java.io.File;
 import java.util.List;
+import java.util.StringJoiner;
 
 import static com.phinneyridge.tools.backup.Job.option.dateDir;
 import static com.phinneyridge.tools.backup.Job.option.jobDir;
@@ -45,9 +46,14 @@ public class JobNode implements PageNode{
     private RadioButton alwaysPrompt;
     private RadioButton addJobName;
     private RadioButton addDate;
+    private RadioButton linkDates;
     private VBox numDatesLabel;
     private TextField numDates;
     private ChoiceBox encryptionEnabled;
+    private ChoiceBox storageMode;
+    private ChoiceBox compressionLevel;
+    private ChoiceBox cipherSuite;
+    private ChoiceBox checksum;
     private boolean isAlwaysReplace;
     private boolean isEncryptionEnabled;
 
@@ -133,10 +139,45 @@ public class JobNode implements PageNode{
         encryptionEnabled.getSelectionModel().select(0);
         encryptionEnabled.setOnAction(e->encryptionChoice());
 
+        compressionLevel = (ChoiceBox) jobRoot.lookup("#compressionLevel");
+        compressionLevel.getItems().add("disabled");
+        for (int level = 1; level <= 9; level++) {
+            compressionLevel.getItems().add(String.valueOf(level));  // 1 is the fastest, 9 the smallest
+        }
+        compressionLevel.getSelectionModel().select(0);
+        compressionLevel.setOnAction(e->compressionChoice());
+
+        cipherSuite = (ChoiceBox) jobRoot.lookup("#cipherSuite");
+        cipherSuite.getItems().add("fastest");  // measured on the host the job runs on
+        for (DataEncryption.CipherSuite suite : DataEncryption.CipherSuite.values()) {
+            cipherSuite.getItems().add(suite.name());
+        }
+        cipherSuite.getSelectionModel().select(0);
+        cipherSuite.setOnAction(e->cipherSuiteChoice());
+
+        checksum = (ChoiceBox) jobRoot.lookup("#checksum");
+        checksum.getItems().add("disabled");
+        checksum.getItems().add("SHA256");    // always recorded, the others come in addition
+        checksum.getItems().add("SHA256,MD5");
+        checksum.getItems().add("SHA256,SHA1");
+        checksum.getItems().add("SHA256,SHA512");
+        checksum.getSelectionModel().select(0);
+        checksum.setOnAction(e->checksumChoice());
+
+        storageMode = (ChoiceBox) jobRoot.lookup("#storageMode");
+        storageMode.getItems().add(Job.mode.copy.name());
+        storageMode.getItems().add(Job.mode.zip.name());
+        storageMode.getItems().add(Job.mode.vcs.name());
+        storageMode.getItems().add(Job.mode.store.name());
+        storageMode.getSelectionModel().select(0);
+        storageMode.setOnAction(e->storageModeChoice());
+
         addJobName = (RadioButton) jobRoot.lookup("#addJobName");
         addJobName.setOnAction(e-> toggleAddJobName());
         addDate = (RadioButton) jobRoot.lookup("#addDate");
         addDate.setOnAction(e->toggleAddDate());
+        linkDates = (RadioButton) jobRoot.lookup("#linkDates");
+        linkDates.setOnAction(e->toggleLinkDates());
         numDatesLabel = (VBox) jobRoot.lookup("#numDatesLabel");
         numDates = (TextField) jobRoot.lookup("#numDates");
         //numDates.setOnKeyReleased(e->setNumDates());
@@ -264,6 +305,29 @@ public class JobNode implements PageNode{
         } else {
             encryptionEnabled.getSelectionModel().select(0);
         }
+        if (job.getOptions().contains(Job.option.compress) && job.getCompressionLevel() > 0) {
+            compressionLevel.getSelectionModel().select(String.valueOf(job.getCompressionLevel()));
+        } else if (job.getOptions().contains(Job.option.compress)) {
+            compressionLevel.getSelectionModel().select("6");   // the deflater's default level
+        } else {
+            compressionLevel.getSelectionModel().select(0);
+        }
+        if (job.getOptions().contains(Job.option.cipher)) {
+            cipherSuite.getSelectionModel().select(Job.option.cipher.getValue());
+        } else {
+            cipherSuite.getSelectionModel().select(0);
+        }
+        if (job.getOptions().contains(Job.option.checksum)) {
+            StringJoiner hashes = new StringJoiner(",");
+            for (DataEncryption.Hash hash : job.getChecksumHashes()) {
+                hashes.add(hash.name());
+            }
+            if (!checksum.getItems().contains(hashes.toString())) checksum.getItems().add(hashes.toString());
+            checksum.getSelectionModel().select(hashes.toString());
+        } else {
+            checksum.getSelectionModel().select(0);
+        }
+        storageMode.getSelectionModel().select(job.getJobModeName());
         if  (job.getOptions().contains(jobDir)) {
             addJobName.setSelected(true);
         } else {
@@ -279,6 +343,7 @@ public class JobNode implements PageNode{
             numDates.setVisible(false);
             numDatesLabel.setVisible(false);
         }
+        linkDates.setSelected(job.getOptions().contains(Job.option.link));
         return job;
     }
 
@@ -321,6 +386,46 @@ public class JobNode implements PageNode{
         }
     }
 
+    synchronized void compressionChoice() {
+        String level = (String)compressionLevel.getSelectionModel().getSelectedItem();
+        if (level == null) return;
+        if (level.equals("disabled")) {
+            jobManager.getActiveJob().removeOption(Job.option.compress);
+        } else {
+            jobManager.getActiveJob().addOption(Job.option.compress);
+            Job.option.compress.setValue(level);
+        }
+    }
+
+    synchronized void cipherSuiteChoice() {
+        String suite = (String)cipherSuite.getSelectionModel().getSelectedItem();
+        if (suite == null) return;
+        if (suite.equals("fastest")) {
+            jobManager.getActiveJob().removeOption(Job.option.cipher);
+        } else {
+            jobManager.getActiveJob().addOption(Job.option.cipher);
+            Job.option.cipher.setValue(suite);
+        }
+    }
+
+    synchronized void checksumChoice() {
+        String hashes = (String)checksum.getSelectionModel().getSelectedItem();
+        if (hashes == null) return;
+        if (hashes.equals("disabled")) {
+            jobManager.getActiveJob().removeOption(Job.option.checksum);
+        } else {
+            jobManager.getActiveJob().addOption(Job.option.checksum);
+            Job.option.checksum.setValue(hashes);
+        }
+    }
+
+    synchronized void storageModeChoice() {
+        String modeName = (String)storageMode.getSelectionModel().getSelectedItem();
+        if (modeName != null) {
+            jobManager.getActiveJob().setMode(modeName);
+        }
+    }
+
     synchronized void toggleAddJobName() {
         if (jobManager.getActiveJob().getOptions().contains(jobDir)) {
             jobManager.getActiveJob().getOptions().remove(jobDir);
@@ -343,6 +448,14 @@ public class JobNode implements PageNode{
         }
     }
 
+    synchronized void toggleLinkDates() {
+        if (jobManager.getActiveJob().getOptions().contains(Job.option.link)) {
+            jobManager.getActiveJob().getOptions().remove(Job.option.link);
+        } else {
+            jobManager.getActiveJob().addOption(Job.option.link);
+        }
+    }
+
     synchronized  void setNumDates() {
         String numDateField = numDates.getText();
         if (numDateField.matches("-?\\d+")) {
@@ -39,17 +39,10 @@ public class JobXml extends DefaultHandler {
                                 // level 1+ is the nested level of the current xml element
     private enum xmlFileType {job, nodes};
     private xmlFileType currentXmlFileType;
-    private JobManager jobManager;
-    private UI ui;
     private Job job; // current job being parsed
     private Stack<String> elementStack = new Stack<>();
     private String parentNode;
 
-    public JobXml() {
-        jobManager = App.getJobManager();
-        ui = App.getUIManager();
-    }
-
     /**
      * this parses the Job xml file and returns the job
      * @return the Job. If the returned value is null, that means that there was an error
@@ -57,7 +50,7 @@ public class JobXml extends DefaultHandler {
      */
     public synchronized Job parseJob(String jobName) {
         job = new Job(jobName);
-        File file = jobManager.getJobFile(jobName);
+        File file = JobFiles.getJobFile(jobName);
         SAXParserFactory f = SAXParserFactory.newInstance();
         SAXParser parser = null;
         try {
@@ -66,7 +59,7 @@ public class JobXml extends DefaultHandler {
             currentXmlFileType = xmlFileType.job;
             parser.parse(file, this);
         } catch (ParserConfigurationException | IOException | SAXException e) {
-            ui.showThrowable("Exception","exception thrown parsing job_node xml file", e);
+            showThrowable("exception thrown parsing job xml file", e);
             return null;
         }
         return job;
@@ -83,7 +76,7 @@ public class JobXml extends DefaultHandler {
     public synchronized boolean parseNodes(Job job) {
         boolean success = true;
         this.job = job;
-        File file = jobManager.getJobNodeFile(job.getName());
+        File file = JobFiles.getJobNodeFile(job.getName());
         SAXParserFactory f = SAXParserFactory.newInstance();
         SAXParser parser = null;
         try {
@@ -92,12 +85,16 @@ public class JobXml extends DefaultHandler {
             currentXmlFileType = xmlFileType.nodes;
             parser.parse(file, this);
         } catch (ParserConfigurationException | IOException | SAXException e) {
-            ui.showThrowable("Exception","exception thrown parsing job_node xml file", e);
+            showThrowable("exception thrown parsing job_node xml file", e);
             success = false;
         }
         return success;
     }
 
+    private void showThrowable(String header, Exception e) {
+        JobFiles.getErrorReporter().showThrowable("Exception", header, e);
+    }
+
     @Override
     protected Object clone() throws CloneNotSupportedException {
         return super.clone();
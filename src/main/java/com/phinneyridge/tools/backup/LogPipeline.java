@@ -0,0 +1,218 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LogPipeline collects the messages of a run without slowing the run down.  Messages are put on a
+ * bounded queue and a single writer thread drains them in batches: every message is appended to a log file,
+ * which holds the full history of the run, and the most recent messages are kept in a bounded buffer that
+ * a display polls at its own pace.  If the display falls behind, the oldest undisplayed messages are
+ * dropped from the buffer (they are still in the log file) and the number dropped is reported instead.
+ * When no log file is given, the history is written to a temporary file that is deleted on close.
+ */
+public class LogPipeline implements EngineListener {
+    private static final Object END = new Object();
+    private static final int batchSize = 4096;
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(65536);
+    // producers hold the read lock while they enqueue, close takes the write lock, so nothing is put on the
+    // queue after END and no producer is left waiting on a queue nobody drains
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final File logFile;
+    private final boolean temporary;
+    private final Writer writer;
+    private final int displayCapacity;
+    private final ArrayDeque<String> display;
+    private long droppedLines = 0;
+    private final Thread thread;
+    private volatile IOException error;
+    private boolean closed = false;     // guarded by closeLock
+
+    /**
+     * create a pipeline and start its writer thread
+     * @param logFile the file the full history is written to, or null to use a temporary file
+     * @param displayCapacity the maximum number of messages waiting to be polled by the display
+     * @throws IOException if the log file can't be created
+     */
+    public LogPipeline(File logFile, int displayCapacity) throws IOException {
+        if (logFile == null) {
+            logFile = File.createTempFile("backup", ".log");
+            logFile.deleteOnExit();
+            temporary = true;
+        } else {
+            if (logFile.getParentFile() != null) logFile.getParentFile().mkdirs();
+            temporary = false;
+        }
+        this.logFile = logFile;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile),
+                StandardCharsets.UTF_8), 1 << 16);
+        this.displayCapacity = displayCapacity;
+        this.display = new ArrayDeque<>(Math.min(displayCapacity, 1024));
+        thread = new Thread(this::run, "backup-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void message(String msg) {
+        closeLock.readLock().lock();
+        try {
+            // messages that arrive after close, from a deferred prune say, are dropped
+            if (closed) return;
+            queue.put(msg == null ? "" : msg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                boolean end = false;
+                synchronized (display) {
+                    for (Object item : batch) {
+                        if (item == END) {
+                            end = true;
+                            break;
+                        }
+                        String line = (String) item;
+                        write(line);
+                        display.addLast(line);
+                        if (display.size() > displayCapacity) {
+                            display.removeFirst();
+                            droppedLines++;
+                        }
+                    }
+                }
+                batch.clear();
+                flush();
+                if (end) return;
+            }
+        } catch (InterruptedException e) {
+            // the pipeline is being shut down
+        }
+    }
+
+    private void write(String line) {
+        if (error != null) return;
+        try {
+            writer.write(line);
+            writer.write(System.lineSeparator());
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void flush() {
+        if (error != null) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * take the messages that have arrived since the last poll
+     * @return the new messages, oldest first
+     */
+    public List<String> pollDisplayLines() {
+        synchronized (display) {
+            List<String> lines = new ArrayList<>(display);
+            display.clear();
+            return lines;
+        }
+    }
+
+    /**
+     * take the number of messages that were dropped from the display buffer since the last poll
+     * @return the number of dropped messages
+     */
+    public long pollDroppedLines() {
+        synchronized (display) {
+            long dropped = droppedLines;
+            droppedLines = 0;
+            return dropped;
+        }
+    }
+
+    /**
+     * @return the full history of messages written so far
+     * @throws IOException if the log file can't be read, or couldn't be written
+     */
+    public String getHistory() throws IOException {
+        if (error != null) throw error;
+        return new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * write out the remaining messages and stop the writer thread.  The history remains available
+     * until delete is called.
+     */
+    public synchronized void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            // the writer thread keeps draining, so this doesn't wait long
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+    }
+
+    /**
+     * close the pipeline and delete the log file if it's a temporary file
+     */
+    public void delete() {
+        close();
+        if (temporary) logFile.delete();
+    }
+}
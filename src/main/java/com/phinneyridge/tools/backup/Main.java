@@ -32,6 +32,7 @@ public class Main extends Application implements AppInterface {
     public void start(Stage stage) throws Exception{
         App.setApp(this);
         ui = new UIManager(stage);
+        JobFiles.setErrorReporter(ui);
         jobManager = new JobManager();
         jobManager.init(new Job("$adhoc$"));
         Task<Void> worker = new Task<Void>() {
@@ -64,8 +65,6 @@ public class Main extends Application implements AppInterface {
 
 
     public static void main(String[] args) {
-        System.out.println(("args: " + args));
-
         launch(args);
     }
 
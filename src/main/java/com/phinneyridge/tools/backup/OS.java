@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+/**
+ * the operating systems of the host.  This doesn't depend on a UI, so it's used by the gui as well as
+ * when the utility is run without a display.
+ */
+public enum OS {
+    WINDOWS, LINUX, MAC, SOLARIS;
+
+    /**
+     * detect the operating system of the host using the `os.name` System property.
+     * @return the host operating system, or null if the operating system isn't recognized
+     */
+    public static OS current() {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.contains("win")) {
+            return WINDOWS;
+        }
+        else if (os.contains("nix") || os.contains("nux") || os.contains("aix")) {
+            return LINUX;
+        }
+        else if (os.contains("mac")) {
+            return MAC;
+        }
+        else if (os.contains("sunos")) {
+            return SOLARIS;
+        }
+        return null;
+    }
+}
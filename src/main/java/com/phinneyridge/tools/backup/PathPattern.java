@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.regex.Pattern;
+
+/**
+ * PathPattern selects the source files to restore by their path.  The syntax follows the path matchers of
+ * java.nio.file.FileSystem:
+ * <pre>
+ *   C:\Finance\2026\budget.xlsx      the file, or all the files under the directory
+ *   glob:C:\Finance\2026\**.xlsx     a glob: * and ? match within a name, ** across names, [abc] one of
+ *                                    the characters and {xlsx,csv} one of the alternatives
+ *   regex:C:/Finance/.*\.xlsx        a regular expression
+ * </pre>
+ * Both "\" and "/" separate names in a path or a glob; a regular expression is matched against the path
+ * with "/" separators.  Names are compared with their case, like the paths a job selects.
+ * <p>
+ * The literal beginning of the pattern, up to the last separator before the first wildcard, is its prefix:
+ * only the files under the prefix can match, so a sorted index needs to look no further (see SnapshotIndex).
+ */
+public class PathPattern {
+    public static final String globSyntax = "glob:";
+    public static final String regexSyntax = "regex:";
+
+    private final String pattern;
+    private final String prefix;
+    private final Pattern regex;        // null for a path
+
+    private PathPattern(String pattern, String prefix, Pattern regex) {
+        this.pattern = pattern;
+        this.prefix = prefix;
+        this.regex = regex;
+    }
+
+    /**
+     * compile a pattern
+     * @param pattern a path, or a glob or regular expression with its syntax prefix
+     * @return the compiled pattern
+     * @throws IllegalArgumentException if the pattern isn't valid
+     */
+    public static PathPattern compile(String pattern) {
+        if (pattern.startsWith(globSyntax)) {
+            String glob = pattern.substring(globSyntax.length());
+            return new PathPattern(pattern, literalPrefix(glob, "*?[{"), Pattern.compile(globToRegex(glob)));
+        }
+        if (pattern.startsWith(regexSyntax)) {
+            // the beginning of a regular expression is only literal in simple cases, so it has no prefix
+            return new PathPattern(pattern, "", Pattern.compile(pattern.substring(regexSyntax.length())));
+        }
+        if (pattern.isEmpty()) throw new IllegalArgumentException("the path is empty");
+        return new PathPattern(pattern, normalize(pattern), null);
+    }
+
+    /**
+     * @return the literal beginning of the pattern, with "/" separators; every matching path begins with it
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * lets you know if the given source file matches the pattern
+     * @param path the path of a file in the job's source directories
+     * @return true if the file matches
+     */
+    public boolean matches(String path) {
+        String normalized = normalize(path);
+        if (regex != null) return regex.matcher(normalized).matches();
+        return normalized.equals(prefix) || (normalized.startsWith(prefix) &&
+                (prefix.endsWith("/") || normalized.charAt(prefix.length()) == '/'));
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static String normalize(String path) {
+        return path.replace('\\', '/');
+    }
+
+    private static String literalPrefix(String glob, String wildcards) {
+        int end = 0;
+        while (end < glob.length() && wildcards.indexOf(glob.charAt(end)) < 0) end++;
+        if (end == glob.length()) return normalize(glob);
+        String literal = normalize(glob.substring(0, end));
+        return literal.substring(0, literal.lastIndexOf('/') + 1);
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        // **/ matches no directory as well
+                        if (i + 1 < glob.length() && isSeparator(glob.charAt(i + 1))) {
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) throw new IllegalArgumentException("unclosed [ in " + glob);
+                    String set = glob.substring(i + 1, close);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close;
+                    break;
+                case '{':
+                    if (inGroup) throw new IllegalArgumentException("nested { in " + glob);
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (!inGroup) throw new IllegalArgumentException("unmatched } in " + glob);
+                    inGroup = false;
+                    regex.append(')');
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '\\':
+                case '/':
+                    regex.append('/');
+                    break;
+                default:
+                    if ("().+^$|".indexOf(c) >= 0) regex.append('\\');
+                    regex.append(c);
+            }
+        }
+        if (inGroup) throw new IllegalArgumentException("unclosed { in " + glob);
+        return regex.toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '\\' || c == '/';
+    }
+}
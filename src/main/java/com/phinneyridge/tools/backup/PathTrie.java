@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PathTrie holds the files and directories that were selected for a job, split into their names, so a
+ * restore can tell whether a file is on one of them without touching the file system.  A file is on a
+ * selected path when the path is the file itself or one of its parent directories.  Matching walks the
+ * names of the file's path in place: there's no File, no substring and no system call per file, and the
+ * cost depends on the depth of the file rather than on the number of selected paths.
+ * <p>
+ * Both "\" and the platform's separator separate the names, like the backup's own path names.  A trie is
+ * built once and can be matched by many threads at the same time.
+ */
+public class PathTrie {
+    private static final Node[] noChildren = new Node[0];
+
+    private static class Node {
+        private final String name;
+        private Node[] children = noChildren;   // sorted by name, for a binary search
+        private boolean selected = false;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        Node addChild(String name) {
+            int index = find(name, 0, name.length());
+            if (index >= 0) return children[index];
+            Node child = new Node(name);
+            int insert = -index - 1;
+            Node[] grown = Arrays.copyOf(children, children.length + 1);
+            System.arraycopy(grown, insert, grown, insert + 1, children.length - insert);
+            grown[insert] = child;
+            children = grown;
+            return child;
+        }
+
+        /**
+         * find the child with the name at the given region of the path
+         * @return the index of the child, or -(insertion point) - 1 if there isn't one
+         */
+        int find(String path, int start, int end) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = compare(children[middle].name, path, start, end);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    private final Node root = new Node("");
+    private final boolean empty;
+
+    /**
+     * compile the selected paths
+     * @param paths the paths of the selected files and directories
+     */
+    public PathTrie(List<String> paths) {
+        for (String path : paths) {
+            // the path is compared in the form File gives it, without its redundant separators
+            String name = new File(path).getPath();
+            Node node = root;
+            int start = 0;
+            while ((start = nextName(name, start)) < name.length()) {
+                int end = endOfName(name, start);
+                node = node.addChild(name.substring(start, end));
+                start = end;
+            }
+            node.selected = true;
+        }
+        empty = paths.isEmpty();
+    }
+
+    /**
+     * lets you know if the given file is on one of the selected paths
+     * @param path the path of a file in the job's source directories
+     * @return true if the file, or one of its parent directories, was selected
+     */
+    public boolean contains(String path) {
+        if (empty) return false;
+        Node node = root;
+        int start = 0;
+        while (!node.selected) {
+            start = nextName(path, start);
+            if (start >= path.length()) return false;
+            int end = endOfName(path, start);
+            int index = node.find(path, start, end);
+            if (index < 0) return false;
+            node = node.children[index];
+            start = end;
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '\\' || c == File.separatorChar;
+    }
+
+    private static int nextName(String path, int index) {
+        while (index < path.length() && isSeparator(path.charAt(index))) index++;
+        return index;
+    }
+
+    private static int endOfName(String path, int index) {
+        while (index < path.length() && !isSeparator(path.charAt(index))) index++;
+        return index;
+    }
+
+    /**
+     * compare a name with a region of a path, in the order of String.compareTo
+     */
+    private static int compare(String name, String path, int start, int end) {
+        int length = Math.min(name.length(), end - start);
+        for (int i = 0; i < length; i++) {
+            char a = name.charAt(i);
+            char b = path.charAt(start + i);
+            if (a != b) return a - b;
+        }
+        return name.length() - (end - start);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * SnapshotIndex is a sorted copy of a backup's manifest, so the files under a path can be found without
+ * reading the whole manifest.  It has the lines of the manifest, uncompressed and sorted by the bytes of
+ * their relative path names.  A lookup is a binary search over the lines, and the files under a path are
+ * the lines that follow the first one with the path as its prefix.  Only the blocks of the index that are
+ * looked at are read from the file, with positional reads; the index isn't memory mapped, because a
+ * mapping keeps the file open until it's garbage collected, and on Windows the next backup then can't
+ * replace the index.  An open index has to be closed.
+ * <p>
+ * The index is written next to the manifest at the end of each backup.  Its second line has the stamp of
+ * the manifest it was made from; an index whose stamp isn't the stamp of the manifest in its directory is
+ * out of date and isn't opened.  It's only a shortcut: a backup without an index, or with one that can't
+ * be read, is looked up in its manifest.
+ */
+public class SnapshotIndex implements Closeable {
+    public static final String fileName = "backup.index";
+    private static final String formatLine = "# backup-utility index 1";
+    private static final String stampPrefix = "# stamp ";
+    private static final int blockSize = 1 << 14;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long dataStart;
+    private final ByteBuffer block = ByteBuffer.allocate(blockSize);
+    private long blockStart = 0;        // the position of the block in the index
+
+    private SnapshotIndex(FileChannel channel, long dataStart) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.dataStart = dataStart;
+        block.limit(0);     // nothing is read yet
+    }
+
+    /**
+     * write the index of the given manifest entries to the given directory.  The index is written to a
+     * temporary file first, so an interrupted write leaves the previous index in place.
+     * @param directory the runtime destination
+     * @param stamp the stamp of the manifest the entries are from
+     * @param entries the manifest entries, by relative path name
+     * @throws IOException if the index can't be written
+     */
+    public static void write(File directory, String stamp, Map<String, BackupManifest.Entry> entries)
+            throws IOException {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        for (String name : entries.keySet()) {
+            // a name with a new line would end its line early; it's only found through the manifest
+            if (name.indexOf('\n') < 0) names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        names.sort(Arrays::compareUnsigned);
+        File file = new File(directory, fileName);
+        File temp = new File(directory, fileName + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+            out.write((formatLine + "\n" + stampPrefix + stamp + "\n").getBytes(StandardCharsets.UTF_8));
+            for (byte[] name : names) {
+                String relativePathName = new String(name, StandardCharsets.UTF_8);
+                out.write(BackupManifest.formatEntry(relativePathName, entries.get(relativePathName))
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * open the index in the given directory
+     * @param directory the runtime destination
+     * @return the index, or null if there is no index in the directory, it can't be read, or it wasn't
+     * made from the manifest that is in the directory
+     */
+    public static SnapshotIndex open(File directory) {
+        File file = new File(directory, fileName);
+        if (!file.isFile()) return null;
+        String stamp = BackupManifest.readStamp(directory);
+        if (stamp == null) return null;
+        byte[] header = (formatLine + "\n" + stampPrefix + stamp + "\n").getBytes(StandardCharsets.UTF_8);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            SnapshotIndex index = new SnapshotIndex(channel, header.length);
+            for (int i = 0; i < header.length; i++) {
+                if (i >= index.size || index.get(i) != header[i]) {
+                    index.close();
+                    return null;
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @param relativePathName the relative path name of a file
+     * @return the entry for the file, or null if the index doesn't have one
+     * @throws IOException if the index can't be read
+     */
+    public BackupManifest.Entry get(String relativePathName) throws IOException {
+        BackupManifest.Entry[] found = new BackupManifest.Entry[1];
+        byte[] name = relativePathName.getBytes(StandardCharsets.UTF_8);
+        long line = lowerBound(name);
+        if (line < size && compareName(line, name, false) == 0) {
+            readLine(line, endOfLine(line), (n, entry) -> found[0] = entry);
+        }
+        return found[0];
+    }
+
+    /**
+     * pass the entries whose relative path names begin with the given prefix to the consumer, in the order
+     * of their names
+     * @param prefix the beginning of the relative path names, "" for every entry
+     * @param consumer called with the relative path name and the entry of every file found
+     * @throws IOException if the index can't be read
+     */
+    public void scan(String prefix, BiConsumer<String, BackupManifest.Entry> consumer) throws IOException {
+        byte[] name = prefix.getBytes(StandardCharsets.UTF_8);
+        long line = lowerBound(name);
+        while (line < size && compareName(line, name, true) == 0) {
+            long end = endOfLine(line);
+            readLine(line, end, consumer);
+            line = end + 1;
+        }
+    }
+
+    private void readLine(long line, long end, BiConsumer<String, BackupManifest.Entry> consumer)
+            throws IOException {
+        byte[] bytes = new byte[(int) (end - line)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(line + i);
+        }
+        String[] fields = new String(bytes, StandardCharsets.UTF_8).split("\t", 5);
+        if (fields.length != 5) return;
+        try {
+            consumer.accept(fields[4], BackupManifest.parseEntry(fields));
+        } catch (NumberFormatException e) {
+            // a damaged line is passed over
+        }
+    }
+
+    /**
+     * get the byte at the given position of the index.  The index is read a block at a time; the blocks
+     * are aligned, so walking back to the start of a line rereads no more than walking forward does.
+     */
+    private byte get(long position) throws IOException {
+        if (position < blockStart || position >= blockStart + block.limit()) {
+            block.clear();
+            blockStart = position - position % blockSize;
+            while (block.hasRemaining()) {
+                if (channel.read(block, blockStart + block.position()) < 0) break;
+            }
+            block.flip();
+            if (position >= blockStart + block.limit()) {
+                throw new EOFException("the index " + fileName + " ended while it was read");
+            }
+        }
+        return block.get((int) (position - blockStart));
+    }
+
+    /**
+     * @return the start of the first line whose name isn't less than the given name, or the end of the index
+     */
+    private long lowerBound(byte[] name) throws IOException {
+        long low = dataStart;
+        long high = size;
+        while (low < high) {
+            long line = startOfLine((low + high) >>> 1);
+            if (compareName(line, name, false) < 0) {
+                low = endOfLine(line) + 1;
+            } else {
+                high = line;
+            }
+        }
+        return low;
+    }
+
+    private long startOfLine(long position) throws IOException {
+        while (position > dataStart && get(position - 1) != '\n') position--;
+        return position;
+    }
+
+    private long endOfLine(long position) throws IOException {
+        while (position < size && get(position) != '\n') position++;
+        return position;
+    }
+
+    /**
+     * compare the name of the line at the given position with the given name, as unsigned bytes
+     * @param prefix true to compare only as many bytes as the given name has
+     */
+    private int compareName(long line, byte[] name, boolean prefix) throws IOException {
+        // the name is the fifth field
+        long position = line;
+        for (int tabs = 0; tabs < 4 && position < size; position++) {
+            byte b = get(position);
+            if (b == '\n') return -1;
+            if (b == '\t') tabs++;
+        }
+        for (int i = 0; i < name.length; i++, position++) {
+            if (position >= size || get(position) == '\n') return -1;
+            int compare = Integer.compare(get(position) & 0xff, name[i] & 0xff);
+            if (compare != 0) return compare;
+        }
+        if (prefix || position >= size || get(position) == '\n') return 0;
+        return 1;
+    }
+}
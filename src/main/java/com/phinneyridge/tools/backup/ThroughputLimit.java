@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThroughputLimit holds back work that must not compete with other users of a device, like the verification
+ * of a backup while the machine is in use.  Unlike AdaptiveLimit, which goes as fast as the device allows,
+ * its limits are fixed: the number of operations that may run at the same time, and the number of bytes
+ * per second they may process together.  The bytes are paced, a reader that gets ahead of the rate sleeps
+ * until the rate has caught up with it; a short burst is allowed after an idle period.
+ */
+public class ThroughputLimit {
+    private static final long burstNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long bytesPerSecond;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private long next = System.nanoTime();     // the time at which the bytes consumed so far are paid for
+
+    /**
+     * create a limit
+     * @param bytesPerSecond the bytes per second the operations may process together, 0 for no limit
+     * @param maxConcurrent the number of operations that may run at the same time, 0 for no limit
+     */
+    public ThroughputLimit(long bytesPerSecond, int maxConcurrent) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = (maxConcurrent > 0) ? new Semaphore(maxConcurrent) : null;
+    }
+
+    /**
+     * wait until another operation may start
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        if (permits != null) permits.acquire();
+    }
+
+    /**
+     * end an operation that was started by acquire
+     */
+    public void release() {
+        if (permits != null) permits.release();
+    }
+
+    /**
+     * account for bytes that an operation has processed, waiting until the rate allows them
+     * @param bytes the number of bytes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void consume(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // time that wasn't used can't be saved up beyond a short burst
+            if (next < now - burstNanos) next = now - burstNanos;
+            next += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            wait = next - now;
+        }
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return a description of the limit for the job log
+     */
+    public String getSummary() {
+        String rate = (bytesPerSecond > 0) ? (bytesPerSecond / (1024 * 1024)) + " MB/s" : "no rate limit";
+        String reads = (maxConcurrent > 0) ? "at most " + maxConcurrent + " files at a time" :
+                "no limit on the files at a time";
+        return rate + ", " + reads;
+    }
+}
@@ -20,18 +20,12 @@ import javafx.stage.Stage;
 
 import java.util.List;
 
-public interface UI {
-    enum OS {
-        WINDOWS, LINUX, MAC, SOLARIS
-    };
-
+public interface UI extends ErrorReporter {
     Stage getStage();
     Parent getParent();
     void addPageNode(String name, com.phinneyridge.tools.backup.PageNode pageNode, Node node);
     boolean showPageNode(String nodeName);
     void setJobTitle(String jobName);
-    void showThrowable(String title, String header, Throwable e);
-    void showErrorMessage(String error, String title);
     void showMessage(String message, String title);
     String selectChoice(List<String> choices, String title, String header, String query, boolean reverseOrder);
     OS getOperatingSystem();
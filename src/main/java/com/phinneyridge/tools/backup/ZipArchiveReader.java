@@ -0,0 +1,362 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * ZipArchiveReader reads the archives written by ZipArchiveWriter, or any other zip archive that only uses
+ * the stored and deflated methods.  The entries are found through the central directory, and every entry
+ * is read with positional reads on a shared channel, so any number of threads can extract entries at the
+ * same time.
+ */
+public class ZipArchiveReader implements Closeable {
+
+    /**
+     * an entry in the archive's central directory
+     */
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+        private final long lastModified;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, long offset, long lastModified) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the entry was encrypted by ZipArchiveWriter
+         */
+        public boolean isEncrypted() {
+            return name.endsWith(BackupEngine.encryptionFileExtension);
+        }
+
+        /**
+         * @return the name of the entry without the encryption extension
+         */
+        public String getPathName() {
+            return isEncrypted() ? name.substring(0, name.length() - BackupEngine.encryptionFileExtension.length())
+                    : name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * open the archive and read its central directory
+     * @param file the archive
+     * @throws IOException if the archive can't be read or isn't a zip archive
+     */
+    public ZipArchiveReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("invalid zip archive " + file.getPath(), e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, 22 + 0xffff);
+        ByteBuffer tail = read(size - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == ZipArchiveWriter.endSignature) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) throw new IOException("no zip central directory found in " + file.getPath());
+        long count = tail.getShort(end + 10) & 0xffff;
+        long centralSize = tail.getInt(end + 12) & 0xffffffffL;
+        long centralOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || centralSize == ZipArchiveWriter.zip64Limit ||
+                centralOffset == ZipArchiveWriter.zip64Limit) {
+            long locator = size - tailLength + end - 20;
+            ByteBuffer buffer = read(locator, 20);
+            if (buffer.getInt(0) == ZipArchiveWriter.zip64LocatorSignature) {
+                ByteBuffer zip64End = read(buffer.getLong(8), 56);
+                if (zip64End.getInt(0) != ZipArchiveWriter.zip64EndSignature) {
+                    throw new IOException("invalid zip64 end record in " + file.getPath());
+                }
+                count = zip64End.getLong(32);
+                centralSize = zip64End.getLong(40);
+                centralOffset = zip64End.getLong(48);
+            }
+        }
+        if (centralSize > Integer.MAX_VALUE) throw new IOException("zip central directory is too large");
+        ByteBuffer central = read(centralOffset, (int) centralSize);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (central.getInt(position) != ZipArchiveWriter.centralHeaderSignature) {
+                throw new IOException("invalid zip central directory in " + file.getPath());
+            }
+            int method = central.getShort(position + 10) & 0xffff;
+            int dosTime = central.getInt(position + 12);
+            long crc = central.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = central.getInt(position + 20) & 0xffffffffL;
+            long entrySize = central.getInt(position + 24) & 0xffffffffL;
+            int nameLength = central.getShort(position + 28) & 0xffff;
+            int extraLength = central.getShort(position + 30) & 0xffff;
+            int commentLength = central.getShort(position + 32) & 0xffff;
+            long offset = central.getInt(position + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            central.position(position + 46);
+            central.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            long lastModified = fromDosTime(dosTime);
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = central.getShort(extra) & 0xffff;
+                int length = central.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                if (id == ZipArchiveWriter.zip64ExtraId) {
+                    // only the fields that are saturated in the header are present, in this order
+                    if (entrySize == ZipArchiveWriter.zip64Limit) {
+                        entrySize = central.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZipArchiveWriter.zip64Limit) {
+                        compressedSize = central.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == ZipArchiveWriter.zip64Limit) {
+                        offset = central.getLong(field);
+                    }
+                } else if (id == ZipArchiveWriter.timestampExtraId && length >= 5 && (central.get(field) & 1) != 0) {
+                    lastModified = (central.getInt(field + 1) & 0xffffffffL) * 1000;
+                }
+                extra += 4 + length;
+            }
+            entries.add(new Entry(name, method, crc, compressedSize, entrySize, offset, lastModified));
+            position = extraEnd + commentLength;
+        }
+    }
+
+    /**
+     * extract an entry to the given file.  This can be called by any number of threads at the same time.
+     * @param entry the entry to extract
+     * @param target the file to write the content to
+     * @param dataEncryption used to decrypt encrypted entries
+     * @param password the encryption password, only used for encrypted entries
+     * @throws IOException if the entry can't be read, the target can't be written or the content is damaged
+     * @throws InvalidKeyException if the password doesn't match the password the entry was encrypted with
+     */
+    public void extract(Entry entry, File target, DataEncryption dataEncryption, String password)
+            throws IOException, InvalidKeyException {
+        checkMethod(entry);
+        if (target.getParentFile() != null) target.getParentFile().mkdirs();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 1 << 16)) {
+            extract(entry, out, dataEncryption, password);
+        }
+    }
+
+    /**
+     * extract an entry to the given stream, checking its crc.  This can be called by any number of threads at
+     * the same time.
+     * @param entry the entry to extract
+     * @param out receives the content; it's not closed
+     * @param dataEncryption used to decrypt encrypted entries
+     * @param password the encryption password, only used for encrypted entries
+     * @throws IOException if the entry can't be read, the stream can't be written or the content is damaged
+     * @throws InvalidKeyException if the password doesn't match the password the entry was encrypted with
+     */
+    public void extract(Entry entry, OutputStream out, DataEncryption dataEncryption, String password)
+            throws IOException, InvalidKeyException {
+        checkMethod(entry);
+        CRC32 crc = new CRC32();
+        Inflater inflater = new Inflater(true);
+        try (InputStream data = openData(entry)) {
+            if (entry.isEncrypted()) {
+                // the crc is of the stored (encrypted) data; the content was deflated before it was encrypted
+                CheckedInputStream checked = new CheckedInputStream(data, crc);
+                InflaterOutputStream inflated = new InflaterOutputStream(out, inflater, 1 << 16);
+                dataEncryption.cipherStreamDecrypt(password, checked, inflated);
+                inflated.finish();
+                out.flush();
+            } else if (entry.method == ZipArchiveWriter.deflated) {
+                copy(new InflaterInputStream(data, inflater, 1 << 16), new CheckedOutputStream(out, crc));
+            } else {
+                copy(data, new CheckedOutputStream(out, crc));
+            }
+        } finally {
+            inflater.end();
+        }
+        if (crc.getValue() != entry.crc) {
+            throw new IOException("crc error extracting " + entry.name);
+        }
+    }
+
+    private static void checkMethod(Entry entry) throws IOException {
+        if (entry.method != ZipArchiveWriter.stored && entry.method != ZipArchiveWriter.deflated) {
+            throw new IOException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        out.flush();
+    }
+
+    /**
+     * open the data of an entry.  The local header is read to find where the data starts, its extra field
+     * doesn't have to match the one in the central directory.
+     */
+    private InputStream openData(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.offset, 30);
+        if (header.getInt(0) != ZipArchiveWriter.localHeaderSignature) {
+            throw new IOException("invalid local header for " + entry.name);
+        }
+        long start = entry.offset + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        // the inflater may need a dummy byte after the data when there is no zlib header (see ZipFile)
+        return new BufferedInputStream(new RangeInputStream(start, entry.compressedSize,
+                entry.method == ZipArchiveWriter.deflated && !entry.isEncrypted()), 1 << 16);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of " + file.getPath());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * reads a range of the archive with positional reads, which don't change the channel's position
+     */
+    private class RangeInputStream extends InputStream {
+        private long position;
+        private long remaining;
+        private boolean dummyByte;
+
+        RangeInputStream(long position, long length, boolean dummyByte) {
+            this.position = position;
+            this.remaining = length;
+            this.dummyByte = dummyByte;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining == 0) {
+                if (!dummyByte) return -1;
+                dummyByte = false;
+                b[off] = 0;
+                return 1;
+            }
+            int length = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (length < 0) throw new IOException("unexpected end of " + file.getPath());
+            position += length;
+            remaining -= length;
+            return length;
+        }
+    }
+
+    private static long fromDosTime(int dosTime) {
+        try {
+            LocalDateTime date = LocalDateTime.of(((dosTime >> 25) & 0x7f) + 1980, (dosTime >> 21) & 0x0f,
+                    (dosTime >> 16) & 0x1f, (dosTime >> 11) & 0x1f, (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+            return date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2021 PhinneyRidge.com
+ *        Licensed under the Apache License, Version 2.0 (the "License");
+ *        you may not use this file except in compliance with the License.
+ *        You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *        Unless required by applicable law or agreed to in writing, software
+ *        distributed under the License is distributed on an "AS IS" BASIS,
+ *        WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *        See the License for the specific language governing permissions and
+ *        limitations under the License.
+ */
+package com.phinneyridge.tools.backup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ZipArchiveWriter writes a zip archive whose entries are compressed in parallel.  Any number of threads
+ * compress their files with compress(), which doesn't touch the archive; the compressed entries are then
+ * appended to the archive one at a time by write().  That's the same split pigz uses: the compression runs on
+ * all cores, and the archive is still written sequentially.
+ * <p>
+ * The archive uses ZIP64 records where the sizes, offsets or number of entries need them, so there is no
+ * limit on the size of the files or the archive.  Entry names use "/" separators and are UTF-8 encoded.
+ * Encrypted entries are deflated first and then encrypted with DataEncryption; they are stored (method 0) with
+ * the ".iv16enc" extension added to their name, so only this utility can read them.
+ */
+public class ZipArchiveWriter implements Closeable {
+    static final int localHeaderSignature = 0x04034b50;
+    static final int centralHeaderSignature = 0x02014b50;
+    static final int endSignature = 0x06054b50;
+    static final int zip64EndSignature = 0x06064b50;
+    static final int zip64LocatorSignature = 0x07064b50;
+    static final short zip64ExtraId = 0x0001;
+    static final short timestampExtraId = 0x5455;
+    static final int stored = 0;
+    static final int deflated = 8;
+    static final long zip64Limit = 0xffffffffL;
+    private static final int utf8Flag = 1 << 11;
+    private static final int memoryLimit = 8 * 1024 * 1024;  // larger entries are compressed to a temporary file
+
+    /**
+     * a compressed entry that is ready to be written to the archive
+     */
+    public static class Entry {
+        final String name;
+        final long lastModified;
+        final int method;
+        final long crc;
+        final long size;
+        final EntryData data;
+        long offset;
+
+        Entry(String name, long lastModified, int method, long crc, long size, EntryData data) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCompressedSize() {
+            return data.size();
+        }
+
+        /**
+         * drop the compressed data of an entry that isn't written
+         */
+        public void discard() {
+            data.delete();
+        }
+    }
+
+    /**
+     * the compressed data of an entry.  The data is kept in memory until it grows past memoryLimit, then it's
+     * moved to a temporary file.  The crc of the data is computed as it's written.
+     */
+    static class EntryData extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File file;
+        private OutputStream fileOut;
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            size += len;
+            if (fileOut == null && memory.size() + len > memoryLimit) {
+                file = File.createTempFile("zipentry", ".tmp");
+                fileOut = new FileOutputStream(file);
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) fileOut.close();
+        }
+
+        long size() {
+            return size;
+        }
+
+        long getCrc() {
+            return crc.getValue();
+        }
+
+        InputStream openInputStream() throws IOException {
+            if (file != null) return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+
+        void writeTo(FileChannel channel) throws IOException {
+            if (file != null) {
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < in.size()) {
+                        position += in.transferTo(position, in.size() - position, channel);
+                    }
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(memory.toByteArray());
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+
+        void delete() {
+            try {
+                close();
+            } catch (IOException e) {
+                // it's only a temporary file
+            }
+            if (file != null) file.delete();
+            memory = null;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private long position;
+
+    /**
+     * create the archive, an existing file is replaced
+     * @param file the archive file
+     * @throws IOException if the archive can't be created
+     */
+    public ZipArchiveWriter(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * compress the given file for the archive.  This can be called by any number of threads at the same time.
+     * Content that doesn't get smaller by deflating it is stored instead, and with a level of
+     * Deflater.NO_COMPRESSION unencrypted content is stored without trying.
+     * @param source the file to compress
+     * @param name the entry name
+     * @param level the deflate level (Deflater.DEFAULT_COMPRESSION, or 0 to 9)
+     * @param dataEncryption used to encrypt the entry; only used when the password isn't null
+     * @param password the encryption password, or null if the entry isn't encrypted
+     * @return the compressed entry
+     * @throws IOException if the file can't be read
+     */
+    public static Entry compress(File source, String name, int level, DataEncryption dataEncryption,
+                                 String password) throws IOException {
+        long lastModified = source.lastModified();
+        if (password == null && level == Deflater.NO_COMPRESSION) {
+            return store(source, name, lastModified);
+        }
+        CRC32 crc = new CRC32();
+        long size = 0;
+        EntryData data = new EntryData();
+        Deflater deflater = new Deflater(level, true);
+        try {
+            try (InputStream in = new FileInputStream(source);
+                 OutputStream out = new DeflaterOutputStream(data, deflater, 1 << 16)) {
+                byte[] buffer = new byte[1 << 16];
+                int length;
+                while ((length = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, length);
+                    size += length;
+                    out.write(buffer, 0, length);
+                }
+            }
+        } catch (IOException e) {
+            data.delete();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        if (password != null) {
+            EntryData encrypted = new EntryData();
+            try (InputStream in = data.openInputStream(); OutputStream out = encrypted) {
+                // the content is already compressed
+                dataEncryption.cipherStreamEncrypt(password, in, out, DataEncryption.Codec.none, 0);
+            } catch (IOException e) {
+                encrypted.delete();
+                throw e;
+            } finally {
+                data.delete();
+            }
+            return new Entry(name + BackupEngine.encryptionFileExtension, lastModified, stored,
+                    encrypted.getCrc(), encrypted.size(), encrypted);
+        }
+        if (data.size() >= size) {
+            // deflating didn't help, store the content as it is
+            data.delete();
+            return store(source, name, lastModified);
+        }
+        return new Entry(name, lastModified, deflated, crc.getValue(), size, data);
+    }
+
+    /**
+     * get the entry that stores the content of the given file as it is
+     */
+    private static Entry store(File source, String name, long lastModified) throws IOException {
+        EntryData data = new EntryData();
+        try (InputStream in = new FileInputStream(source); OutputStream out = data) {
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            data.delete();
+            throw e;
+        }
+        return new Entry(name, lastModified, stored, data.getCrc(), data.size(), data);
+    }
+
+    /**
+     * append a compressed entry to the archive.  The entries are written one at a time.
+     * @param entry the entry returned by compress
+     * @throws IOException if the archive can't be written
+     */
+    public synchronized void write(Entry entry) throws IOException {
+        try {
+            entry.offset = position;
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            boolean zip64 = entry.size >= zip64Limit || entry.data.size() >= zip64Limit;
+            ByteBuffer header = newBuffer(30 + name.length + 9 + (zip64 ? 20 : 0));
+            header.putInt(localHeaderSignature);
+            header.putShort((short) (zip64 ? 45 : 20));
+            header.putShort((short) utf8Flag);
+            header.putShort((short) entry.method);
+            header.putInt(toDosTime(entry.lastModified));
+            header.putInt((int) entry.crc);
+            header.putInt((int) (zip64 ? zip64Limit : entry.data.size()));
+            header.putInt((int) (zip64 ? zip64Limit : entry.size));
+            header.putShort((short) name.length);
+            header.putShort((short) (9 + (zip64 ? 20 : 0)));
+            header.put(name);
+            putTimestamp(header, entry.lastModified);
+            if (zip64) {
+                header.putShort(zip64ExtraId);
+                header.putShort((short) 16);
+                header.putLong(entry.size);
+                header.putLong(entry.data.size());
+            }
+            writeBuffer(header);
+            entry.data.writeTo(channel);
+            position += entry.data.size();
+            entries.add(entry);
+        } finally {
+            entry.data.delete();
+        }
+    }
+
+    /**
+     * write the central directory and close the archive
+     * @throws IOException if the archive can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            long centralOffset = position;
+            for (Entry entry : entries) {
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                boolean zip64 = entry.size >= zip64Limit || entry.data.size() >= zip64Limit ||
+                        entry.offset >= zip64Limit;
+                int extraLength = 9 + (zip64 ? 28 : 0);
+                ByteBuffer header = newBuffer(46 + name.length + extraLength);
+                header.putInt(centralHeaderSignature);
+                header.putShort((short) (zip64 ? 45 : 20));    // version made by
+                header.putShort((short) (zip64 ? 45 : 20));    // version needed
+                header.putShort((short) utf8Flag);
+                header.putShort((short) entry.method);
+                header.putInt(toDosTime(entry.lastModified));
+                header.putInt((int) entry.crc);
+                header.putInt((int) (zip64 ? zip64Limit : entry.data.size()));
+                header.putInt((int) (zip64 ? zip64Limit : entry.size));
+                header.putShort((short) name.length);
+                header.putShort((short) extraLength);
+                header.putShort((short) 0);     // comment length
+                header.putShort((short) 0);     // disk number
+                header.putShort((short) 0);     // internal attributes
+                header.putInt(0);               // external attributes
+                header.putInt((int) (zip64 ? zip64Limit : entry.offset));
+                header.put(name);
+                putTimestamp(header, entry.lastModified);
+                if (zip64) {
+                    header.putShort(zip64ExtraId);
+                    header.putShort((short) 24);
+                    header.putLong(entry.size);
+                    header.putLong(entry.data.size());
+                    header.putLong(entry.offset);
+                }
+                writeBuffer(header);
+            }
+            long centralSize = position - centralOffset;
+            boolean zip64 = entries.size() >= 0xffff || centralOffset >= zip64Limit || centralSize >= zip64Limit;
+            if (zip64) {
+                long zip64EndOffset = position;
+                ByteBuffer end = newBuffer(56 + 20);
+                end.putInt(zip64EndSignature);
+                end.putLong(44);
+                end.putShort((short) 45);
+                end.putShort((short) 45);
+                end.putInt(0);
+                end.putInt(0);
+                end.putLong(entries.size());
+                end.putLong(entries.size());
+                end.putLong(centralSize);
+                end.putLong(centralOffset);
+                end.putInt(zip64LocatorSignature);
+                end.putInt(0);
+                end.putLong(zip64EndOffset);
+                end.putInt(1);
+                writeBuffer(end);
+            }
+            ByteBuffer end = newBuffer(22);
+            end.putInt(endSignature);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) (zip64 ? 0xffff : entries.size()));
+            end.putShort((short) (zip64 ? 0xffff : entries.size()));
+            end.putInt((int) (zip64 ? zip64Limit : centralSize));
+            end.putInt((int) (zip64 ? zip64Limit : centralOffset));
+            end.putShort((short) 0);
+            writeBuffer(end);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * close the archive without writing the central directory, and delete it
+     */
+    public synchronized void abort() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the archive is deleted anyway
+        }
+        file.delete();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    /**
+     * the extended timestamp extra field, it holds the last modified time in seconds (the dos time in the
+     * header only has a two second resolution)
+     */
+    private static void putTimestamp(ByteBuffer buffer, long lastModified) {
+        buffer.putShort(timestampExtraId);
+        buffer.putShort((short) 5);
+        buffer.put((byte) 1);
+        buffer.putInt((int) (lastModified / 1000));
+    }
+
+    private static int toDosTime(long time) {
+        LocalDateTime date = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (date.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return (date.getYear() - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16 |
+                date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1;
+    }
+}